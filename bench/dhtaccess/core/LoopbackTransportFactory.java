@@ -0,0 +1,134 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcStreamTransport;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.xml.sax.SAXException;
+
+/**
+ * A factory of XML-RPC transports which stand in for a gateway in the same process.
+ * A request is serialized into memory and discarded,
+ * and a canned response of its method is parsed as if it came from a gateway.
+ */
+class LoopbackTransportFactory extends XmlRpcTransportFactoryImpl {
+	private final Map<String,byte[]> responses;
+	private final boolean xmlRpcCodec;
+
+	/**
+	 * @param responses the body of the response to each method
+	 * @param xmlRpcCodec whether {@link XmlRpcCodec} is used instead of Apache XML-RPC
+	 */
+	LoopbackTransportFactory(XmlRpcClient client, Map<String,byte[]> responses, boolean xmlRpcCodec) {
+		super(client);
+		this.responses = responses;
+		this.xmlRpcCodec = xmlRpcCodec;
+	}
+
+	public XmlRpcTransport getTransport() {
+		return new LoopbackTransport(this.getClient(), this.responses, this.xmlRpcCodec);
+	}
+
+	static class LoopbackTransport extends XmlRpcStreamTransport {
+		private final Map<String,byte[]> responses;
+		private final boolean xmlRpcCodec;
+		private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+		private byte[] response;
+
+		LoopbackTransport(XmlRpcClient client, Map<String,byte[]> responses, boolean xmlRpcCodec) {
+			super(client);
+			this.responses = responses;
+			this.xmlRpcCodec = xmlRpcCodec;
+		}
+
+		public Object sendRequest(XmlRpcRequest req) throws XmlRpcException {
+			this.response = this.responses.get(req.getMethodName());
+			if (this.response == null) {
+				throw new XmlRpcClientException("No response for " + req.getMethodName(), null);
+			}
+
+			return super.sendRequest(req);
+		}
+
+		/**
+		 * Serializes a request without sending it, and returns its length.
+		 */
+		int serialize(XmlRpcRequest req) throws XmlRpcException, IOException, SAXException {
+			this.request.reset();
+			this.newReqWriter(req).write(this.request);
+			return this.request.size();
+		}
+
+		/**
+		 * Parses the body of a response.
+		 */
+		Object parse(XmlRpcStreamRequestConfig config, byte[] body) throws XmlRpcException {
+			return this.readResponse(config, new ByteArrayInputStream(body));
+		}
+
+		protected ReqWriter newReqWriter(XmlRpcRequest req) throws XmlRpcException, IOException, SAXException {
+			if (!this.xmlRpcCodec) {
+				return super.newReqWriter(req);
+			}
+
+			final XmlRpcCodec.Buffer call = XmlRpcCodec.encodeCall(req);
+			return new ReqWriter() {
+				public void write(OutputStream out) throws IOException {
+					call.writeTo(out);
+				}
+			};
+		}
+
+		protected Object readResponse(XmlRpcStreamRequestConfig config, InputStream in) throws XmlRpcException {
+			if (!this.xmlRpcCodec) {
+				return super.readResponse(config, in);
+			}
+
+			return XmlRpcCodec.decodeResponse(in);
+		}
+
+		protected void writeRequest(ReqWriter writer) throws XmlRpcException, IOException, SAXException {
+			this.request.reset();
+			writer.write(this.request);
+		}
+
+		protected InputStream getInputStream() {
+			return new ByteArrayInputStream(this.response);
+		}
+
+		protected boolean isResponseGzipCompressed(XmlRpcStreamRequestConfig config) {
+			return false;
+		}
+
+		protected void close() {
+			// nothing to release
+		}
+	}
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.ws.commons.util.Base64;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcClientRequestImpl;
+
+/**
+ * Measures the CPU cost of the client side of requests without a network,
+ * in operations per second and bytes allocated per operation.
+ * Requests go through {@link LoopbackTransportFactory}, which answers them in the same process.
+ * Serialization and parsing are measured both with Apache XML-RPC and with {@link XmlRpcCodec},
+ * and compression of values with {@link ValueCodec}.
+ * <p>
+ * Each case runs on a single thread, first to warm up and then to be measured.
+ * Allocation is measured only on JVMs which count the bytes allocated by a thread.
+ */
+public class MicroBenchmark {
+	private static final String COMMAND = "microbench";
+
+	private static final String GATEWAY = "http://localhost:5851/";
+	private static final int KEY_SIZE = 20;
+	private static final int DEFAULT_VALUE_SIZE = 100;
+	private static final int DEFAULT_VALUES = 10;
+	private static final long DEFAULT_WARMUP = 2 * 1000L;	// msec
+	private static final long DEFAULT_DURATION = 3 * 1000L;	// msec
+	private static final int BATCH = 100;
+	private static final String TEXT = "{\"id\":12345,\"name\":\"node\",\"addr\":\"192.168.0.1:5851\",\"tags\":[\"a\",\"b\"]}\n";
+
+	private static void usage(String command) {
+		System.out.println("usage: " + command
+				+ " [-h] [-s <value size>] [-v <values per get>] [-w <msec>] [-d <msec>] [-a] [-t] [-z] [<case> ...]");
+	}
+
+	public static void main(String[] args) {
+		int valueSize = DEFAULT_VALUE_SIZE;
+		int numValues = DEFAULT_VALUES;
+		long warmup = DEFAULT_WARMUP;
+		long duration = DEFAULT_DURATION;
+		boolean xmlRpcCodec = true;
+		boolean text = false;
+		boolean compression = false;
+
+		// parse options
+		Options options = new Options();
+		options.addOption("h", "help", false, "print help");
+		options.addOption("s", "size", true, "size of a value in bytes");
+		options.addOption("v", "values", true, "number of values returned by a get");
+		options.addOption("w", "warmup", true, "duration of warming up a case in msec");
+		options.addOption("d", "duration", true, "duration of measuring a case in msec");
+		options.addOption("a", "apache", false, "makes requests with the codec of Apache XML-RPC");
+		options.addOption("t", "text", false, "values are JSON-like text instead of random bytes");
+		options.addOption("z", "compress", false, "values are compressed when put and got");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.out.println("There is an invalid option.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		String optVal;
+		if (cmd.hasOption('h')) {
+			usage(COMMAND);
+			System.exit(1);
+		}
+		optVal = cmd.getOptionValue('s');
+		if (optVal != null) {
+			valueSize = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('v');
+		if (optVal != null) {
+			numValues = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('w');
+		if (optVal != null) {
+			warmup = Long.parseLong(optVal);
+		}
+		optVal = cmd.getOptionValue('d');
+		if (optVal != null) {
+			duration = Long.parseLong(optVal);
+		}
+		if (cmd.hasOption('a')) {
+			xmlRpcCodec = false;
+		}
+		if (cmd.hasOption('t')) {
+			text = true;
+		}
+		if (cmd.hasOption('z')) {
+			compression = true;
+		}
+
+		args = cmd.getArgs();
+
+		List<Case> cases = null;
+		try {
+			cases = createCases(valueSize, numValues, xmlRpcCodec, text, compression);
+		}
+		catch (MalformedURLException e) {
+			// NOTREACHED
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		boolean allocationMeasured = (threadBean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported());
+		if (allocationMeasured) {
+			((com.sun.management.ThreadMXBean)threadBean).setThreadAllocatedMemoryEnabled(true);
+		}
+
+		System.out.println("Value size (bytes): " + valueSize + ", values per get: " + numValues
+				+ ", codec of requests: " + (xmlRpcCodec ? "XmlRpcCodec" : "Apache XML-RPC"));
+		System.out.println("Values: " + (text ? "text" : "random bytes")
+				+ ", compressed: " + (compression ? "yes" : "no")
+				+ ", bytes on the wire per value: "
+				+ (compression ? ValueCodec.encode(newValue(valueSize, text, new Random(0)), Deflater.BEST_SPEED, 0).length : valueSize));
+		System.out.printf("%-16s %14s %14s%n", "case", "ops/sec", "bytes/op");
+
+		for (Case c: cases) {
+			if (args.length > 0 && !contains(args, c.name)) continue;
+
+			try {
+				run(c, warmup, allocationMeasured);
+				Result r = run(c, duration, allocationMeasured);
+
+				System.out.printf("%-16s %14.0f %14s%n", c.name,
+						r.ops / (r.elapsed / 1.0e9),
+						(allocationMeasured ? String.format("%.0f", (double)r.allocated / r.ops) : "-"));
+			}
+			catch (Exception e) {
+				System.out.println(c.name + " failed: " + e);
+			}
+		}
+	}
+
+	private static boolean contains(String[] names, String name) {
+		for (String n: names) {
+			if (n.equals(name)) return true;
+		}
+		return false;
+	}
+
+	private static Result run(Case c, long duration, boolean allocationMeasured) throws Exception {
+		com.sun.management.ThreadMXBean threadBean = null;
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = 0L;
+		if (allocationMeasured) {
+			threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+		}
+
+		long start = System.nanoTime();
+		long deadline = start + duration * 1000000L;
+		long ops = 0L;
+		long now;
+		do {
+			c.run(BATCH);
+			ops += BATCH;
+		} while ((now = System.nanoTime()) < deadline);
+
+		Result r = new Result();
+		r.ops = ops;
+		r.elapsed = now - start;
+		if (allocationMeasured) {
+			r.allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+		}
+
+		return r;
+	}
+
+	private static class Result {
+		long ops;
+		long elapsed;	// nsec
+		long allocated;	// bytes
+	}
+
+	/**
+	 * A piece of code measured.
+	 */
+	private static abstract class Case {
+		final String name;
+
+		Case(String name) { this.name = name; }
+
+		abstract void run(int times) throws Exception;
+	}
+
+	// a value of random bytes, or of text if specified
+	private static byte[] newValue(int size, boolean text, Random rnd) {
+		byte[] value = new byte[size];
+		if (text) {
+			int offset = rnd.nextInt(TEXT.length());
+			for (int i = 0; i < size; i++) {
+				value[i] = (byte)TEXT.charAt((offset + i) % TEXT.length());
+			}
+		}
+		else {
+			rnd.nextBytes(value);
+		}
+		return value;
+	}
+
+	private static List<Case> createCases(int valueSize, int numValues, final boolean xmlRpcCodec,
+			boolean text, boolean compression) throws MalformedURLException {
+		Random rnd = new Random(0);
+
+		final byte[] key = new byte[KEY_SIZE];
+		rnd.nextBytes(key);
+		final byte[] value = newValue(valueSize, text, new Random(0));
+		byte[] hashedSecret = Util.hashWithSHA1(key);
+
+		// values in the responses are compressed as the accessor would put them
+		byte[][] values = new byte[numValues][];
+		for (int i = 0; i < numValues; i++) {
+			values[i] = newValue(valueSize, text, rnd);
+			if (compression) {
+				values[i] = ValueCodec.encode(values[i], Deflater.BEST_SPEED, 0);
+			}
+		}
+
+		// canned responses of the gateway
+		final Map<String,byte[]> responses = new HashMap<String,byte[]>();
+		responses.put("put", response("<int>0</int>"));
+		responses.put("get", getResponse(values, null));
+		responses.put("get_details", getResponse(values, hashedSecret));
+
+		final DHTAccessor accessor = new DHTAccessor(GATEWAY) {
+			XmlRpcClient getXmlRpcClient(URL gateway) {
+				XmlRpcClient client = super.getXmlRpcClient(gateway);
+				client.setTransportFactory(new LoopbackTransportFactory(client, responses, xmlRpcCodec));
+				return client;
+			}
+		};
+		accessor.setCompression(compression);
+
+		// for the cases of serialization and parsing alone
+		XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+		config.setServerURL(new URL(GATEWAY));
+		XmlRpcClient client = new XmlRpcClient();
+		client.setConfig(config);
+		final LoopbackTransportFactory.LoopbackTransport transport =
+			new LoopbackTransportFactory.LoopbackTransport(client, responses, false);
+		final Object[] putParams = new Object[] { Util.hashWithSHA1(key), value, 900, "benchmark" };
+		final XmlRpcClientRequestImpl putRequest = new XmlRpcClientRequestImpl(config, "put", putParams);
+		final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		final XmlRpcClientConfigImpl parseConfig = config;
+		final byte[] detailsResponse = responses.get("get_details");
+		final byte[] compressed = ValueCodec.encode(value, Deflater.BEST_SPEED, 0);
+
+		List<Case> cases = new ArrayList<Case>();
+
+		cases.add(new Case("sha1") {
+			void run(int times) {
+				for (int i = 0; i < times; i++) {
+					byte[] h = Util.hashWithSHA1(key);
+					key[0] = h[0];
+				}
+			}
+		});
+		cases.add(new Case("serialize_put") {
+			void run(int times) throws Exception {
+				for (int i = 0; i < times; i++) {
+					transport.serialize(putRequest);
+				}
+			}
+		});
+		cases.add(new Case("parse_details") {
+			void run(int times) throws Exception {
+				for (int i = 0; i < times; i++) {
+					Object[] rpcResults = (Object[])transport.parse(parseConfig, detailsResponse);
+					for (Object o: (Object[])rpcResults[0]) {
+						Object[] v = (Object[])o;
+						new DetailedGetResult((byte[])v[0], (Integer)v[1], (String)v[2], (byte[])v[3]);
+					}
+				}
+			}
+		});
+		cases.add(new Case("encode_put") {
+			void run(int times) throws Exception {
+				for (int i = 0; i < times; i++) {
+					encoded.reset();
+					XmlRpcCodec.encodeCall("put", putParams).writeTo(encoded);
+				}
+			}
+		});
+		cases.add(new Case("decode_details") {
+			void run(int times) throws Exception {
+				for (int i = 0; i < times; i++) {
+					Object[] rpcResults = (Object[])XmlRpcCodec.decodeResponse(
+							new ByteArrayInputStream(detailsResponse));
+					for (Object o: (Object[])rpcResults[0]) {
+						Object[] v = (Object[])o;
+						new DetailedGetResult((byte[])v[0], (Integer)v[1], (String)v[2], (byte[])v[3]);
+					}
+				}
+			}
+		});
+		cases.add(new Case("compress") {
+			void run(int times) {
+				for (int i = 0; i < times; i++) {
+					byte[] v = ValueCodec.encode(value, Deflater.BEST_SPEED, 0);
+					key[0] = v[v.length - 1];
+				}
+			}
+		});
+		cases.add(new Case("decompress") {
+			void run(int times) {
+				for (int i = 0; i < times; i++) {
+					byte[] v = ValueCodec.decode(compressed);
+					key[0] = v[v.length - 1];
+				}
+			}
+		});
+		cases.add(new Case("put") {
+			void run(int times) {
+				for (int i = 0; i < times; i++) {
+					accessor.put(key, value, 900, null);
+				}
+			}
+		});
+		cases.add(new Case("get") {
+			void run(int times) {
+				for (int i = 0; i < times; i++) {
+					accessor.get(key);
+				}
+			}
+		});
+		cases.add(new Case("get_details") {
+			void run(int times) {
+				for (int i = 0; i < times; i++) {
+					accessor.getDetails(key);
+				}
+			}
+		});
+
+		return cases;
+	}
+
+	// the response of get, or get_details if hashedSecret is given
+	private static byte[] getResponse(byte[][] values, byte[] hashedSecret) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<array><data><value><array><data>");
+		for (byte[] v: values) {
+			sb.append("<value>");
+			if (hashedSecret == null) {
+				sb.append(base64(v));
+			}
+			else {
+				sb.append("<array><data>");
+				sb.append("<value>").append(base64(v)).append("</value>");
+				sb.append("<value><int>900</int></value>");
+				sb.append("<value><string>SHA</string></value>");
+				sb.append("<value>").append(base64(hashedSecret)).append("</value>");
+				sb.append("</data></array>");
+			}
+			sb.append("</value>");
+		}
+		sb.append("</data></array></value>");
+		sb.append("<value>").append(base64(new byte[0])).append("</value>");	// placemark
+		sb.append("</data></array>");
+
+		return response(sb.toString());
+	}
+
+	private static String base64(byte[] b) {
+		return "<base64>" + Base64.encode(b, 0, b.length, 0, null) + "</base64>";
+	}
+
+	private static byte[] response(String value) {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<methodResponse><params><param><value>" + value
+			+ "</value></param></params></methodResponse>";
+		try {
+			return xml.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			// NOTREACHED
+			throw new Error(e);
+		}
+	}
+}
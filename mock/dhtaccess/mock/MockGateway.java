@@ -0,0 +1,642 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.mock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.ws.commons.serialize.XMLWriterImpl;
+import org.apache.xmlrpc.common.TypeFactory;
+import org.apache.xmlrpc.common.TypeFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcHttpRequestConfigImpl;
+import org.apache.xmlrpc.parser.XmlRpcRequestParser;
+import org.apache.xmlrpc.serializer.XmlRpcWriter;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import dhtaccess.core.BinaryProtocol;
+
+/**
+ * A gateway to a DHT in memory, which speaks the XML-RPC protocol of Bamboo.
+ * put, put_removable, get, get_details, rm and system.multicall are implemented
+ * with placemark paging, TTL expiry and removal by secret.
+ * <p>
+ * A response can be delayed by a fixed latency and a random jitter,
+ * and a request can fail with an HTTP error or an XML-RPC fault,
+ * so that clients can be tested and benchmarked on a single machine.
+ * The gateway can be embedded in a program or run from the command line.
+ * <p>
+ * The same calls are also served in {@link BinaryProtocol} on another port if it is set,
+ * where an error closes the connection.
+ */
+public class MockGateway {
+	private static final String COMMAND = "mock-gateway";
+
+	private static final int DEFAULT_PORT = 5851;
+	private static final int DEFAULT_THREADS = 16;
+	private static final int BACKLOG = 128;
+	private static final long EXPIRY_INTERVAL = 10 * 1000L;	// msec
+
+	private static final String MULTICALL = "system.multicall";
+	private static final int FAULT_NO_METHOD = -32601;
+	private static final int FAULT_INVALID_PARAMS = -32602;
+	private static final int FAULT_INJECTED = -32500;
+
+	private static void usage(String command) {
+		System.out.println("usage: " + command
+				+ " [-h] [-p <port>] [-b <port>] [-t <threads>] [-l <msec>] [-j <msec>] [-e <ratio>] [-f <ratio>]");
+	}
+
+	public static void main(String[] args) {
+		int port = DEFAULT_PORT;
+		int binaryPort = -1;
+		int threads = DEFAULT_THREADS;
+		long latency = 0L, jitter = 0L;
+		double errorRate = 0.0, faultRate = 0.0;
+
+		// parse options
+		Options options = new Options();
+		options.addOption("h", "help", false, "print help");
+		options.addOption("p", "port", true, "port number to listen on");
+		options.addOption("b", "binary-port", true, "port number to serve the binary protocol on");
+		options.addOption("t", "threads", true, "number of threads handling requests");
+		options.addOption("l", "latency", true, "delay of a response in msec");
+		options.addOption("j", "jitter", true, "maximum random delay added to the latency in msec");
+		options.addOption("e", "errors", true, "ratio of requests answered with HTTP 503");
+		options.addOption("f", "faults", true, "ratio of calls answered with an XML-RPC fault");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.out.println("There is an invalid option.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		String optVal;
+		if (cmd.hasOption('h')) {
+			usage(COMMAND);
+			System.exit(1);
+		}
+		optVal = cmd.getOptionValue('p');
+		if (optVal != null) {
+			port = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('b');
+		if (optVal != null) {
+			binaryPort = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('t');
+		if (optVal != null) {
+			threads = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('l');
+		if (optVal != null) {
+			latency = Long.parseLong(optVal);
+		}
+		optVal = cmd.getOptionValue('j');
+		if (optVal != null) {
+			jitter = Long.parseLong(optVal);
+		}
+		optVal = cmd.getOptionValue('e');
+		if (optVal != null) {
+			errorRate = Double.parseDouble(optVal);
+		}
+		optVal = cmd.getOptionValue('f');
+		if (optVal != null) {
+			faultRate = Double.parseDouble(optVal);
+		}
+
+		MockGateway gateway = new MockGateway(port, threads);
+		gateway.setLatency(latency, jitter);
+		gateway.setErrorRate(errorRate);
+		gateway.setFaultRate(faultRate);
+		gateway.setBinaryPort(binaryPort);
+
+		try {
+			gateway.start();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.out.println("Listening on " + gateway.getURL());
+		if (binaryPort >= 0) {
+			System.out.println("Listening on " + gateway.getBinaryURL());
+		}
+	}
+
+	private final int port;
+	private final int threads;
+	private int binaryPort = -1;
+
+	private volatile long latency = 0L;	// msec
+	private volatile long jitter = 0L;	// msec
+	private volatile double errorRate = 0.0;
+	private volatile double faultRate = 0.0;
+
+	private final MockStore store = new MockStore();
+	private final Random rnd = new Random();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong calls = new AtomicLong();
+
+	private final XmlRpcHttpRequestConfigImpl config = new XmlRpcHttpRequestConfigImpl();
+	private final TypeFactory typeFactory = new TypeFactoryImpl(null);
+	private final SAXParserFactory saxFactory = SAXParserFactory.newInstance();
+
+	private HttpServer server;
+	private ExecutorService handlers;
+	private ScheduledExecutorService timer;
+	private ServerSocket binaryServer;
+	private ExecutorService binaryHandlers;
+
+	/**
+	 * @param port port number to listen on, or 0 for any free port
+	 */
+	public MockGateway(int port) {
+		this(port, DEFAULT_THREADS);
+	}
+
+	public MockGateway(int port, int threads) {
+		this.port = port;
+		this.threads = threads;
+
+		this.config.setEncoding("UTF-8");
+		this.saxFactory.setNamespaceAware(true);
+		this.saxFactory.setValidating(false);
+	}
+
+	/**
+	 * Sets the port number to serve {@link BinaryProtocol} on, 0 for any free port,
+	 * or a negative number not to serve it. This has to be set before the gateway is started.
+	 */
+	public void setBinaryPort(int port) { this.binaryPort = port; }
+
+	/**
+	 * Sets the delay of responses (in msec), to which a random delay below the jitter is added.
+	 */
+	public void setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Sets the ratio of requests answered with HTTP 503 Service Unavailable.
+	 */
+	public void setErrorRate(double ratio) { this.errorRate = ratio; }
+
+	/**
+	 * Sets the ratio of calls answered with an XML-RPC fault.
+	 * Each call in a system.multicall request fails independently.
+	 */
+	public void setFaultRate(double ratio) { this.faultRate = ratio; }
+
+	public long getRequestCount() { return this.requests.get(); }
+	public long getCallCount() { return this.calls.get(); }
+	public int getNumKeys() { return this.store.getNumKeys(); }
+	public int getNumValues() { return this.store.getNumValues(); }
+
+	/**
+	 * Discards all key-value pairs.
+	 */
+	public void clear() { this.store.clear(); }
+
+	public synchronized void start() throws IOException {
+		if (this.server != null) return;
+
+		ThreadFactory daemons = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Mock gateway");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		this.handlers = Executors.newFixedThreadPool(this.threads, daemons);
+		this.timer = Executors.newSingleThreadScheduledExecutor(daemons);
+
+		this.server = HttpServer.create(new InetSocketAddress(this.port), BACKLOG);
+		this.server.setExecutor(this.handlers);
+		this.server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) {
+				MockGateway.this.handle(exchange);
+			}
+		});
+		this.server.start();
+
+		if (this.binaryPort >= 0) {
+			this.binaryServer = new ServerSocket(this.binaryPort, BACKLOG);
+			this.binaryHandlers = Executors.newCachedThreadPool(daemons);
+			this.binaryHandlers.execute(new Runnable() {
+				public void run() {
+					MockGateway.this.acceptBinary();
+				}
+			});
+		}
+
+		this.timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				MockGateway.this.store.expire();
+			}
+		}, EXPIRY_INTERVAL, EXPIRY_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (this.server == null) return;
+
+		this.server.stop(0);
+		this.timer.shutdownNow();
+		this.handlers.shutdownNow();
+		this.server = null;
+
+		if (this.binaryServer != null) {
+			try {
+				this.binaryServer.close();
+			}
+			catch (IOException e) { /* ignore */ }
+			this.binaryHandlers.shutdownNow();
+			this.binaryServer = null;
+		}
+	}
+
+	/**
+	 * Returns the URL of the gateway, such as http://localhost:5851/.
+	 */
+	public synchronized String getURL() {
+		int p = (this.server != null ? this.server.getAddress().getPort() : this.port);
+		return "http://localhost:" + p + "/";
+	}
+
+	/**
+	 * Returns the URL of the gateway speaking {@link BinaryProtocol}, such as dhtb://localhost:5852/,
+	 * or null if it is not served.
+	 */
+	public synchronized String getBinaryURL() {
+		if (this.binaryPort < 0) return null;
+
+		int p = (this.binaryServer != null ? this.binaryServer.getLocalPort() : this.binaryPort);
+		return "dhtb://localhost:" + p + "/";
+	}
+
+	private void handle(final HttpExchange exchange) {
+		this.requests.incrementAndGet();
+
+		int status = 200;
+		byte[] body = null;
+		try {
+			byte[] request = readAll(exchange.getRequestBody());
+
+			if (!exchange.getRequestMethod().equals("POST")) {
+				status = 405;
+			}
+			else if (this.random() < this.errorRate) {
+				status = 503;
+			}
+			else {
+				body = this.process(request);
+			}
+		}
+		catch (IOException e) {
+			exchange.close();
+			return;
+		}
+		catch (SAXException e) {
+			status = 400;
+		}
+
+		final int s = status;
+		final byte[] b = body;
+		long delay = this.latency;
+		if (this.jitter > 0L) delay += (long)(this.random() * this.jitter);
+
+		if (delay <= 0L) {
+			respond(exchange, s, b);
+		}
+		else {
+			// the handler thread is not held during the delay
+			this.timer.schedule(new Runnable() {
+				public void run() {
+					respond(exchange, s, b);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void acceptBinary() {
+		ServerSocket server = this.binaryServer;
+		while (!server.isClosed()) {
+			final Socket sock;
+			try {
+				sock = server.accept();
+			}
+			catch (IOException e) {
+				break;
+			}
+
+			try {
+				this.binaryHandlers.execute(new Runnable() {
+					public void run() {
+						MockGateway.this.serveBinary(sock);
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				closeQuietly(sock);
+				break;
+			}
+		}
+	}
+
+	// answers the calls sent over a connection one by one
+	private void serveBinary(Socket sock) {
+		try {
+			sock.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+
+			while (true) {
+				BinaryProtocol.Frame request;
+				try {
+					request = BinaryProtocol.readFrame(in);
+				}
+				catch (EOFException e) {
+					break;
+				}
+				this.requests.incrementAndGet();
+
+				if (request.getKind() != BinaryProtocol.CALL || this.random() < this.errorRate) {
+					break;
+				}
+
+				ByteBuffer[] response;
+				try {
+					Object result;
+					if (request.getMethodName().equals(MULTICALL)) {
+						result = this.multicall(request.getParams());
+					}
+					else {
+						result = this.call(request.getMethodName(), request.getParams());
+					}
+					response = BinaryProtocol.encodeResult(result);
+				}
+				catch (Fault f) {
+					response = BinaryProtocol.encodeFault(f.code, f.getMessage());
+				}
+
+				long delay = this.latency;
+				if (this.jitter > 0L) delay += (long)(this.random() * this.jitter);
+				if (delay > 0L) Thread.sleep(delay);
+
+				BinaryProtocol.write(response, out);
+				out.flush();
+			}
+		}
+		catch (IOException e) {
+			// the client has gone or sent an invalid frame
+		}
+		catch (InterruptedException e) {
+			// stopped
+		}
+		finally {
+			closeQuietly(sock);
+		}
+	}
+
+	private static void closeQuietly(Socket sock) {
+		try {
+			sock.close();
+		}
+		catch (IOException e) { /* ignore */ }
+	}
+
+	private static void respond(HttpExchange exchange, int status, byte[] body) {
+		try {
+			if (body != null) {
+				exchange.getResponseHeaders().set("Content-Type", "text/xml");
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+			else {
+				exchange.sendResponseHeaders(status, -1L);
+			}
+		}
+		catch (IOException e) {
+			// the client has gone
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) >= 0) {
+			out.write(buf, 0, n);
+		}
+
+		return out.toByteArray();
+	}
+
+	private double random() {
+		synchronized (this.rnd) {
+			return this.rnd.nextDouble();
+		}
+	}
+
+	// parses a request and returns its response
+	private byte[] process(byte[] request) throws SAXException, IOException {
+		XmlRpcRequestParser parser = new XmlRpcRequestParser(this.config, this.typeFactory);
+
+		XMLReader reader;
+		try {
+			reader = this.saxFactory.newSAXParser().getXMLReader();
+		}
+		catch (ParserConfigurationException e) {
+			throw new SAXException(e);
+		}
+		reader.setContentHandler(parser);
+		reader.parse(new InputSource(new ByteArrayInputStream(request)));
+
+		String methodName = parser.getMethodName();
+		List<?> params = parser.getParams();
+		Object[] args = (params != null ? params.toArray() : new Object[0]);
+
+		Object result;
+		try {
+			if (methodName.equals(MULTICALL)) {
+				result = this.multicall(args);
+			}
+			else {
+				result = this.call(methodName, args);
+			}
+		}
+		catch (Fault f) {
+			return this.write(f);
+		}
+
+		return this.write(result);
+	}
+
+	private Object[] multicall(Object[] args) throws Fault {
+		if (args.length != 1 || !(args[0] instanceof Object[])) {
+			throw new Fault(FAULT_INVALID_PARAMS, "invalid parameters of " + MULTICALL);
+		}
+
+		Object[] calls = (Object[])args[0];
+		Object[] results = new Object[calls.length];
+
+		for (int i = 0; i < calls.length; i++) {
+			try {
+				if (!(calls[i] instanceof Map)) {
+					throw new Fault(FAULT_INVALID_PARAMS, "invalid call in " + MULTICALL);
+				}
+
+				Map<?,?> call = (Map<?,?>)calls[i];
+				Object name = call.get("methodName");
+				Object params = call.get("params");
+				if (!(name instanceof String) || !(params instanceof Object[])) {
+					throw new Fault(FAULT_INVALID_PARAMS, "invalid call in " + MULTICALL);
+				}
+				if (name.equals(MULTICALL)) {
+					throw new Fault(FAULT_INVALID_PARAMS, MULTICALL + " cannot be nested");
+				}
+
+				results[i] = new Object[] { this.call((String)name, (Object[])params) };
+			}
+			catch (Fault f) {
+				Map<String,Object> fault = new HashMap<String,Object>();
+				fault.put("faultCode", f.code);
+				fault.put("faultString", f.getMessage());
+				results[i] = fault;
+			}
+		}
+
+		return results;
+	}
+
+	private Object call(String methodName, Object[] args) throws Fault {
+		this.calls.incrementAndGet();
+
+		if (this.random() < this.faultRate) {
+			throw new Fault(FAULT_INJECTED, "injected fault");
+		}
+
+		try {
+			if (methodName.equals("put") && args.length == 4) {
+				return this.store.put((byte[])args[0], (byte[])args[1], (Integer)args[2], null, null);
+			}
+			else if (methodName.equals("put_removable") && args.length == 6) {
+				return this.store.put((byte[])args[0], (byte[])args[1], (Integer)args[4],
+						(String)args[2], (byte[])args[3]);
+			}
+			else if ((methodName.equals("get") || methodName.equals("get_details")) && args.length == 4) {
+				return this.store.get((byte[])args[0], (Integer)args[1], (byte[])args[2],
+						methodName.equals("get_details"));
+			}
+			else if (methodName.equals("rm") && args.length == 6) {
+				return this.store.remove((byte[])args[0], (byte[])args[1], (String)args[2], (byte[])args[3]);
+			}
+		}
+		catch (ClassCastException e) {
+			throw new Fault(FAULT_INVALID_PARAMS, "invalid parameters of " + methodName);
+		}
+
+		throw new Fault(FAULT_NO_METHOD, "no such method: " + methodName + "/" + args.length);
+	}
+
+	private byte[] write(Object result) throws SAXException, IOException {
+		return this.write(result, null);
+	}
+
+	private byte[] write(Fault fault) throws SAXException, IOException {
+		return this.write(null, fault);
+	}
+
+	private byte[] write(Object result, Fault fault) throws SAXException, IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputStreamWriter w = new OutputStreamWriter(out, "UTF-8");
+
+		XMLWriterImpl xw = new XMLWriterImpl();
+		xw.setEncoding("UTF-8");
+		xw.setDeclarating(true);
+		xw.setWriter(w);
+
+		XmlRpcWriter writer = new XmlRpcWriter(this.config, xw, this.typeFactory);
+		if (fault != null) {
+			writer.write(this.config, fault.code, fault.getMessage());
+		}
+		else {
+			writer.write(this.config, result);
+		}
+		w.flush();
+
+		return out.toByteArray();
+	}
+
+	private static class Fault extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final int code;
+
+		Fault(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.mock;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import dhtaccess.core.ByteArray;
+import dhtaccess.core.Util;
+
+/**
+ * Key-value pairs held by a {@link MockGateway}, which expire at the end of their TTLs.
+ * A key has any number of values. A pair put again with the same secret hash
+ * has its TTL extended, as Bamboo does.
+ * <p>
+ * The values of a key are kept in the order they were put,
+ * and a placemark is the sequence number of the last value in a page,
+ * so that paging continues correctly while values are put or removed.
+ */
+class MockStore {
+	private static final byte[] EMPTY = new byte[0];
+
+	private final Map<ByteArray,List<Entry>> map = new HashMap<ByteArray,List<Entry>>();
+	private long nextSeq = 1L;
+	private int numValues = 0;
+
+	private static class Entry {
+		final long seq;
+		final byte[] value;
+		final byte[] valueHash;
+		final String hashType;
+		final byte[] secretHash;
+		long expiry;	// System.nanoTime()
+
+		Entry(long seq, byte[] value, String hashType, byte[] secretHash, long expiry) {
+			this.seq = seq;
+			this.value = value;
+			this.valueHash = Util.hashWithSHA1(value);
+			this.hashType = hashType;
+			this.secretHash = secretHash;
+			this.expiry = expiry;
+		}
+
+		/**
+		 * Returns the value in detail as get_details answers it.
+		 * A value put without a secret has an empty hash type and an empty secret hash,
+		 * because XML-RPC has no null.
+		 */
+		Object[] details(int ttl) {
+			return new Object[] { this.value, ttl, (this.hashType != null ? this.hashType : ""),
+					(this.secretHash != null ? this.secretHash : EMPTY) };
+		}
+	}
+
+	/**
+	 * Puts a value. Returns 0, which means success in the protocol.
+	 */
+	synchronized int put(byte[] key, byte[] value, int ttl, String hashType, byte[] secretHash) {
+		long now = System.nanoTime();
+		long expiry = now + ttl * 1000000000L;
+		ByteArray k = new ByteArray(key);
+
+		List<Entry> entries = this.live(k, now);
+		if (entries == null) {
+			entries = new ArrayList<Entry>();
+			this.map.put(k, entries);
+		}
+
+		for (Entry e: entries) {
+			if (Arrays.equals(e.value, value) && Arrays.equals(e.secretHash, secretHash)) {
+				if (expiry - e.expiry > 0L) e.expiry = expiry;
+				return 0;
+			}
+		}
+
+		entries.add(new Entry(this.nextSeq++, value, hashType, secretHash, expiry));
+		this.numValues++;
+
+		return 0;
+	}
+
+	/**
+	 * Removes the values whose hash and secret match. Returns 0, which means success.
+	 * A value put without a secret cannot be removed.
+	 */
+	synchronized int remove(byte[] key, byte[] valueHash, String hashType, byte[] secret) {
+		List<Entry> entries = this.live(new ByteArray(key), System.nanoTime());
+		if (entries == null) return 0;
+
+		byte[] secretHash = Util.hashWithSHA1(secret);
+
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+			Entry e = it.next();
+			if (e.secretHash != null && Arrays.equals(e.valueHash, valueHash)
+					&& Arrays.equals(e.secretHash, secretHash)) {
+				it.remove();
+				this.numValues--;
+			}
+		}
+		if (entries.isEmpty()) this.map.remove(new ByteArray(key));
+
+		return 0;
+	}
+
+	/**
+	 * Returns the result of get or get_details: the values in the page after the placemark
+	 * and the placemark of the next page, which is empty at the last page.
+	 */
+	synchronized Object[] get(byte[] key, int maxValues, byte[] placemark, boolean details) {
+		long now = System.nanoTime();
+		long after = (placemark.length >= 8 ? ByteBuffer.wrap(placemark).getLong() : 0L);
+
+		List<Object> values = new ArrayList<Object>();
+		long last = 0L;
+		byte[] next = EMPTY;
+
+		List<Entry> entries = this.live(new ByteArray(key), now);
+		if (entries != null) {
+			for (Entry e: entries) {
+				if (e.seq <= after) continue;
+
+				if (values.size() >= maxValues) {
+					// there are more values
+					next = ByteBuffer.allocate(8).putLong(last).array();
+					break;
+				}
+
+				if (details) {
+					int ttl = (int)Math.max(0L, (e.expiry - now) / 1000000000L);
+					values.add(e.details(ttl));
+				}
+				else {
+					values.add(e.value);
+				}
+				last = e.seq;
+			}
+		}
+
+		return new Object[] { values.toArray(), next };
+	}
+
+	synchronized int getNumKeys() { return this.map.size(); }
+	synchronized int getNumValues() { return this.numValues; }
+
+	synchronized void clear() {
+		this.map.clear();
+		this.numValues = 0;
+	}
+
+	/**
+	 * Removes all expired values.
+	 */
+	synchronized void expire() {
+		long now = System.nanoTime();
+		for (Iterator<List<Entry>> it = this.map.values().iterator(); it.hasNext(); ) {
+			if (this.expire(it.next(), now)) it.remove();
+		}
+	}
+
+	// the values of a key without expired ones, or null if there are none
+	private List<Entry> live(ByteArray key, long now) {
+		List<Entry> entries = this.map.get(key);
+		if (entries != null && this.expire(entries, now)) {
+			this.map.remove(key);
+			return null;
+		}
+		return entries;
+	}
+
+	// returns true if no value is left
+	private boolean expire(List<Entry> entries, long now) {
+		for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+			if (now - it.next().expiry >= 0L) {
+				it.remove();
+				this.numValues--;
+			}
+		}
+		return entries.isEmpty();
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2006 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import dhtaccess.core.Util;
+
+/**
+ * Measures how the throughput of key hashing scales with the number of threads.
+ */
+public class HashMeasure {
+	private static final String COMMAND = "benchmark-hash";
+
+	private static final int DEFAULT_MAX_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int DEFAULT_KEY_SIZE = 20;
+	private static final long DEFAULT_DURATION = 3 * 1000L;
+	private static final long WARMUP_DURATION = 1000L;
+
+	private static void usage(String command) {
+		System.out.println("usage: " + command
+				+ " [-h] [-t <max threads>] [-s <key size>] [-d <msec per run>]");
+	}
+
+	public static void main(String[] args) {
+		int maxThreads = DEFAULT_MAX_THREADS;
+		int keySize = DEFAULT_KEY_SIZE;
+		long duration = DEFAULT_DURATION;
+
+		// parse options
+		Options options = new Options();
+		options.addOption("h", "help", false, "print help");
+		options.addOption("t", "threads", true, "maximum number of threads");
+		options.addOption("s", "size", true, "size of a key in bytes");
+		options.addOption("d", "duration", true, "duration of a run in msec");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.out.println("There is an invalid option.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		String optVal;
+		if (cmd.hasOption('h')) {
+			usage(COMMAND);
+			System.exit(1);
+		}
+		optVal = cmd.getOptionValue('t');
+		if (optVal != null) {
+			maxThreads = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('s');
+		if (optVal != null) {
+			keySize = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('d');
+		if (optVal != null) {
+			duration = Long.parseLong(optVal);
+		}
+
+		System.out.println("Key size (bytes): " + keySize);
+
+		run(1, keySize, WARMUP_DURATION);	// warm up
+
+		double base = 0.0;
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			double rate = run(threads, keySize, duration);
+			if (threads == 1) base = rate;
+
+			System.out.printf("%3d threads: %12.0f hashes/sec (x%.2f)%n",
+					threads, rate, rate / base);
+
+			if (threads < maxThreads && threads * 2 > maxThreads) {
+				threads = maxThreads / 2;	// measure maxThreads at last
+			}
+		}
+	}
+
+	private static double run(int threads, final int keySize, final long duration) {
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final long[] counts = new long[threads];
+		Thread[] workers = new Thread[threads];
+
+		for (int i = 0; i < threads; i++) {
+			final int index = i;
+			workers[i] = new Thread() {
+				public void run() {
+					byte[] key = new byte[keySize];
+					(new Random(index)).nextBytes(key);
+
+					try {
+						startLatch.await();
+					}
+					catch (InterruptedException e) { return; }
+
+					long deadline = System.currentTimeMillis() + duration;
+					long count = 0;
+					byte[] h = null;
+					do {
+						for (int j = 0; j < 1000; j++) {
+							h = Util.hashWithSHA1(key);
+							key[0] = h[0];
+						}
+						count += 1000;
+					} while (System.currentTimeMillis() < deadline);
+
+					counts[index] = count;
+				}
+			};
+			workers[i].start();
+		}
+
+		long startTime = System.nanoTime();
+		startLatch.countDown();
+
+		for (Thread t: workers) {
+			try {
+				t.join();
+			}
+			catch (InterruptedException e) { /* ignore */ }
+		}
+		double elapsedSec = (System.nanoTime() - startTime) / 1.0e9;
+
+		long total = 0;
+		for (long c: counts) total += c;
+
+		return total / elapsedSec;
+	}
+}
@@ -16,10 +16,12 @@
 
 package dhtaccess.benchmark;
 
-import java.io.UnsupportedEncodingException;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.util.Random;
-import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -28,27 +30,33 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
 import dhtaccess.core.DHTAccessor;
-import dhtaccess.core.DetailedGetResult;
+import dhtaccess.core.DHTException;
+import dhtaccess.core.DHTStatistics;
+import dhtaccess.core.HttpConnectionPool;
+import dhtaccess.core.MultiGatewayDHTAccessor;
 
 public class LatencyMeasure {
 	private static final String COMMAND = "benchmark-latency";
 
-	private static int KEY_PREFIX_LENGTH = 3;
-	private static String VALUE_PREFIX = "value";
-	private static final String ENCODE = "US-ASCII";
-	private static final int TTL = 900;
-
 	private static final int DEFAULT_REPEATS = 1000;
 
 	private static void usage(String command) {
 		System.out.println("usage: " + command
-				+ " [-h] [-d] [-r <repeats>] [-n] <gateway> ... (e.g. http://localhost:5851/)");
+				+ " [-h] [-d] [-r <repeats>] [-n] [-k] [-b] [-e] [-z] [-y] [-c <file>] [-o <file>] [-w <file>] <gateway> ... (e.g. http://localhost:5851/)");
 	}
 
 	public static void main(String[] args) {
 		boolean details = false;
 		int repeats = DEFAULT_REPEATS;
 		boolean doPut = true;
+		boolean keepAlive = false;
+		boolean balance = false;
+		boolean hedge = false;
+		boolean compression = false;
+		boolean countBytes = false;
+		String csvFile = null;
+		String histogramFile = null;
+		String workloadFile = null;
 
 		// parse options
 		Options options = new Options();
@@ -56,6 +64,14 @@ public class LatencyMeasure {
 		options.addOption("d", "details", false, "requests secret hash and TTL");
 		options.addOption("r", "repeats", true, "number of requests");
 		options.addOption("n", "no-put", false, "does not put");
+		options.addOption("k", "keep-alive", false, "reuses persistent connections to gateways");
+		options.addOption("b", "balance", false, "sends each request to the gateway with the least latency and load");
+		options.addOption("e", "hedge", false, "sends a slow get to another gateway as well, implies -b");
+		options.addOption("z", "compress", false, "compresses values");
+		options.addOption("y", "bytes", false, "counts bytes sent and received, which adds the overhead of metrics");
+		options.addOption("c", "csv", true, "file to write the latency of every request to in CSV");
+		options.addOption("o", "output", true, "file to write the latency distributions to");
+		options.addOption("w", "workload", true, "properties file describing the workload");
 
 		CommandLineParser parser = new PosixParser();
 		CommandLine cmd = null;
@@ -82,6 +98,34 @@ public class LatencyMeasure {
 		if (cmd.hasOption('n')) {
 			doPut = false;
 		}
+		if (cmd.hasOption('k')) {
+			keepAlive = true;
+		}
+		if (cmd.hasOption('b')) {
+			balance = true;
+		}
+		if (cmd.hasOption('e')) {
+			balance = true;
+			hedge = true;
+		}
+		if (cmd.hasOption('z')) {
+			compression = true;
+		}
+		if (cmd.hasOption('y')) {
+			countBytes = true;
+		}
+		optVal = cmd.getOptionValue('c');
+		if (optVal != null) {
+			csvFile = optVal;
+		}
+		optVal = cmd.getOptionValue('o');
+		if (optVal != null) {
+			histogramFile = optVal;
+		}
+		optVal = cmd.getOptionValue('w');
+		if (optVal != null) {
+			workloadFile = optVal;
+		}
 
 		args = cmd.getArgs();
 
@@ -92,93 +136,141 @@ public class LatencyMeasure {
 		}
 
 		// prepare for RPC
-		int numAccessor = args.length;
+		int numAccessor = (balance ? 1 : args.length);
 		DHTAccessor[] accessorArray = new DHTAccessor[numAccessor];
+		String[] names = (balance ? new String[] { "balanced" } : args);
+		HttpConnectionPool pool = (keepAlive ? new HttpConnectionPool() : null);
+		DHTStatistics stats = (countBytes ? new DHTStatistics() : null);	// to count bytes on the wire
 		try {
-			for (int i = 0; i < numAccessor; i++) {
-				accessorArray[i] = new DHTAccessor(args[i]);
+			if (balance) {
+				MultiGatewayDHTAccessor acc = new MultiGatewayDHTAccessor(args);
+				acc.setConnectionPool(pool);
+				acc.setHedging(hedge);
+				accessorArray[0] = acc;
+			}
+			else {
+				for (int i = 0; i < numAccessor; i++) {
+					accessorArray[i] = new DHTAccessor(args[i]);
+					accessorArray[i].setConnectionPool(pool);
+				}
+			}
+
+			for (DHTAccessor acc: accessorArray) {
+				if (stats != null) acc.setMetrics(stats);
+				acc.setCompression(compression);
 			}
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 
-		// generate key prefix
-		Random rnd = new Random(System.currentTimeMillis());
-
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < KEY_PREFIX_LENGTH; i++) {
-			sb.append((char)('a' + rnd.nextInt(26)));
-		}
-		String keyPrefix = sb.toString();
-		String valuePrefix = VALUE_PREFIX;
+		Workload workload = Workload.forBenchmark(workloadFile, repeats, details);
+		Random rnd = workload.newRandom(0);
 
 		// benchmarking
+		workload.print(System.out);
 		System.out.println("Repeats " + repeats + " times.");
 
+		// each request is timed and recorded for its operation and gateway
+		PrintStream csv = null;
+		if (csvFile != null) {
+			try {
+				csv = new PrintStream(new BufferedOutputStream(new FileOutputStream(csvFile)));
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		LatencyRecorder recorder = new LatencyRecorder(csv);
+
 		if (doPut) {
-			System.out.println("Putting: " + keyPrefix + "<number>");
+			System.out.println("Putting: " + workload.getKeyPrefix() + "<number>");
 
-			for (int i = 0; i < repeats; i++) {
-				byte[] key = null, value = null;
-				try {
-					key = (keyPrefix + i).getBytes(ENCODE);
-					value = (valuePrefix + i).getBytes(ENCODE);
-				}
-				catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
-					System.exit(1);
-				}
+			int count = 0, total = 0;
+			for (int i = 0; i < workload.getNumKeys(); i++) {
+				byte[] key = workload.getKey(i);
+
+				for (int j = 0; j < workload.getValuesPerKey(i); j++) {
+					byte[] value = workload.getValue(i, j);
+
+					int accIndex = rnd.nextInt(numAccessor);
+					DHTAccessor acc = accessorArray[accIndex];
 
-				int accIndex = rnd.nextInt(numAccessor);
-				DHTAccessor acc = accessorArray[accIndex];
-				acc.put(key, value, TTL);
+					boolean succeeded = false;
+					long start = System.nanoTime();
+					try {
+						succeeded = (acc.put(key, value, workload.getPreloadTTL(), workload.getSecret()) == 0);
+					}
+					catch (DHTException e) {
+						// counted as a failure
+					}
+					recorder.record("put", names[accIndex], start, System.nanoTime() - start, succeeded);
+
+					total++;
+					if (succeeded) count++;
+				}
 			}
+
+			System.out.println("Rate of successful puts: " + count + " / " + total);
 		}
 
-		System.out.println("Benchmarking by getting.");
+		System.out.println("Benchmarking.");
+		if (stats != null) stats.reset();
 
 		int count = 0;
-		long startTime = System.currentTimeMillis();
+		long startTime = System.nanoTime();
 
-		if (details) {
-			for (int i = 0; i < repeats; i++) {
-				byte[] key = null;
-				try {
-					key = (keyPrefix + i).getBytes(ENCODE);
-				}
-				catch (UnsupportedEncodingException e) {
-					e.printStackTrace(); System.exit(1);
-				}
+		for (int i = 0; i < repeats; i++) {
+			Workload.Request req = workload.next(rnd);
 
-				int accIndex = rnd.nextInt(numAccessor);
-				DHTAccessor acc = accessorArray[accIndex];
-				Set<DetailedGetResult> valueSet = acc.getDetails(key);
-				if (valueSet != null && !valueSet.isEmpty()) {
-					count++;
-				}
+			int accIndex = rnd.nextInt(numAccessor);
+			DHTAccessor acc = accessorArray[accIndex];
+
+			boolean succeeded = false;
+			long start = System.nanoTime();
+			try {
+				succeeded = req.run(acc);
+			}
+			catch (DHTException e) {
+				// counted as a failure
 			}
+			recorder.record(req.getOperation().toString(), names[accIndex],
+					start, System.nanoTime() - start, succeeded);
+
+			if (succeeded) count++;
 		}
-		else {
-			for (int i = 0; i < repeats; i++) {
-				byte[] key = null;
-				try {
-					key = (keyPrefix + i).getBytes(ENCODE);
-				}
-				catch (UnsupportedEncodingException e) {
-					e.printStackTrace(); System.exit(1);
-				}
 
-				int accIndex = rnd.nextInt(numAccessor);
-				DHTAccessor acc = accessorArray[accIndex];
-				Set<byte[]> valueSet = acc.get(key);
-				if (valueSet != null && !valueSet.isEmpty()) {
-					count++;
-				}
-			}
+		System.out.println((System.nanoTime() - startTime) / 1000000L + " msec.");
+		System.out.println("Rate of successful requests: " + count + " / " + repeats);
+		recorder.printSummaries(System.out);
+		if (stats != null) {
+			System.out.println("Bytes sent: " + stats.getBytesSent()
+					+ ", received: " + stats.getBytesReceived()
+					+ (compression ? " (values compressed)" : ""));
 		}
 
-		System.out.println(System.currentTimeMillis() - startTime + " msec.");
-		System.out.println("Rate of successful gets: " + count + " / " + repeats);
+		if (csv != null) {
+			csv.close();
+		}
+		if (histogramFile != null) {
+			try {
+				PrintStream out = new PrintStream(new FileOutputStream(histogramFile));
+				recorder.printDistributions(out);
+				out.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (pool != null) {
+			System.out.println("Connections opened: " + pool.getNumOpenedConnections()
+					+ ", reused: " + pool.getNumReusedConnections());
+		}
+		if (hedge) {
+			MultiGatewayDHTAccessor acc = (MultiGatewayDHTAccessor)accessorArray[0];
+			System.out.println("Hedged requests: " + acc.getHedgeCount()
+					+ ", answered first: " + acc.getHedgeWinCount());
+		}
 	}
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.benchmark;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import dhtaccess.core.LatencyHistogram;
+
+/**
+ * Records latencies in a histogram for each pair of an operation and a gateway,
+ * and optionally writes every latency to a CSV file.
+ */
+class LatencyRecorder {
+	private static final double NANOS_PER_MILLI = 1.0e6;
+
+	// operation -> gateway -> histogram, in the order of the first record
+	private final Map<String,Map<String,LatencyHistogram>> histograms =
+		new LinkedHashMap<String,Map<String,LatencyHistogram>>();
+	private final PrintStream csv;
+	private final long startTime = System.nanoTime();
+
+	/**
+	 * @param csv the stream to write a line of every latency to, or null
+	 */
+	LatencyRecorder(PrintStream csv) {
+		this.csv = csv;
+
+		if (this.csv != null) {
+			this.csv.println("operation,gateway,start (msec),latency (msec),succeeded");
+		}
+	}
+
+	/**
+	 * Records the latency of a request which started at the specified System.nanoTime().
+	 */
+	synchronized void record(String operation, String gateway, long start, long latency,
+			boolean succeeded) {
+		Map<String,LatencyHistogram> byGateway = this.histograms.get(operation);
+		if (byGateway == null) {
+			byGateway = new LinkedHashMap<String,LatencyHistogram>();
+			this.histograms.put(operation, byGateway);
+		}
+
+		LatencyHistogram h = byGateway.get(gateway);
+		if (h == null) {
+			h = new LatencyHistogram();
+			byGateway.put(gateway, h);
+		}
+
+		h.record(latency);
+
+		if (this.csv != null) {
+			this.csv.printf("%s,%s,%.3f,%.3f,%b%n", operation, gateway,
+					(start - this.startTime) / NANOS_PER_MILLI, latency / NANOS_PER_MILLI, succeeded);
+		}
+	}
+
+	/**
+	 * Prints a summary line in msec for each operation and gateway,
+	 * and for each operation over all gateways.
+	 */
+	synchronized void printSummaries(PrintStream out) {
+		for (Map.Entry<String,Map<String,LatencyHistogram>> op: this.histograms.entrySet()) {
+			LatencyHistogram all = new LatencyHistogram();
+
+			for (Map.Entry<String,LatencyHistogram> gw: op.getValue().entrySet()) {
+				gw.getValue().printSummary(out, op.getKey() + " " + gw.getKey() + " (msec):",
+						NANOS_PER_MILLI);
+				all.add(gw.getValue());
+			}
+
+			if (op.getValue().size() > 1) {
+				all.printSummary(out, op.getKey() + " all (msec):", NANOS_PER_MILLI);
+			}
+		}
+	}
+
+	/**
+	 * Prints the percentile distribution in msec for each operation and gateway.
+	 */
+	synchronized void printDistributions(PrintStream out) {
+		for (Map.Entry<String,Map<String,LatencyHistogram>> op: this.histograms.entrySet()) {
+			for (Map.Entry<String,LatencyHistogram> gw: op.getValue().entrySet()) {
+				out.println("# " + op.getKey() + " " + gw.getKey() + " (msec)");
+				gw.getValue().printPercentileDistribution(out, NANOS_PER_MILLI);
+				out.println();
+			}
+		}
+	}
+}
@@ -16,13 +16,19 @@
 
 package dhtaccess.benchmark;
 
-import java.io.UnsupportedEncodingException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,23 +37,34 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
 import dhtaccess.core.DHTAccessor;
-import dhtaccess.core.DetailedGetResult;
-
+import dhtaccess.core.DHTException;
+import dhtaccess.core.HttpConnectionPool;
+import dhtaccess.core.LatencyHistogram;
+import dhtaccess.core.MultiGatewayDHTAccessor;
+
+/**
+ * Measures latencies under a given rate of requests, which are drawn from a {@link Workload}.
+ * Requests are sent at the times of a fixed schedule regardless of how long earlier ones take,
+ * and the latency of a request is measured from its time in the schedule.
+ * <p>
+ * With -m, the maximum sustainable throughput is found instead
+ * by ramping up workers which send requests in closed loops.
+ */
 public class ThroughputMeasure {
 	private static final String COMMAND = "benchmark-throughput";
 
-	private static int KEY_PREFIX_LENGTH = 3;
-	private static String VALUE_PREFIX = "value";
-	private static final String ENCODE = "US-ASCII";
-	private static final int TTL = 900;
-
 	private static final int DEFAULT_REPEATS = 1000;
 	private static final int DEFAULT_QUERIES_PER_SEC = 1000;
 	private static final long INITIAL_SLEEP = 3 * 1000L;
+	private static final int DEFAULT_THREADS = 200;
+	private static final long DEFAULT_INTERVAL = 1000L;	// msec
+	private static final long DEFAULT_STEP_DURATION = 5 * 1000L;	// msec
+	private static final double DEFAULT_MAX_LATENCY = 500.0;	// msec
+	private static final double DEFAULT_MAX_ERROR_RATE = 0.01;
 
 	private static void usage(String command) {
 		System.out.println("usage: " + command
-				+ " [-h] [-d] [-r <repeats>] [-f <queries per sec>] [-n] <gateway> ... (e.g. http://localhost:5851/)");
+				+ " [-h] [-d] [-r <repeats>] [-f <queries per sec>] [-n] [-k] [-b] [-e] [-t <threads>] [-i <msec>] [-o <file>] [-m [-s <msec>] [-l <msec>] [-x <ratio>]] [-w <file>] <gateway> ... (e.g. http://localhost:5851/)");
 	}
 
 	public static void main(String[] args) {
@@ -55,6 +72,17 @@ public class ThroughputMeasure {
 		int repeats = DEFAULT_REPEATS;
 		int queryFreq = DEFAULT_QUERIES_PER_SEC;
 		boolean doPut = true;
+		boolean keepAlive = false;
+		boolean balance = false;
+		boolean hedge = false;
+		int threads = DEFAULT_THREADS;
+		long interval = DEFAULT_INTERVAL;
+		String histogramFile = null;
+		boolean ramp = false;
+		long stepDuration = DEFAULT_STEP_DURATION;
+		double maxLatency = DEFAULT_MAX_LATENCY;
+		double maxErrorRate = DEFAULT_MAX_ERROR_RATE;
+		String workloadFile = null;
 
 		// parse options
 		Options options = new Options();
@@ -63,6 +91,17 @@ public class ThroughputMeasure {
 		options.addOption("r", "repeats", true, "number of requests");
 		options.addOption("f", "freq", true, "number of queries per second");
 		options.addOption("n", "no-put", false, "does not put");
+		options.addOption("k", "keep-alive", false, "reuses persistent connections to gateways");
+		options.addOption("b", "balance", false, "sends each request to the gateway with the least latency and load");
+		options.addOption("e", "hedge", false, "sends a slow get to another gateway as well, implies -b");
+		options.addOption("t", "threads", true, "number of threads sending requests");
+		options.addOption("i", "interval", true, "interval of latency reports in msec");
+		options.addOption("o", "output", true, "file to write the latency distribution to");
+		options.addOption("m", "ramp", false, "finds the maximum sustainable throughput with up to <threads> workers");
+		options.addOption("s", "step", true, "duration of a step of -m in msec");
+		options.addOption("l", "max-latency", true, "limit of the 99th percentile latency for -m in msec");
+		options.addOption("x", "max-errors", true, "limit of the rate of failed requests for -m");
+		options.addOption("w", "workload", true, "properties file describing the workload");
 
 		CommandLineParser parser = new PosixParser();
 		CommandLine cmd = null;
@@ -93,6 +132,47 @@ public class ThroughputMeasure {
 		if (cmd.hasOption('n')) {
 			doPut = false;
 		}
+		if (cmd.hasOption('k')) {
+			keepAlive = true;
+		}
+		if (cmd.hasOption('b')) {
+			balance = true;
+		}
+		if (cmd.hasOption('e')) {
+			balance = true;
+			hedge = true;
+		}
+		optVal = cmd.getOptionValue('t');
+		if (optVal != null) {
+			threads = Integer.parseInt(optVal);
+		}
+		optVal = cmd.getOptionValue('i');
+		if (optVal != null) {
+			interval = Long.parseLong(optVal);
+		}
+		optVal = cmd.getOptionValue('o');
+		if (optVal != null) {
+			histogramFile = optVal;
+		}
+		if (cmd.hasOption('m')) {
+			ramp = true;
+		}
+		optVal = cmd.getOptionValue('s');
+		if (optVal != null) {
+			stepDuration = Long.parseLong(optVal);
+		}
+		optVal = cmd.getOptionValue('l');
+		if (optVal != null) {
+			maxLatency = Double.parseDouble(optVal);
+		}
+		optVal = cmd.getOptionValue('x');
+		if (optVal != null) {
+			maxErrorRate = Double.parseDouble(optVal);
+		}
+		optVal = cmd.getOptionValue('w');
+		if (optVal != null) {
+			workloadFile = optVal;
+		}
 
 		args = cmd.getArgs();
 
@@ -102,129 +182,376 @@ public class ThroughputMeasure {
 			System.exit(1);
 		}
 
-		(new ThroughputMeasure()).start(details, repeats, queryFreq, doPut, args);
+		ThroughputMeasure bench = new ThroughputMeasure(threads, interval, histogramFile);
+		if (ramp) {
+			bench.setRamp(stepDuration, maxLatency, maxErrorRate);
+		}
+		Workload workload = Workload.forBenchmark(workloadFile, repeats, details);
+		bench.start(workload, repeats, queryFreq, doPut, keepAlive, balance, hedge, args);
 	}
 
-	private void start(boolean details, int repeats, int queryFreq, boolean doPut, String[] args) {
-		this.repeats = repeats;
-
+	private void start(Workload workload, int repeats, int queryFreq, boolean doPut, boolean keepAlive,
+			boolean balance, boolean hedge, String[] args) {
 		// prepare for RPC
-		int numAccessor = args.length;
-		DHTAccessor[] accessorArray = new DHTAccessor[numAccessor];
-		try {
-			for (int i = 0; i < numAccessor; i++) {
-				accessorArray[i] = new DHTAccessor(args[i]);
-			}
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-			System.exit(1);
-		}
-
-		// generate key prefix
-		Random rnd = new Random(System.currentTimeMillis());
+		HttpConnectionPool pool = (keepAlive ? new HttpConnectionPool() : null);
+		DHTAccessor[] accessorArray = createAccessors(args, balance, hedge, pool);
+		int numAccessor = accessorArray.length;
 
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < KEY_PREFIX_LENGTH; i++) {
-			sb.append((char)('a' + rnd.nextInt(26)));
-		}
-		String keyPrefix = sb.toString();
-		String valuePrefix = VALUE_PREFIX;
+		Random rnd = workload.newRandom(0);
 
 		// benchmarking
+		workload.print(System.out);
 		System.out.println("Repeats " + repeats + " times.");
-		System.out.println("Query frequency (times/sec): " + queryFreq);
+		if (!this.ramp) {
+			System.out.println("Query frequency (times/sec): " + queryFreq);
+		}
 
 		if (doPut) {
-			System.out.println("Putting: " + keyPrefix + "<number>");
+			System.out.println("Putting: " + workload.getKeyPrefix() + "<number>");
 
-			for (int i = 0; i < repeats; i++) {
-				byte[] key = null, value = null;
-				try {
-					key = (keyPrefix + i).getBytes(ENCODE);
-					value = (valuePrefix + i).getBytes(ENCODE);
-				}
-				catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
-					System.exit(1);
+			// distribute pairs to gateways, each of which puts them in a batch
+			List<List<byte[]>> keyLists = new ArrayList<List<byte[]>>();
+			List<List<byte[]>> valueLists = new ArrayList<List<byte[]>>();
+			for (int i = 0; i < numAccessor; i++) {
+				keyLists.add(new ArrayList<byte[]>());
+				valueLists.add(new ArrayList<byte[]>());
+			}
+			for (int i = 0; i < workload.getNumKeys(); i++) {
+				byte[] key = workload.getKey(i);
+
+				for (int j = 0; j < workload.getValuesPerKey(i); j++) {
+					int accIndex = rnd.nextInt(numAccessor);
+					keyLists.get(accIndex).add(key);
+					valueLists.get(accIndex).add(workload.getValue(i, j));
 				}
+			}
+
+			for (int accIndex = 0; accIndex < numAccessor; accIndex++) {
+				byte[][] keys = keyLists.get(accIndex).toArray(new byte[0][]);
+				byte[][] values = valueLists.get(accIndex).toArray(new byte[0][]);
 
-				int accIndex = rnd.nextInt(numAccessor);
 				DHTAccessor acc = accessorArray[accIndex];
-				acc.put(key, value, TTL);
+				try {
+					acc.putAll(keys, values, workload.getPreloadTTL(), workload.getSecret());
+				}
+				catch (DHTException e) {
+					System.out.println("Some puts failed: " + e);
+				}
 			}
 		}
 
-		System.out.println("Benchmarking by getting.");
-		System.out.println("(Start getting " + INITIAL_SLEEP + " msec later.)");
+		if (this.ramp) {
+			this.ramp(workload, balance, hedge, pool, args);
+			return;
+		}
+
+		System.out.println("Benchmarking.");
+		System.out.println("(Start requesting " + INITIAL_SLEEP + " msec later.)");
 
-		Timer timer = new Timer("Benchmark driving timer", false /* isDaemon */);
-		this.count = this.repeats;
+		try {
+			Thread.sleep(INITIAL_SLEEP);
+		}
+		catch (InterruptedException e) { /* ignore */ }
 
-		this.startTime = System.currentTimeMillis() + INITIAL_SLEEP;
+		// requests are run by the workers at the times intended by the schedule,
+		// however late the earlier requests are
+		ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+		CountDownLatch finished = new CountDownLatch(repeats);
+
+		long startTime = System.nanoTime();
+		Thread reporter = this.startReporter(startTime);
 
 		for (int i = 0; i < repeats; i++) {
-			byte[] key = null;
+			Workload.Request req = workload.next(rnd);
+
+			int accIndex = rnd.nextInt(numAccessor);
+			DHTAccessor acc = accessorArray[accIndex];
+
+			long intendedTime = startTime + (long)(1.0e9 * i / queryFreq);
+			long wait;
+			while ((wait = intendedTime - System.nanoTime()) > 0L) {
+				LockSupport.parkNanos(wait);
+			}
+
+			workers.execute(new Querier(acc, req, intendedTime, finished));
+		}
+
+		boolean interrupted = false;
+		while (true) {
 			try {
-				key = (keyPrefix + i).getBytes(ENCODE);
+				finished.await();
+				break;
 			}
-			catch (UnsupportedEncodingException e) {
-				e.printStackTrace(); System.exit(1);
+			catch (InterruptedException e) {
+				interrupted = true;
 			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
 
-			int accIndex = rnd.nextInt(numAccessor);
-			DHTAccessor acc = accessorArray[accIndex];
+		long elapsed = System.nanoTime() - startTime;
+		workers.shutdown();
+		reporter.interrupt();
+		try {
+			reporter.join();
+		}
+		catch (InterruptedException e) { /* ignore */ }
+
+		this.total.add(this.recorder.takeInterval());
+
+		System.out.println("Rate of successful requests: " + this.succeeded.get() + " / " + repeats);
+		System.out.println(elapsed / 1000000L + " msec.");
+		System.out.printf("Achieved rate (requests/sec): %.1f%n", repeats / (elapsed / 1.0e9));
+		this.total.printSummary(System.out, "Latency (msec):", 1.0e6);
+
+		if (this.histogramFile != null) {
+			try {
+				PrintStream out = new PrintStream(new FileOutputStream(this.histogramFile));
+				this.total.printPercentileDistribution(out, 1.0e6);
+				out.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
-			TimerTask task = new GetQuerier(acc, key, details);
-			timer.schedule(task, new Date(this.startTime + (long)(1000.0 * i / queryFreq)));
+	private static DHTAccessor[] createAccessors(String[] gateways, boolean balance, boolean hedge,
+			HttpConnectionPool pool) {
+		DHTAccessor[] accessorArray = new DHTAccessor[balance ? 1 : gateways.length];
+		try {
+			if (balance) {
+				MultiGatewayDHTAccessor acc = new MultiGatewayDHTAccessor(gateways);
+				acc.setConnectionPool(pool);
+				acc.setHedging(hedge);
+				accessorArray[0] = acc;
+			}
+			else {
+				for (int i = 0; i < accessorArray.length; i++) {
+					accessorArray[i] = new DHTAccessor(gateways[i]);
+					accessorArray[i].setConnectionPool(pool);
+				}
+			}
+		} catch (MalformedURLException e) {
+			e.printStackTrace();
+			System.exit(1);
 		}
+
+		return accessorArray;
 	}
 
-	private long startTime;
+	/**
+	 * Finds the maximum sustainable throughput with 1, 2, ... of the gateways.
+	 * For each number of gateways, the number of workers each of which sends
+	 * one request after another is doubled step by step, until the 99th percentile latency
+	 * or the rate of failed requests of a step exceeds its limit.
+	 */
+	private void ramp(Workload workload, boolean balance, boolean hedge,
+			HttpConnectionPool pool, String[] gateways) {
+		System.out.println("Ramping up workers, " + this.stepDuration + " msec per step.");
+		System.out.printf("Limits: p99 latency %.1f msec, failed requests %.2f%%%n",
+				this.maxLatency, this.maxErrorRate * 100.0);
+
+		double[] maxThroughputs = new double[gateways.length];
+		int[] bestWorkers = new int[gateways.length];
+
+		for (int numGateways = 1; numGateways <= gateways.length; numGateways++) {
+			String[] subset = new String[numGateways];
+			System.arraycopy(gateways, 0, subset, 0, numGateways);
+			DHTAccessor[] accessorArray = createAccessors(subset, balance, hedge, pool);
+
+			for (int workers = 1; ; workers *= 2) {
+				if (workers > this.threads) workers = this.threads;
+
+				Step step = this.runStep(accessorArray, workload, workers);
+
+				double throughput = step.succeeded / (step.elapsed / 1.0e9);
+				long total = step.succeeded + step.failed;
+				double errorRate = (total > 0L ? (double)step.failed / total : 1.0);
+				double p99 = step.latencies.getValueAtPercentile(99.0) / 1.0e6;
+
+				System.out.printf("%2d gateways %4d workers: %10.1f requests/sec, failed %6.2f%%,",
+						numGateways, workers, throughput, errorRate * 100.0);
+				step.latencies.printSummary(System.out, "", 1.0e6);
+
+				if (p99 > this.maxLatency || errorRate > this.maxErrorRate) {
+					System.out.println("Saturated.");
+					break;
+				}
+
+				if (throughput > maxThroughputs[numGateways - 1]) {
+					maxThroughputs[numGateways - 1] = throughput;
+					bestWorkers[numGateways - 1] = workers;
+				}
+
+				if (workers >= this.threads) break;
+			}
+
+			for (DHTAccessor acc: accessorArray) {
+				acc.shutdown();
+			}
+		}
 
-	private int repeats = 0;
-	private int count = 0;
-	private int succeed = 0;
-	synchronized void succeeded() {
-		this.succeed++;
-		this.failed();
+		System.out.println("Maximum sustainable throughput:");
+		for (int i = 0; i < gateways.length; i++) {
+			System.out.printf("%2d gateways: %10.1f requests/sec with %d workers%n",
+					i + 1, maxThroughputs[i], bestWorkers[i]);
+		}
 	}
-	synchronized void failed() {
-		this.count--;
-		if (this.count <= 0) {
-			System.out.println("Rate of successful gets: " + this.succeed + " / " + this.repeats);
-			System.out.println(System.currentTimeMillis() - this.startTime + " msec.");
-			System.exit(0);
+
+	// runs workers sending requests one after another for a step
+	private Step runStep(final DHTAccessor[] accessorArray, final Workload workload, int workers) {
+		final Step step = new Step();
+		final AtomicLong succeeded = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final long endTime = System.nanoTime() + this.stepDuration * 1000000L;
+
+		Thread[] threads = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			final Random rnd = workload.newRandom(i + 1);
+
+			threads[i] = new Thread("Benchmark worker " + i) {
+				public void run() {
+					long start;
+					while ((start = System.nanoTime()) < endTime) {
+						DHTAccessor acc = accessorArray[rnd.nextInt(accessorArray.length)];
+						Workload.Request req = workload.next(rnd);
+
+						boolean succeed = false;
+						try {
+							succeed = req.run(acc);
+						}
+						catch (DHTException e) {
+							// counted as a failure
+						}
+
+						step.latencies.record(System.nanoTime() - start);
+						if (succeed) {
+							succeeded.incrementAndGet();
+						}
+						else {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			};
+		}
+
+		long startTime = System.nanoTime();
+		for (Thread t: threads) t.start();
+		for (Thread t: threads) {
+			try {
+				t.join();
+			}
+			catch (InterruptedException e) { /* ignore */ }
 		}
+
+		step.elapsed = System.nanoTime() - startTime;
+		step.succeeded = succeeded.get();
+		step.failed = failed.get();
+
+		return step;
+	}
+
+	private static class Step {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		long succeeded;
+		long failed;
+		long elapsed;	// nsec
+	}
+
+	// prints the latencies of every interval
+	private Thread startReporter(final long startTime) {
+		Thread t = new Thread("Benchmark reporter") {
+			public void run() {
+				long next = startTime;
+				while (true) {
+					next += ThroughputMeasure.this.interval * 1000000L;
+
+					long wait;
+					while ((wait = next - System.nanoTime()) > 0L) {
+						LockSupport.parkNanos(wait);
+						if (this.isInterrupted()) return;
+					}
+
+					LatencyHistogram h = ThroughputMeasure.this.recorder.takeInterval();
+					ThroughputMeasure.this.total.add(h);
+
+					h.printSummary(System.out,
+							String.format("%7.1f sec:", (next - startTime) / 1.0e9), 1.0e6);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+
+		return t;
+	}
+
+	private final int threads;
+	private final long interval;	// msec
+	private final String histogramFile;
+
+	private boolean ramp = false;
+	private long stepDuration;	// msec
+	private double maxLatency;	// msec
+	private double maxErrorRate;
+
+	/**
+	 * Makes the benchmark find the maximum sustainable throughput in closed loops
+	 * instead of sending requests at a fixed rate.
+	 */
+	void setRamp(long stepDuration, double maxLatency, double maxErrorRate) {
+		this.ramp = true;
+		this.stepDuration = stepDuration;
+		this.maxLatency = maxLatency;
+		this.maxErrorRate = maxErrorRate;
+	}
+
+	// latencies measured from the intended start time of each request
+	private final LatencyHistogram recorder = new LatencyHistogram();
+	private final LatencyHistogram total = new LatencyHistogram();
+	private final AtomicInteger succeeded = new AtomicInteger();
+
+	ThroughputMeasure(int threads, long interval, String histogramFile) {
+		this.threads = threads;
+		this.interval = interval;
+		this.histogramFile = histogramFile;
 	}
 
-	private class GetQuerier extends TimerTask {
+	private class Querier implements Runnable {
 		private DHTAccessor accessor;
-		private byte[] key;
-		private boolean detailed;
+		private Workload.Request request;
+		private long intendedTime;
+		private CountDownLatch finished;
 
-		GetQuerier(DHTAccessor accessor, byte[] key, boolean detailed) {
+		Querier(DHTAccessor accessor, Workload.Request request,
+				long intendedTime, CountDownLatch finished) {
 			this.accessor = accessor;
-			this.key = key;
-			this.detailed = detailed;
+			this.request = request;
+			this.intendedTime = intendedTime;
+			this.finished = finished;
 		}
 
 		public void run() {
 			boolean succeed = false;
 
-			if (this.detailed) {
-				Set<DetailedGetResult> results = this.accessor.getDetails(this.key);
-				if (!results.isEmpty()) succeed = true;
+			try {
+				succeed = this.request.run(this.accessor);
 			}
-			else {
-				Set<byte[]> results = this.accessor.get(this.key);
-				if (!results.isEmpty()) succeed = true;
+			catch (DHTException e) {
+				// counted as a failure
 			}
+			finally {
+				// any other exception is counted as a failure as well,
+				// and the request is counted as finished so that the measurement ends
 
-			if (succeed) {
-				ThroughputMeasure.this.succeeded();
-			}
-			else {
-				ThroughputMeasure.this.failed();
+				// the time waiting for a worker counts, which a closed loop would omit
+				ThroughputMeasure.this.recorder.record(System.nanoTime() - this.intendedTime);
+
+				if (succeed) {
+					ThroughputMeasure.this.succeeded.incrementAndGet();
+				}
+				this.finished.countDown();
 			}
 		}
 	}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.benchmark;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import dhtaccess.core.ByteArray;
+import dhtaccess.core.DHTAccessor;
+import dhtaccess.core.DHTException;
+import dhtaccess.core.DetailedGetResult;
+
+/**
+ * A model of the requests sent to a DHT by benchmarks, given by properties:
+ * <pre>
+ * workload.seed=42                   seed of all random choices, the current time by default
+ * workload.keys=1000                 number of keys
+ * workload.keyPrefix=abc             prefix of the keys, chosen with the seed by default
+ * workload.keyDistribution=zipf:0.99 popularity of keys: uniform, zipf:&lt;exponent&gt;
+ *                                    or hotspot:&lt;fraction of keys&gt;:&lt;fraction of requests&gt;
+ * workload.valueSize=10-1000         size of a value in bytes, a number or a uniform range
+ * workload.valuesPerKey=1-5          number of values of a key, a number or a uniform range
+ * workload.ttl=600-3600              TTL of a put in seconds, a number or a uniform range
+ * workload.mix=get:80,put:15,rm:5    ratio of put, get, get_details and rm requests
+ * </pre>
+ * The keys and values are the same for the same seed, and so are the requests
+ * drawn from a Random given by {@link #newRandom(int)}.
+ * A value is identified by its key and its index below the number of values of the key,
+ * so that a value removed or put again is one of the values put in advance.
+ */
+public class Workload {
+	private static final String ENCODE = "US-ASCII";
+	private static final int KEY_PREFIX_LENGTH = 3;
+
+	public enum Operation {
+		PUT("put"), GET("get"), GET_DETAILS("get_details"), REMOVE("rm");
+
+		private final String name;
+
+		Operation(String name) { this.name = name; }
+
+		public String toString() { return this.name; }
+	}
+
+	private final long seed;
+	private final int numKeys;
+	private final String keyPrefix;
+	private final String keyDistribution;
+	private final int[] valueSize;
+	private final int[] valuesPerKey;
+	private final int[] ttl;
+	private final double[] mix = new double[Operation.values().length];	// cumulative
+	private final byte[] secret;
+
+	// cumulative probabilities of keys for zipf
+	private double[] zipfCDF = null;
+	// for hotspot
+	private int hotKeys = 0;
+	private double hotRatio = 0.0;
+
+	/**
+	 * Reads a workload from a properties file, whose missing properties are taken from the defaults.
+	 */
+	public static Workload load(String file, Properties defaults) throws IOException {
+		Properties props = new Properties(defaults);
+
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		}
+		finally {
+			in.close();
+		}
+
+		return new Workload(props);
+	}
+
+	/**
+	 * Makes the workload of a benchmark, which by default gets each of as many keys
+	 * as the requests, or gets them in detail.
+	 * Exits if the workload file cannot be read or is invalid.
+	 *
+	 * @param file a properties file, or null for the default workload
+	 */
+	static Workload forBenchmark(String file, int requests, boolean details) {
+		Properties defaults = new Properties();
+		defaults.setProperty("workload.keys", String.valueOf(requests));
+		defaults.setProperty("workload.mix", (details ? "get_details:1" : "get:1"));
+
+		try {
+			return (file != null ? load(file, defaults) : new Workload(defaults));
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("Invalid workload: " + e.getMessage());
+		}
+
+		System.exit(1);
+		return null;	// NOTREACHED
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a property is invalid
+	 */
+	public Workload(Properties props) {
+		String s = props.getProperty("workload.seed");
+		this.seed = (s != null ? Long.parseLong(s.trim()) : System.currentTimeMillis());
+
+		this.numKeys = Integer.parseInt(props.getProperty("workload.keys", "1000").trim());
+		if (this.numKeys <= 0) {
+			throw new IllegalArgumentException("workload.keys: " + this.numKeys);
+		}
+
+		s = props.getProperty("workload.keyPrefix");
+		if (s == null) {
+			Random rnd = new Random(this.seed);
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < KEY_PREFIX_LENGTH; i++) {
+				sb.append((char)('a' + rnd.nextInt(26)));
+			}
+			s = sb.toString();
+		}
+		this.keyPrefix = s;
+
+		this.keyDistribution = props.getProperty("workload.keyDistribution", "uniform").trim();
+		this.parseKeyDistribution(this.keyDistribution);
+
+		this.valueSize = parseRange("workload.valueSize", props.getProperty("workload.valueSize", "8"));
+		this.valuesPerKey = parseRange("workload.valuesPerKey", props.getProperty("workload.valuesPerKey", "1"));
+		this.ttl = parseRange("workload.ttl", props.getProperty("workload.ttl", "900"));
+		if (this.valuesPerKey[0] <= 0 || this.ttl[0] <= 0) {
+			throw new IllegalArgumentException("workload.valuesPerKey and workload.ttl have to be positive");
+		}
+
+		this.parseMix(props.getProperty("workload.mix", "get:1"));
+
+		// values are put with a secret only if they are removed
+		if (this.getRatio(Operation.REMOVE) > 0.0) {
+			this.secret = bytes("secret" + this.seed);
+		}
+		else {
+			this.secret = null;
+		}
+	}
+
+	private void parseKeyDistribution(String spec) {
+		String[] f = spec.split(":");
+
+		if (f[0].equals("uniform") && f.length == 1) {
+			// nothing to prepare
+		}
+		else if (f[0].equals("zipf") && f.length == 2) {
+			double exponent = Double.parseDouble(f[1]);
+
+			this.zipfCDF = new double[this.numKeys];
+			double sum = 0.0;
+			for (int i = 0; i < this.numKeys; i++) {
+				sum += 1.0 / Math.pow(i + 1, exponent);
+				this.zipfCDF[i] = sum;
+			}
+			for (int i = 0; i < this.numKeys; i++) {
+				this.zipfCDF[i] /= sum;
+			}
+		}
+		else if (f[0].equals("hotspot") && f.length == 3) {
+			double keyFraction = Double.parseDouble(f[1]);
+			this.hotRatio = Double.parseDouble(f[2]);
+			this.hotKeys = Math.max(1, Math.min(this.numKeys, (int)Math.round(this.numKeys * keyFraction)));
+
+			if (keyFraction <= 0.0 || keyFraction > 1.0 || this.hotRatio < 0.0 || this.hotRatio > 1.0) {
+				throw new IllegalArgumentException("workload.keyDistribution: " + spec);
+			}
+		}
+		else {
+			throw new IllegalArgumentException("workload.keyDistribution: " + spec);
+		}
+	}
+
+	private void parseMix(String spec) {
+		Operation[] ops = Operation.values();
+		double[] ratios = new double[ops.length];
+		double sum = 0.0;
+
+		for (String item: spec.split(",")) {
+			String[] f = item.trim().split(":");
+			if (f.length != 2) {
+				throw new IllegalArgumentException("workload.mix: " + spec);
+			}
+
+			int index = -1;
+			for (int i = 0; i < ops.length; i++) {
+				if (ops[i].toString().equals(f[0].trim())) index = i;
+			}
+			if (index < 0) {
+				throw new IllegalArgumentException("workload.mix: unknown operation " + f[0]);
+			}
+
+			ratios[index] = Double.parseDouble(f[1].trim());
+			if (ratios[index] < 0.0) {
+				throw new IllegalArgumentException("workload.mix: " + spec);
+			}
+			sum += ratios[index];
+		}
+
+		if (sum <= 0.0) {
+			throw new IllegalArgumentException("workload.mix: " + spec);
+		}
+
+		double c = 0.0;
+		for (int i = 0; i < ops.length; i++) {
+			c += ratios[i] / sum;
+			this.mix[i] = c;
+		}
+		this.mix[ops.length - 1] = 1.0;
+	}
+
+	// "N" or "MIN-MAX"
+	private static int[] parseRange(String name, String spec) {
+		String[] f = spec.trim().split("-");
+		try {
+			int[] range;
+			if (f.length == 1) {
+				int n = Integer.parseInt(f[0]);
+				range = new int[] { n, n };
+			}
+			else if (f.length == 2) {
+				range = new int[] { Integer.parseInt(f[0]), Integer.parseInt(f[1]) };
+			}
+			else {
+				throw new IllegalArgumentException(name + ": " + spec);
+			}
+
+			if (range[0] < 0 || range[1] < range[0]) {
+				throw new IllegalArgumentException(name + ": " + spec);
+			}
+			return range;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + ": " + spec);
+		}
+	}
+
+	private static int draw(int[] range, Random rnd) {
+		if (range[0] == range[1]) return range[0];
+		return range[0] + rnd.nextInt(range[1] - range[0] + 1);
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes(ENCODE);
+		}
+		catch (UnsupportedEncodingException e) {
+			// NOTREACHED
+			return null;
+		}
+	}
+
+	public long getSeed() { return this.seed; }
+	public int getNumKeys() { return this.numKeys; }
+	public String getKeyPrefix() { return this.keyPrefix; }
+
+	/**
+	 * Returns the secret with which values are put, or null if they are not removed.
+	 */
+	public byte[] getSecret() { return this.secret; }
+
+	/**
+	 * Returns the ratio of the operation in the requests.
+	 */
+	public double getRatio(Operation op) {
+		int i = op.ordinal();
+		return this.mix[i] - (i > 0 ? this.mix[i - 1] : 0.0);
+	}
+
+	/**
+	 * Returns the TTL with which values are put in advance,
+	 * which is the longest TTL so that they last throughout a benchmark.
+	 */
+	public int getPreloadTTL() { return this.ttl[1]; }
+
+	/**
+	 * Returns a Random for a stream of requests, such as those of a worker thread.
+	 * The same stream number gives the same requests.
+	 */
+	public Random newRandom(int stream) {
+		return new Random(this.seed * 1000003L + stream);
+	}
+
+	public byte[] getKey(int index) {
+		return bytes(this.keyPrefix + index);
+	}
+
+	public int getValuesPerKey(int keyIndex) {
+		return draw(this.valuesPerKey, new Random(this.seed ^ (keyIndex * 0x9E3779B97F4A7C15L)));
+	}
+
+	/**
+	 * Returns a value of a key, which consists of random letters.
+	 */
+	public byte[] getValue(int keyIndex, int valueIndex) {
+		Random rnd = new Random(this.seed ^ (keyIndex * 0x9E3779B97F4A7C15L) ^ (valueIndex * 0xC2B2AE3D27D4EB4FL));
+
+		byte[] value = new byte[draw(this.valueSize, rnd)];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = (byte)('a' + rnd.nextInt(26));
+		}
+		return value;
+	}
+
+	/**
+	 * Draws the index of a key by its popularity.
+	 */
+	public int nextKeyIndex(Random rnd) {
+		if (this.zipfCDF != null) {
+			int i = Arrays.binarySearch(this.zipfCDF, rnd.nextDouble());
+			if (i < 0) i = -i - 1;
+			return Math.min(i, this.numKeys - 1);
+		}
+
+		if (this.hotKeys > 0 && this.hotKeys < this.numKeys) {
+			if (rnd.nextDouble() < this.hotRatio) {
+				return rnd.nextInt(this.hotKeys);
+			}
+			return this.hotKeys + rnd.nextInt(this.numKeys - this.hotKeys);
+		}
+
+		return rnd.nextInt(this.numKeys);
+	}
+
+	public Operation nextOperation(Random rnd) {
+		double d = rnd.nextDouble();
+
+		Operation[] ops = Operation.values();
+		for (int i = 0; i < ops.length; i++) {
+			if (d < this.mix[i]) return ops[i];
+		}
+		return ops[ops.length - 1];
+	}
+
+	/**
+	 * Draws the next request.
+	 */
+	public Request next(Random rnd) {
+		Operation op = this.nextOperation(rnd);
+		int keyIndex = this.nextKeyIndex(rnd);
+
+		byte[] value = null;
+		int ttl = 0;
+		if (op == Operation.PUT || op == Operation.REMOVE) {
+			value = this.getValue(keyIndex, rnd.nextInt(this.getValuesPerKey(keyIndex)));
+			ttl = draw(this.ttl, rnd);
+		}
+
+		return new Request(op, this.getKey(keyIndex), value, ttl, this.secret);
+	}
+
+	public void print(PrintStream out) {
+		out.println("Workload: seed " + this.seed + ", " + this.numKeys + " keys " + this.keyPrefix + "<number>"
+				+ ", key distribution " + this.keyDistribution);
+		out.println("  value size " + this.valueSize[0] + "-" + this.valueSize[1]
+				+ ", values per key " + this.valuesPerKey[0] + "-" + this.valuesPerKey[1]
+				+ ", TTL " + this.ttl[0] + "-" + this.ttl[1]);
+
+		StringBuilder sb = new StringBuilder("  mix");
+		for (Operation op: Operation.values()) {
+			sb.append(String.format(" %s %.1f%%", op, this.getRatio(op) * 100.0));
+		}
+		out.println(sb);
+	}
+
+	/**
+	 * A request drawn from a workload.
+	 */
+	public static class Request {
+		private final Operation op;
+		private final byte[] key;
+		private final byte[] value;
+		private final int ttl;
+		private final byte[] secret;
+
+		Request(Operation op, byte[] key, byte[] value, int ttl, byte[] secret) {
+			this.op = op;
+			this.key = key;
+			this.value = value;
+			this.ttl = ttl;
+			this.secret = secret;
+		}
+
+		public Operation getOperation() { return this.op; }
+		public byte[] getKey() { return this.key; }
+
+		/**
+		 * Sends the request and returns whether it succeeded.
+		 * A get succeeds if it got a value, and a put or a remove succeeds
+		 * if the gateway returned 0.
+		 *
+		 * @throws DHTException if the request failed
+		 */
+		public boolean run(DHTAccessor accessor) {
+			switch (this.op) {
+			case PUT:
+				return accessor.put(this.key, this.value, this.ttl, this.secret) == 0;
+			case GET:
+				Set<ByteArray> values = accessor.get(this.key);
+				return !values.isEmpty();
+			case GET_DETAILS:
+				Set<DetailedGetResult> details = accessor.getDetails(this.key);
+				return !details.isEmpty();
+			case REMOVE:
+				return accessor.remove(this.key, this.value, this.ttl, this.secret) == 0;
+			default:
+				// NOTREACHED
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Calls a method many times, packing the calls into system.multicall requests.
+ * If the gateway does not support system.multicall,
+ * the calls are sent one by one, several of them concurrently,
+ * and system.multicall is tried again some minutes later.
+ */
+class BatchCaller {
+	static final String MULTICALL = "system.multicall";
+	private static final int FAULT_NO_METHOD = -32601;	// of the specification for fault code interoperability
+	private static final long MULTICALL_RETRY_TIME = 10 * 60 * 1000L;	// msec
+
+	// null until a gateway answers system.multicall or tells it has no such method
+	private final AtomicReference<Boolean> multicallSupported = new AtomicReference<Boolean>();
+	private volatile long multicallRetryTime = 0L;	// System.currentTimeMillis() after which it is tried again
+
+	/**
+	 * Calls the method with each of the parameters.
+	 * Returns the result of each call, or an XmlRpcException or a DHTException if the call failed.
+	 * Requests are retried according to the policy of the accessor,
+	 * and calls in a system.multicall request which was not answered properly are made one by one.
+	 */
+	Object[] call(final DHTAccessor accessor, final String methodName, final Object[][] paramsList,
+			int batchSize, int parallelism) {
+		final Object[] results = new Object[paramsList.length];
+
+		if (this.multicallSupported.get() == Boolean.FALSE
+				&& System.currentTimeMillis() >= this.multicallRetryTime) {
+			// the gateway may have been replaced with one supporting it
+			this.multicallSupported.compareAndSet(Boolean.FALSE, null);
+		}
+
+		if (this.multicallSupported.get() != Boolean.FALSE && paramsList.length > 1) {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+			for (int start = 0; start < paramsList.length; start += batchSize) {
+				final int from = start;
+				final int to = Math.min(start + batchSize, paramsList.length);
+
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						BatchCaller.this.multicall(accessor, methodName, paramsList, from, to, results);
+						return null;
+					}
+				});
+			}
+
+			runAll(tasks, parallelism);
+		}
+
+		// calls which were not made in system.multicall
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+		for (int i = 0; i < paramsList.length; i++) {
+			if (results[i] != null) continue;
+
+			final int index = i;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					try {
+						results[index] = accessor.call(methodName, paramsList[index]);
+					}
+					catch (DHTException e) {
+						results[index] = e;
+					}
+					return null;
+				}
+			});
+		}
+
+		runAll(tasks, parallelism);
+
+		return results;
+	}
+
+	private void multicall(DHTAccessor accessor, String methodName, Object[][] paramsList,
+			int from, int to, Object[] results) {
+		if (this.multicallSupported.get() == Boolean.FALSE) return;
+
+		Object[] calls = new Object[to - from];
+		for (int i = 0; i < calls.length; i++) {
+			Map<String,Object> call = new HashMap<String,Object>();
+			call.put("methodName", methodName);
+			call.put("params", paramsList[from + i]);
+			calls[i] = call;
+		}
+
+		Object response;
+		try {
+			response = accessor.call(MULTICALL, new Object[] { calls });
+		}
+		catch (DHTFaultException e) {
+			if (isNoSuchMethod(e)) {
+				// unless another gateway has answered system.multicall
+				this.multicallRetryTime = System.currentTimeMillis() + MULTICALL_RETRY_TIME;
+				this.multicallSupported.compareAndSet(null, Boolean.FALSE);
+			}
+			// otherwise the calls are made one by one
+			return;
+		}
+		catch (DHTException e) {
+			// failed after the retries, which the calls one by one would do again
+			for (int i = from; i < to; i++) results[i] = e;
+			return;
+		}
+
+		// an invalid response, the calls of which are made one by one
+		if (!(response instanceof Object[])) return;
+		Object[] responses = (Object[])response;
+		if (responses.length != calls.length) return;
+
+		this.multicallSupported.compareAndSet(null, Boolean.TRUE);
+
+		for (int i = 0; i < responses.length; i++) {
+			Object r = responses[i];
+
+			if (r instanceof Object[] && ((Object[])r).length == 1) {
+				results[from + i] = ((Object[])r)[0];
+			}
+			else if (r instanceof Map) {
+				Map<?,?> fault = (Map<?,?>)r;
+				Object code = fault.get("faultCode");
+				results[from + i] = new XmlRpcException(
+						(code instanceof Integer ? (Integer)code : 0),
+						String.valueOf(fault.get("faultString")));
+			}
+			else {
+				results[from + i] = new XmlRpcException("invalid result in " + MULTICALL + ": " + r);
+			}
+		}
+	}
+
+	// a fault telling that the gateway does not have system.multicall
+	private static boolean isNoSuchMethod(DHTFaultException e) {
+		if (e.getFaultCode() == FAULT_NO_METHOD) return true;
+
+		// otherwise the message of a gateway not following the specification, naming the method
+		String message = String.valueOf(e.getMessage()).toLowerCase();
+		return message.indexOf("multicall") >= 0
+			&& (message.indexOf("no such") >= 0 || message.indexOf("not found") >= 0);
+	}
+
+	/**
+	 * Returns whether the call failed to communicate with the gateway,
+	 * rather than being answered with a fault.
+	 */
+	static boolean isCommunicationFailure(XmlRpcException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof IOException) return true;
+			if (t.getCause() == t) break;
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the tasks with at most the specified number of them running at once.
+	 * The tasks run on helper threads, so this can be called from any thread.
+	 */
+	static void runAll(List<Callable<Void>> tasks, int parallelism) {
+		if (tasks.isEmpty()) return;
+
+		if (tasks.size() == 1 || parallelism <= 1) {
+			for (Callable<Void> t: tasks) {
+				try {
+					t.call();
+				}
+				catch (RuntimeException e) {
+					throw e;
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return;
+		}
+
+		final Semaphore window = new Semaphore(parallelism);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+
+		for (final Callable<Void> t: tasks) {
+			window.acquireUninterruptibly();
+
+			futures.add(DHTAccessor.getHelperExecutor().submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					try {
+						return t.call();
+					}
+					finally {
+						window.release();
+					}
+				}
+			}));
+		}
+
+		boolean interrupted = false;
+		RuntimeException failure = null;
+
+		for (Future<Void> f: futures) {
+			while (true) {
+				try {
+					f.get();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+				catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Error) throw (Error)cause;
+					if (failure == null) {
+						failure = (cause instanceof RuntimeException
+								? (RuntimeException)cause : new RuntimeException(cause));
+					}
+					break;
+				}
+			}
+		}
+
+		if (interrupted) Thread.currentThread().interrupt();
+		if (failure != null) throw failure;
+	}
+}
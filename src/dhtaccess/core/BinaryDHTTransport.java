@@ -0,0 +1,297 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * The transport which sends calls in {@link BinaryProtocol} over NIO socket channels,
+ * to a gateway given by a URL such as dhtb://localhost:5852/.
+ * Connections are kept open and reused, one call at a time on each of them.
+ * <p>
+ * A request is written with a gathering write of its buffers, so a large value
+ * goes from the caller's array to the socket without being copied,
+ * and a large value in a response is read from the socket directly into its own array.
+ */
+class BinaryDHTTransport implements DHTTransport {
+	static final String SCHEME = "dhtb";
+	static final int DEFAULT_PORT = 5852;
+
+	private static final int MAX_IDLE_CONNECTIONS = 16;
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	private final String url;
+	private final String host;
+	private final int port;
+	private final int connectTimeout;	// msec, 0 means no limit
+	private final int readTimeout;	// msec, 0 means no limit
+	private final DHTMetrics metrics;
+
+	private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+	/**
+	 * Returns whether the URL is of this transport.
+	 */
+	static boolean accepts(String url) {
+		return url.startsWith(SCHEME + "://");
+	}
+
+	/**
+	 * @param metrics where the bytes of frames are reported, or null
+	 */
+	BinaryDHTTransport(String url, int connectTimeout, int readTimeout, DHTMetrics metrics)
+			throws MalformedURLException {
+		URI uri;
+		try {
+			uri = new URI(url);
+		}
+		catch (URISyntaxException e) {
+			throw new MalformedURLException(e.getMessage());
+		}
+
+		if (!SCHEME.equals(uri.getScheme()) || uri.getHost() == null) {
+			throw new MalformedURLException("invalid URL: " + url);
+		}
+
+		this.url = url;
+		this.host = uri.getHost();
+		this.port = (uri.getPort() >= 0 ? uri.getPort() : DEFAULT_PORT);
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.metrics = metrics;
+	}
+
+	public Object execute(String methodName, Object[] params) throws XmlRpcException {
+		ByteBuffer[] request = BinaryProtocol.encodeCall(methodName, params);
+		BinaryProtocol.Frame response;
+
+		Connection conn = null;
+		boolean reusable = false;
+		try {
+			conn = this.acquire();
+			try {
+				response = conn.exchange(request);
+			}
+			catch (IOException e) {
+				if (!conn.reused || conn.received || e instanceof InterruptedIOException) throw e;
+
+				// the gateway may have closed the idle connection
+				conn.close();
+				conn = null;
+				conn = this.connect();
+				response = conn.exchange(request);
+			}
+			reusable = true;
+
+			if (this.metrics != null) {
+				long sent = 0L;
+				for (ByteBuffer b: request) sent += b.remaining();
+				this.metrics.bytesTransferred(this.url, sent, conn.receivedBytes);
+			}
+		}
+		catch (IOException e) {
+			throw new XmlRpcException("Failed to call " + methodName + " on " + this.url
+					+ ": " + e.getMessage(), e);
+		}
+		finally {
+			if (conn != null) this.release(conn, reusable);
+		}
+
+		switch (response.getKind()) {
+		case BinaryProtocol.RESULT:
+			return response.getValue();
+		case BinaryProtocol.FAULT:
+			throw new XmlRpcException(response.getFaultCode(), response.getFaultMessage());
+		default:
+			throw new XmlRpcException("Unexpected frame from " + this.url,
+					new IOException("frame kind: " + response.getKind()));
+		}
+	}
+
+	public void close() {
+		synchronized (this.idle) {
+			for (Connection c: this.idle) c.close();
+			this.idle.clear();
+		}
+	}
+
+	private Connection acquire() throws IOException {
+		synchronized (this.idle) {
+			Connection c = this.idle.poll();
+			if (c != null) {
+				c.reused = true;
+				return c;
+			}
+		}
+
+		return this.connect();
+	}
+
+	private void release(Connection c, boolean reusable) {
+		if (reusable) {
+			synchronized (this.idle) {
+				if (this.idle.size() < MAX_IDLE_CONNECTIONS) {
+					this.idle.addFirst(c);
+					return;
+				}
+			}
+		}
+
+		c.close();
+	}
+
+	private Connection connect() throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		Selector selector = null;
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			selector = Selector.open();
+
+			Connection c = new Connection(channel, selector);
+			if (!channel.connect(new InetSocketAddress(this.host, this.port))) {
+				c.await(SelectionKey.OP_CONNECT, this.connectTimeout, "Connect timed out");
+				channel.finishConnect();
+			}
+			return c;
+		}
+		catch (IOException e) {
+			channel.close();
+			if (selector != null) selector.close();
+			throw e;
+		}
+	}
+
+	private class Connection {
+		final SocketChannel channel;
+		final Selector selector;
+		final SelectionKey key;
+		final DataInputStream in;
+
+		boolean reused = false;
+		boolean received;	// whether a byte of the current response has been read
+		long receivedBytes;	// of the current response
+
+		Connection(SocketChannel channel, Selector selector) throws IOException {
+			this.channel = channel;
+			this.selector = selector;
+			this.key = channel.register(selector, 0);
+
+			// a read as long as the buffer bypasses it
+			this.in = new DataInputStream(new BufferedInputStream(new InputStream() {
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					int n = this.read(b, 0, 1);
+					return (n <= 0 ? -1 : (b[0] & 0xff));
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					return Connection.this.read(b, off, len);
+				}
+			}, READ_BUFFER_SIZE));
+		}
+
+		BinaryProtocol.Frame exchange(ByteBuffer[] request) throws IOException {
+			this.received = false;
+			this.receivedBytes = 0L;
+
+			ByteBuffer[] buffers = new ByteBuffer[request.length];
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = request[i].duplicate();
+			}
+			ByteBuffer last = buffers[buffers.length - 1];
+
+			while (last.hasRemaining()) {
+				if (this.channel.write(buffers) == 0L) {
+					this.await(SelectionKey.OP_WRITE, BinaryDHTTransport.this.readTimeout, "Write timed out");
+				}
+			}
+
+			return BinaryProtocol.readFrame(this.in);
+		}
+
+		int read(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while (true) {
+				int n = this.channel.read(buf);
+				if (n != 0) {
+					if (n > 0) {
+						this.received = true;
+						this.receivedBytes += n;
+					}
+					return n;
+				}
+
+				this.await(SelectionKey.OP_READ, BinaryDHTTransport.this.readTimeout, "Read timed out");
+			}
+		}
+
+		// waits until the channel is ready for the operation
+		void await(int op, int timeout, String message) throws IOException {
+			long deadline = System.currentTimeMillis() + timeout;
+
+			this.key.interestOps(op);
+			try {
+				while (true) {
+					long wait = 0L;
+					if (timeout > 0) {
+						wait = deadline - System.currentTimeMillis();
+						if (wait <= 0L) throw new SocketTimeoutException(message);
+					}
+
+					int n = this.selector.select(wait);
+					this.selector.selectedKeys().clear();
+
+					if (Thread.currentThread().isInterrupted()) {
+						throw new InterruptedIOException("interrupted");
+					}
+					if (n > 0) return;
+				}
+			}
+			finally {
+				this.key.interestOps(0);
+			}
+		}
+
+		void close() {
+			try {
+				this.channel.close();
+			}
+			catch (IOException e) { /* ignore */ }
+			try {
+				this.selector.close();
+			}
+			catch (IOException e) { /* ignore */ }
+		}
+	}
+}
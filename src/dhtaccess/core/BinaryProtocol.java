@@ -0,0 +1,345 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary protocol carrying the same calls as XML-RPC,
+ * in which keys, values and secrets are sent as raw bytes.
+ * A call and its answer are each a frame, in big-endian byte order:
+ * <pre>
+ * frame  = length:int32 kind:byte body        length of kind and body
+ * call   = 'C' methodName:string params:array
+ * result = 'R' value
+ * fault  = 'F' code:int32 message:string
+ * value  = 'i' int32 | 's' string | 'b' bytes
+ *        | 'a' count:int32 value* | 'm' count:int32 (name:string value)*
+ * string = length:int32 UTF-8 bytes
+ * bytes  = length:int32 raw bytes
+ * </pre>
+ * Frames are sent one after another over a connection, an answer after each call.
+ * <p>
+ * A frame is encoded into buffers to be written with a gathering write,
+ * in which a large byte array is wrapped instead of copied.
+ */
+public final class BinaryProtocol {
+	public static final byte CALL = 'C';
+	public static final byte RESULT = 'R';
+	public static final byte FAULT = 'F';
+
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	private static final byte INT = 'i';
+	private static final byte STRING = 's';
+	private static final byte BYTES = 'b';
+	private static final byte ARRAY = 'a';
+	private static final byte MAP = 'm';
+
+	// byte arrays at least this long are not copied when encoded
+	private static final int WRAP_THRESHOLD = 512;
+	private static final int CHUNK_SIZE = 1024;
+
+	private static final String ENCODING = "UTF-8";
+
+	private BinaryProtocol() {}
+
+	public static ByteBuffer[] encodeCall(String methodName, Object[] params) {
+		Encoder e = new Encoder(CALL);
+		e.putString(methodName);
+		e.putValue(params);
+		return e.finish();
+	}
+
+	public static ByteBuffer[] encodeResult(Object value) {
+		Encoder e = new Encoder(RESULT);
+		e.putValue(value);
+		return e.finish();
+	}
+
+	public static ByteBuffer[] encodeFault(int code, String message) {
+		Encoder e = new Encoder(FAULT);
+		e.putInt(code);
+		e.putString(message);
+		return e.finish();
+	}
+
+	/**
+	 * Writes encoded buffers to a stream, leaving the buffers as they are.
+	 */
+	public static void write(ByteBuffer[] frame, OutputStream out) throws IOException {
+		for (ByteBuffer b: frame) {
+			out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+		}
+	}
+
+	/**
+	 * Reads a frame.
+	 *
+	 * @throws java.io.EOFException if the stream ended before the frame
+	 * @throws IOException if the frame is invalid
+	 */
+	public static Frame readFrame(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length <= 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("invalid frame length: " + length);
+		}
+
+		Decoder d = new Decoder(in, length);
+		Frame f = new Frame();
+
+		f.kind = d.getByte();
+		switch (f.kind) {
+		case CALL:
+			f.methodName = d.getString();
+			Object params = d.getValue();
+			if (!(params instanceof Object[])) {
+				throw new IOException("parameters of a call are not an array");
+			}
+			f.params = (Object[])params;
+			break;
+		case RESULT:
+			f.value = d.getValue();
+			break;
+		case FAULT:
+			f.faultCode = d.getInt();
+			f.faultMessage = d.getString();
+			break;
+		default:
+			throw new IOException("invalid frame kind: " + f.kind);
+		}
+
+		if (d.remaining != 0) {
+			throw new IOException(d.remaining + " bytes left in a frame");
+		}
+
+		return f;
+	}
+
+	/**
+	 * A decoded frame.
+	 */
+	public static class Frame {
+		private byte kind;
+		private String methodName;
+		private Object[] params;
+		private Object value;
+		private int faultCode;
+		private String faultMessage;
+
+		public byte getKind() { return this.kind; }
+		public String getMethodName() { return this.methodName; }
+		public Object[] getParams() { return this.params; }
+		public Object getValue() { return this.value; }
+		public int getFaultCode() { return this.faultCode; }
+		public String getFaultMessage() { return this.faultMessage; }
+	}
+
+	private static class Encoder {
+		private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		private final ByteBuffer header = ByteBuffer.allocate(4);
+		private ByteBuffer current = ByteBuffer.allocate(CHUNK_SIZE);
+		private long length = 0L;
+
+		Encoder(byte kind) {
+			this.buffers.add(this.header);
+			this.current.put(kind);
+		}
+
+		void putValue(Object o) {
+			if (o instanceof Integer) {
+				this.put(INT);
+				this.putInt((Integer)o);
+			}
+			else if (o instanceof String) {
+				this.put(STRING);
+				this.putString((String)o);
+			}
+			else if (o instanceof byte[]) {
+				this.put(BYTES);
+				this.putBytes((byte[])o);
+			}
+			else if (o instanceof Object[]) {
+				Object[] a = (Object[])o;
+				this.put(ARRAY);
+				this.putInt(a.length);
+				for (Object v: a) this.putValue(v);
+			}
+			else if (o instanceof Map) {
+				Map<?,?> m = (Map<?,?>)o;
+				this.put(MAP);
+				this.putInt(m.size());
+				for (Map.Entry<?,?> entry: m.entrySet()) {
+					this.putString(String.valueOf(entry.getKey()));
+					this.putValue(entry.getValue());
+				}
+			}
+			else {
+				throw new IllegalArgumentException("unsupported type: "
+						+ (o == null ? "null" : o.getClass().getName()));
+			}
+		}
+
+		void put(byte b) {
+			this.reserve(1);
+			this.current.put(b);
+		}
+
+		void putInt(int i) {
+			this.reserve(4);
+			this.current.putInt(i);
+		}
+
+		void putString(String s) {
+			try {
+				this.putBytes(s.getBytes(ENCODING));
+			}
+			catch (UnsupportedEncodingException e) {
+				// NOTREACHED
+				throw new Error(e);
+			}
+		}
+
+		void putBytes(byte[] b) {
+			this.putInt(b.length);
+
+			if (b.length >= WRAP_THRESHOLD) {
+				this.flush();
+				this.buffers.add(ByteBuffer.wrap(b));
+				this.length += b.length;
+			}
+			else {
+				this.reserve(b.length);
+				this.current.put(b);
+			}
+		}
+
+		private void reserve(int n) {
+			if (this.current.remaining() < n) {
+				this.flush();
+				this.current = ByteBuffer.allocate(Math.max(CHUNK_SIZE, n));
+			}
+		}
+
+		private void flush() {
+			if (this.current.position() > 0) {
+				this.current.flip();
+				this.length += this.current.remaining();
+				this.buffers.add(this.current);
+				this.current = ByteBuffer.allocate(CHUNK_SIZE);
+			}
+		}
+
+		ByteBuffer[] finish() {
+			this.flush();
+			if (this.length > MAX_FRAME_LENGTH) {
+				throw new IllegalArgumentException("frame too long: " + this.length + " bytes");
+			}
+
+			this.header.putInt((int)this.length);
+			this.header.flip();
+
+			return this.buffers.toArray(new ByteBuffer[this.buffers.size()]);
+		}
+	}
+
+	private static class Decoder {
+		private final DataInput in;
+		int remaining;
+
+		Decoder(DataInput in, int length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		private void consume(int n) throws IOException {
+			if (n < 0 || n > this.remaining) {
+				throw new IOException("value beyond the end of a frame");
+			}
+			this.remaining -= n;
+		}
+
+		byte getByte() throws IOException {
+			this.consume(1);
+			return this.in.readByte();
+		}
+
+		int getInt() throws IOException {
+			this.consume(4);
+			return this.in.readInt();
+		}
+
+		byte[] getBytes() throws IOException {
+			int length = this.getInt();
+			this.consume(length);
+
+			byte[] b = new byte[length];
+			this.in.readFully(b);
+			return b;
+		}
+
+		String getString() throws IOException {
+			return new String(this.getBytes(), ENCODING);
+		}
+
+		Object getValue() throws IOException {
+			byte type = this.getByte();
+			switch (type) {
+			case INT:
+				return this.getInt();
+			case STRING:
+				return this.getString();
+			case BYTES:
+				return this.getBytes();
+			case ARRAY: {
+				int count = this.getInt();
+				this.check(count);
+				Object[] a = new Object[count];
+				for (int i = 0; i < count; i++) a[i] = this.getValue();
+				return a;
+			}
+			case MAP: {
+				int count = this.getInt();
+				this.check(count);
+				Map<String,Object> m = new HashMap<String,Object>();
+				for (int i = 0; i < count; i++) {
+					String name = this.getString();
+					m.put(name, this.getValue());
+				}
+				return m;
+			}
+			default:
+				throw new IOException("invalid value type: " + type);
+			}
+		}
+
+		// every element takes at least a byte
+		private void check(int count) throws IOException {
+			if (count < 0 || count > this.remaining) {
+				throw new IOException("invalid count: " + count);
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * An immutable sequence of bytes, which is equal to another one with the same content.
+ * Values got from a DHT are represented with this class
+ * so that a set of them does not contain duplicates.
+ */
+public final class ByteArray implements Comparable<ByteArray> {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final byte[] bytes;
+	private int hash = 0;	// cached, 0 means not computed
+
+	/**
+	 * Constructs a ByteArray holding a copy of the specified bytes.
+	 */
+	public ByteArray(byte[] bytes) {
+		this(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Constructs a ByteArray holding a copy of a slice of the specified bytes.
+	 */
+	public ByteArray(byte[] bytes, int offset, int length) {
+		this.bytes = new byte[length];
+		System.arraycopy(bytes, offset, this.bytes, 0, length);
+	}
+
+	private ByteArray(byte[] bytes, boolean share) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Wraps an array without copying it. The array must not be modified afterwards.
+	 */
+	static ByteArray wrap(byte[] bytes) {
+		return new ByteArray(bytes, true);
+	}
+
+	/**
+	 * Returns the underlying array without copying it, which must not be modified.
+	 */
+	byte[] array() { return this.bytes; }
+
+	public int length() { return this.bytes.length; }
+
+	public byte byteAt(int index) { return this.bytes[index]; }
+
+	/**
+	 * Returns a copy of the bytes.
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[this.bytes.length];
+		System.arraycopy(this.bytes, 0, copy, 0, copy.length);
+		return copy;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(this.bytes);
+	}
+
+	/**
+	 * Decodes the bytes into a String with the specified charset.
+	 */
+	public String toString(String charsetName) throws UnsupportedEncodingException {
+		return new String(this.bytes, charsetName);
+	}
+
+	public int hashCode() {
+		int h = this.hash;
+		if (h == 0) {
+			h = Arrays.hashCode(this.bytes);
+			if (h == 0) h = 1;
+			this.hash = h;
+		}
+		return h;
+	}
+
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof ByteArray)) return false;
+
+		ByteArray other = (ByteArray)o;
+		if (this.hashCode() != other.hashCode()) return false;
+
+		return Arrays.equals(this.bytes, other.bytes);
+	}
+
+	/**
+	 * Compares bytes lexicographically as unsigned values.
+	 */
+	public int compareTo(ByteArray other) {
+		int len = Math.min(this.bytes.length, other.bytes.length);
+		for (int i = 0; i < len; i++) {
+			int a = this.bytes[i] & 0xff, b = other.bytes[i] & 0xff;
+			if (a != b) return a - b;
+		}
+		return this.bytes.length - other.bytes.length;
+	}
+
+	/**
+	 * Returns the bytes in hexadecimal.
+	 */
+	public String toString() {
+		char[] chars = new char[this.bytes.length * 2];
+		for (int i = 0; i < this.bytes.length; i++) {
+			chars[2 * i] = HEX_DIGITS[(this.bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX_DIGITS[this.bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
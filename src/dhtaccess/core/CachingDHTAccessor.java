@@ -0,0 +1,393 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link DHTAccessor} which keeps the values got from a DHT in memory
+ * and answers a get of the same key without a request to the gateway.
+ * <p>
+ * A cached key expires when its value with the shortest remaining TTL
+ * reported by the gateway expires, or after the maximum TTL of the cache, whichever comes first.
+ * The least recently used keys are evicted when the cache holds
+ * more than the maximum number of keys or bytes.
+ * A put or remove through this accessor, including putAll and removeAll, invalidates the key.
+ * Values put or removed by other clients are seen when the cached key expires.
+ * <p>
+ * Sets returned from the cache are shared and cannot be modified.
+ * Iterators returned by getIterator and getDetailsIterator do not use the cache.
+ */
+public class CachingDHTAccessor extends DHTAccessor {
+	private static final int DEFAULT_MAX_ENTRIES = 10000;
+	private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	private static final int DEFAULT_MAX_TTL = 60;	// second
+	private static final int DEFAULT_NEGATIVE_TTL = 0;	// second
+
+	// estimated memory taken by a key and a value besides their bytes
+	private static final int ENTRY_OVERHEAD = 128;
+	private static final int VALUE_OVERHEAD = 96;
+
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private int maxTTL = DEFAULT_MAX_TTL;
+	private int negativeTTL = DEFAULT_NEGATIVE_TTL;
+
+	private final LinkedHashMap<ByteArray,Entry> cache =
+		new LinkedHashMap<ByteArray,Entry>(16, 0.75f, true /* access order */);
+	private long cachedBytes = 0L;
+
+	// keys being got; an invalidation removes the key so that a stale result is not cached
+	private final Map<ByteArray,Object> filling = new HashMap<ByteArray,Object>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	public CachingDHTAccessor(String gateway) throws MalformedURLException {
+		super(gateway);
+	}
+
+	/**
+	 * Sets the maximum number of keys and the maximum number of bytes cached.
+	 */
+	public void setCapacity(int maxEntries, long maxBytes) {
+		if (maxEntries <= 0 || maxBytes <= 0L) {
+			throw new IllegalArgumentException("maxEntries: " + maxEntries + ", maxBytes: " + maxBytes);
+		}
+
+		synchronized (this.cache) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+
+			this.evict();
+		}
+	}
+
+	/**
+	 * Sets how long (in seconds) a key is cached at most,
+	 * regardless of the TTL reported by the gateway.
+	 */
+	public void setMaxTTL(int sec) { this.maxTTL = sec; }
+
+	/**
+	 * Sets how long (in seconds) a key without values is cached. 0 means it is not cached.
+	 */
+	public void setNegativeTTL(int sec) { this.negativeTTL = sec; }
+
+	public long getHitCount() { return this.hits.get(); }
+	public long getMissCount() { return this.misses.get(); }
+	public long getEvictionCount() { return this.evictions.get(); }
+	public long getExpirationCount() { return this.expirations.get(); }
+
+	public int getCachedEntries() {
+		synchronized (this.cache) {
+			return this.cache.size();
+		}
+	}
+
+	public long getCachedBytes() {
+		synchronized (this.cache) {
+			return this.cachedBytes;
+		}
+	}
+
+	/**
+	 * Discards the cached values of a key.
+	 */
+	public void invalidate(byte[] key) {
+		ByteArray k = new ByteArray(key);
+
+		synchronized (this.cache) {
+			this.filling.remove(k);
+
+			Entry e = this.cache.remove(k);
+			if (e != null) this.cachedBytes -= e.bytes;
+		}
+	}
+
+	/**
+	 * Discards all cached values.
+	 */
+	public void clear() {
+		synchronized (this.cache) {
+			this.filling.clear();
+
+			this.cache.clear();
+			this.cachedBytes = 0L;
+		}
+	}
+
+	public Set<ByteArray> get(byte[] key, int maxValues) {
+		Entry e = this.lookup(key);
+		if (e == null) {
+			if (maxValues < Integer.MAX_VALUE) {
+				// a part of the values is not worth caching
+				return super.get(key, maxValues);
+			}
+
+			e = this.fill(key);
+		}
+
+		return limit(e.values, maxValues);
+	}
+
+	public Set<DetailedGetResult> getDetails(byte[] key, int maxValues) {
+		Entry e = this.lookup(key);
+		if (e == null) {
+			if (maxValues < Integer.MAX_VALUE) {
+				return super.getDetails(key, maxValues);
+			}
+
+			e = this.fill(key);
+		}
+
+		return limit(e.remainingDetails(), maxValues);
+	}
+
+	public int put(byte[] key, byte[] value, int ttl /* sec */, byte[] secret) {
+		try {
+			return super.put(key, value, ttl, secret);
+		}
+		finally {
+			this.invalidate(key);
+		}
+	}
+
+	public int remove(byte[] key, byte[] value, int ttl, byte[] secret) {
+		try {
+			return super.remove(key, value, ttl, secret);
+		}
+		finally {
+			this.invalidate(key);
+		}
+	}
+
+	public int[] putAll(byte[][] keys, byte[][] values, int ttl /* sec */, byte[] secret) {
+		try {
+			return super.putAll(keys, values, ttl, secret);
+		}
+		finally {
+			for (byte[] key: keys) this.invalidate(key);
+		}
+	}
+
+	public int[] removeAll(byte[][] keys, byte[][] values, int ttl, byte[] secret) {
+		try {
+			return super.removeAll(keys, values, ttl, secret);
+		}
+		finally {
+			for (byte[] key: keys) this.invalidate(key);
+		}
+	}
+
+	/**
+	 * Gets the values of many keys, those not cached concurrently in detail to be cached,
+	 * not in system.multicall requests.
+	 */
+	public List<Set<ByteArray>> getAll(byte[][] keys) {
+		final List<Set<ByteArray>> sets = new ArrayList<Set<ByteArray>>(keys.length);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		final AtomicReference<DHTException> failure = new AtomicReference<DHTException>();
+		final AtomicInteger failures = new AtomicInteger();
+
+		for (int i = 0; i < keys.length; i++) {
+			Entry e = this.lookup(keys[i]);
+			sets.add(e != null ? e.values : null);
+			if (e != null) continue;
+
+			final int index = i;
+			final byte[] key = keys[i];
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					Set<ByteArray> values;
+					try {
+						values = CachingDHTAccessor.this.fill(key).values;
+					}
+					catch (DHTException e) {
+						failure.compareAndSet(null, e);
+						failures.incrementAndGet();
+						values = Collections.emptySet();
+					}
+
+					synchronized (sets) {
+						sets.set(index, values);
+					}
+					return null;
+				}
+			});
+		}
+
+		BatchCaller.runAll(tasks, this.getAsyncThreads());
+
+		synchronized (sets) {
+			if (failure.get() != null) {
+				if (failures.get() >= keys.length) throw failure.get();
+				throw new DHTPartialResultException(sets, failure.get());
+			}
+
+			return sets;
+		}
+	}
+
+	private Entry lookup(byte[] key) {
+		ByteArray k = new ByteArray(key);
+
+		synchronized (this.cache) {
+			Entry e = this.cache.get(k);
+			if (e != null) {
+				if (System.nanoTime() - e.expiry < 0L) {
+					this.hits.incrementAndGet();
+					return e;
+				}
+
+				this.cache.remove(k);
+				this.cachedBytes -= e.bytes;
+				this.expirations.incrementAndGet();
+			}
+		}
+
+		this.misses.incrementAndGet();
+		return null;
+	}
+
+	// the values of a key are got in detail to know their TTLs
+	private Entry fill(byte[] key) {
+		ByteArray k = new ByteArray(key);
+		Object token = new Object();
+
+		synchronized (this.cache) {
+			this.filling.put(k, token);
+		}
+
+		long now = System.nanoTime();
+		Set<DetailedGetResult> details;
+		try {
+			details = super.getDetails(key, Integer.MAX_VALUE);
+		}
+		catch (RuntimeException ex) {
+			synchronized (this.cache) {
+				if (this.filling.get(k) == token) this.filling.remove(k);
+			}
+			throw ex;
+		}
+
+		Entry e = new Entry(k, details, now);
+
+		int ttl = (details.isEmpty() ? this.negativeTTL : Math.min(e.minTTL, this.maxTTL));
+		e.expiry = now + ttl * 1000000000L;
+
+		synchronized (this.cache) {
+			if (this.filling.get(k) != token) {
+				// invalidated or got again meanwhile
+				return e;
+			}
+			this.filling.remove(k);
+
+			if (ttl <= 0) return e;
+
+			Entry old = this.cache.put(k, e);
+			if (old != null) this.cachedBytes -= old.bytes;
+			this.cachedBytes += e.bytes;
+
+			this.evict();
+		}
+
+		return e;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<ByteArray,Entry>> it = this.cache.entrySet().iterator();
+		while ((this.cache.size() > this.maxEntries || this.cachedBytes > this.maxBytes)
+				&& it.hasNext()) {
+			Entry e = it.next().getValue();
+			it.remove();
+			this.cachedBytes -= e.bytes;
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	private static <T> Set<T> limit(Set<T> set, int maxValues) {
+		if (set.size() <= maxValues) return set;
+
+		Set<T> result = new HashSet<T>();
+		for (T o: set) {
+			if (result.size() >= maxValues) break;
+			result.add(o);
+		}
+		return result;
+	}
+
+	private static class Entry {
+		final Set<DetailedGetResult> details;
+		final Set<ByteArray> values;
+		final long bytes;
+		final int minTTL;
+		final long filled;	// System.nanoTime()
+		long expiry;	// System.nanoTime()
+
+		Entry(ByteArray key, Set<DetailedGetResult> details, long filled) {
+			Set<ByteArray> values = new HashSet<ByteArray>();
+			long bytes = ENTRY_OVERHEAD + key.length();
+			int minTTL = Integer.MAX_VALUE;
+
+			for (DetailedGetResult r: details) {
+				values.add(ByteArray.wrap(r.getValue()));
+
+				bytes += VALUE_OVERHEAD + r.getValue().length;
+				if (r.getHashedSecret() != null) bytes += r.getHashedSecret().length;
+
+				minTTL = Math.min(minTTL, r.getTTL());
+			}
+
+			this.details = Collections.unmodifiableSet(details);
+			this.values = Collections.unmodifiableSet(values);
+			this.bytes = bytes;
+			this.minTTL = minTTL;
+			this.filled = filled;
+		}
+
+		/**
+		 * Returns the details with the TTLs remaining now, rather than when the key was got.
+		 */
+		Set<DetailedGetResult> remainingDetails() {
+			long elapsed = (System.nanoTime() - this.filled) / 1000000000L;	// sec
+			if (elapsed <= 0L) return this.details;
+
+			Set<DetailedGetResult> results = new HashSet<DetailedGetResult>();
+			for (DetailedGetResult r: this.details) {
+				int ttl = (int)Math.max(0L, r.getTTL() - elapsed);
+				results.add(new DetailedGetResult(r.getValue(), ttl, r.getHashType(), r.getHashedSecret()));
+			}
+			return Collections.unmodifiableSet(results);
+		}
+	}
+}
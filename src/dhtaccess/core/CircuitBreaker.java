@@ -0,0 +1,75 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+/**
+ * Stops requests to a gateway which has failed a number of times in a row.
+ * After a while one request is let through as a trial.
+ * The gateway is used again if the trial succeeds,
+ * otherwise requests are stopped for another while.
+ */
+class CircuitBreaker {
+	private int failuresToOpen;
+	private long openTime;	// msec
+
+	private int failures = 0;
+	private long openUntil = 0L;	// System.currentTimeMillis(), 0 means closed
+	private boolean trying = false;
+
+	CircuitBreaker(int failuresToOpen, long openTime) {
+		this.set(failuresToOpen, openTime);
+	}
+
+	synchronized void set(int failuresToOpen, long openTime) {
+		this.failuresToOpen = failuresToOpen;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Returns whether a request may be sent.
+	 */
+	synchronized boolean allowRequest() {
+		if (this.openUntil == 0L) return true;
+
+		if (!this.trying && System.currentTimeMillis() >= this.openUntil) {
+			// this request is the trial
+			this.trying = true;
+			return true;
+		}
+
+		return false;
+	}
+
+	synchronized boolean isOpen() {
+		return this.openUntil != 0L;
+	}
+
+	synchronized void succeeded() {
+		this.failures = 0;
+		this.openUntil = 0L;
+		this.trying = false;
+	}
+
+	synchronized void failed() {
+		this.failures++;
+
+		if (this.trying || (this.openUntil == 0L && this.failures >= this.failuresToOpen)) {
+			this.openUntil = System.currentTimeMillis() + this.openTime;
+			this.trying = false;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream counting the bytes read through it.
+ */
+class CountingInputStream extends FilterInputStream {
+	private long count = 0L;
+
+	CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	long getCount() { return this.count; }
+
+	public int read() throws IOException {
+		int c = this.in.read();
+		if (c >= 0) this.count++;
+		return c;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = this.in.read(b, off, len);
+		if (n > 0) this.count += n;
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = this.in.skip(n);
+		if (skipped > 0L) this.count += skipped;
+		return skipped;
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -16,26 +16,99 @@
 
 package dhtaccess.core;
 
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.client.XmlRpcClient;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
 
 public class DHTAccessor {
 	private static final int DEFAULT_TTL = 3600;	// second
 	private static final int NUM_ITEMS_TO_GET = 10;
+	private static final int MAX_ITEMS_TO_GET = 1000;
+	private static final int DEFAULT_ASYNC_THREADS = 16;
+	private static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+	private static final int MAX_HELPER_THREADS = 256;
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final int DEFAULT_MAX_RETRIES = 2;
+	private static final long DEFAULT_INITIAL_BACKOFF = 50L;	// msec
+	private static final long DEFAULT_MAX_BACKOFF = 1000L;	// msec
+	private static final int DEFAULT_FAILURES_TO_OPEN = 5;
+	private static final long DEFAULT_OPEN_TIME = 10 * 1000L;	// msec
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 128;	// byte
 
 	private static final String PUT_TOOL_NAME = "put.py";
 	private static final String GET_TOOL_NAME = "get.py";
 	private static final String REMOVE_TOOL_NAME = "rm.py";
 
 	private String gateway;
-	XmlRpcClient client;
+	private volatile DHTTransport transport;
+
+	private int connectTimeout = 0;	// msec, 0 means no limit
+	private int readTimeout = 0;	// msec, 0 means no limit
+	private HttpConnectionPool connectionPool = null;
+	private boolean xmlRpcCodec = false;
+	private volatile DHTMetrics metrics = null;
+
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+	private int deadline = 0;	// msec, 0 means no limit
+	private final CircuitBreaker breaker =
+		new CircuitBreaker(DEFAULT_FAILURES_TO_OPEN, DEFAULT_OPEN_TIME);
+	private final Random rnd = new Random();
+
+	private int pageSize = NUM_ITEMS_TO_GET;
+	private int maxPageSize = MAX_ITEMS_TO_GET;
+	private boolean prefetch = true;
+
+	private boolean compression = false;
+	private int compressionLevel = Deflater.BEST_SPEED;
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private boolean removingAllForms = false;
+
+	private boolean coalescing = false;
+	private final ConcurrentHashMap<FlightKey,FutureTask<?>> flights =
+		new ConcurrentHashMap<FlightKey,FutureTask<?>>();
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private final BatchCaller batchCaller = new BatchCaller();
+
+	private static ExecutorService helperExecutor;
+
+	private int asyncThreads = DEFAULT_ASYNC_THREADS;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private ThreadPoolExecutor executor;
+	private Semaphore inFlight;
 
 	public DHTAccessor(String gateway) throws MalformedURLException {
 		this.setGateway(gateway);
@@ -48,24 +121,298 @@ public class DHTAccessor {
 
 	/**
 	 * Set the URL of the gateway.
+	 * A URL such as dhtb://localhost:5852/ is of a gateway speaking {@link BinaryProtocol}
+	 * instead of XML-RPC over HTTP.
 	 */
 	public void setGateway(String gateway) throws MalformedURLException {
+		DHTTransport t = this.newTransport(gateway);
+
 		this.gateway = gateway;	// save
 
-		URL gatewayURL = new URL(this.gateway);
+		DHTTransport old = this.transport;
+		this.transport = t;
+		if (old != null) old.close();
+	}
+
+	/**
+	 * Returns a transport to the gateway of the URL, which depends on the scheme of the URL.
+	 */
+	DHTTransport newTransport(String gateway) throws MalformedURLException {
+		if (BinaryDHTTransport.accepts(gateway)) {
+			return new BinaryDHTTransport(gateway,
+					shorter(this.connectTimeout, this.deadline), shorter(this.readTimeout, this.deadline),
+					this.metrics);
+		}
+
+		return new XmlRpcDHTTransport(this.getXmlRpcClient(new URL(gateway)));
+	}
 
-		this.client = getXmlRpcClient(gatewayURL);
+	/**
+	 * Sets the connect and read timeouts (in msec) of requests to the gateway.
+	 * 0 means no limit.
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) throws MalformedURLException {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+
+		this.setGateway(this.gateway);
 	}
 
-	private static XmlRpcClient getXmlRpcClient(URL gateway) {
+	public int getConnectTimeout() { return this.connectTimeout; }
+	public int getReadTimeout() { return this.readTimeout; }
+
+	/**
+	 * Sets a pool of persistent connections through which requests are sent.
+	 * null means the default transport, which is based on HttpURLConnection.
+	 * The pool is not used for a gateway speaking {@link BinaryProtocol},
+	 * whose connections are always kept open.
+	 */
+	public void setConnectionPool(HttpConnectionPool pool) throws MalformedURLException {
+		this.connectionPool = pool;
+
+		this.setGateway(this.gateway);
+	}
+
+	public HttpConnectionPool getConnectionPool() { return this.connectionPool; }
+
+	/**
+	 * Sets whether calls in XML-RPC are encoded and decoded by the codec of this package
+	 * instead of the serializer and SAX parser of Apache XML-RPC.
+	 * The codec reads a whole response into a buffer and scans it in place,
+	 * which allocates less than the SAX parser, but it does not support every type of XML-RPC.
+	 * false by default.
+	 */
+	public void setXmlRpcCodec(boolean xmlRpcCodec) throws MalformedURLException {
+		this.xmlRpcCodec = xmlRpcCodec;
+
+		this.setGateway(this.gateway);
+	}
+
+	public boolean getXmlRpcCodec() { return this.xmlRpcCodec; }
+
+	/**
+	 * Sets where the requests of this accessor are reported, such as a {@link DHTStatistics}.
+	 * null, the default, means they are not reported.
+	 */
+	public void setMetrics(DHTMetrics metrics) throws MalformedURLException {
+		this.metrics = metrics;
+
+		this.setGateway(this.gateway);
+	}
+
+	public DHTMetrics getMetrics() { return this.metrics; }
+
+	XmlRpcClient getXmlRpcClient(URL gateway) {
 		XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
 		config.setServerURL(gateway);
+		config.setConnectionTimeout(shorter(this.connectTimeout, this.deadline));
+		config.setReplyTimeout(shorter(this.readTimeout, this.deadline));
 		XmlRpcClient client = new XmlRpcClient();
 		client.setConfig(config);
 
+		if (this.connectionPool != null) {
+			PooledHttpTransportFactory factory =
+				new PooledHttpTransportFactory(client, this.connectionPool, this.xmlRpcCodec);
+			factory.setMetrics(this.metrics);
+			client.setTransportFactory(factory);
+		}
+		else if (this.xmlRpcCodec || this.metrics != null) {
+			client.setTransportFactory(new SunHttpTransportFactory(client, this.xmlRpcCodec, this.metrics));
+		}
+
 		return client;
 	}
 
+	// the shorter of two limits, where 0 means no limit
+	private static int shorter(int a, int b) {
+		if (a <= 0) return b;
+		if (b <= 0) return a;
+		return Math.min(a, b);
+	}
+
+	/**
+	 * Sets how many times a request which failed to communicate with the gateway is retried,
+	 * and the range of the backoff (in msec) before a retry.
+	 * The backoff doubles at each retry, and a random time below it is waited.
+	 * A request which timed out or was answered with a fault is not retried.
+	 */
+	public void setRetries(int maxRetries, long initialBackoff, long maxBackoff) {
+		if (maxRetries < 0 || initialBackoff < 0L || maxBackoff < initialBackoff) {
+			throw new IllegalArgumentException("maxRetries: " + maxRetries
+					+ ", initialBackoff: " + initialBackoff + ", maxBackoff: " + maxBackoff);
+		}
+
+		this.maxRetries = maxRetries;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	public int getMaxRetries() { return this.maxRetries; }
+
+	/**
+	 * Sets how long (in msec) a request can take including its retries.
+	 * A request to the gateway also times out by then. 0 means no limit.
+	 */
+	public void setDeadline(int msec) throws MalformedURLException {
+		if (msec < 0) {
+			throw new IllegalArgumentException("msec: " + msec);
+		}
+
+		this.deadline = msec;
+
+		this.setGateway(this.gateway);
+	}
+
+	public int getDeadline() { return this.deadline; }
+
+	/**
+	 * Sets the number of failures in a row after which requests to the gateway are
+	 * failed with DHTUnavailableException without being sent,
+	 * and how long (in msec) they are failed until a trial request is sent.
+	 */
+	public void setCircuitBreaker(int failures, long msec) {
+		if (failures <= 0 || msec <= 0L) {
+			throw new IllegalArgumentException("failures: " + failures + ", msec: " + msec);
+		}
+
+		this.breaker.set(failures, msec);
+	}
+
+	/**
+	 * Calls a method of the gateway, retrying it according to the policy of this accessor.
+	 */
+	Object call(String methodName, Object[] params) {
+		long start = System.currentTimeMillis();
+
+		for (int retries = 0; ; retries++) {
+			DHTException failure;
+			try {
+				return this.execute(methodName, params);
+			}
+			catch (XmlRpcException e) {
+				failure = toDHTException(e);
+			}
+
+			if (!(failure instanceof DHTTransportException) || failure instanceof DHTTimeoutException
+					|| retries >= this.maxRetries) {
+				throw failure;
+			}
+
+			long backoff = Math.min(this.initialBackoff << Math.min(retries, 20), this.maxBackoff);
+			backoff = (long)(this.rnd.nextDouble() * backoff);
+
+			if (this.deadline > 0
+					&& System.currentTimeMillis() + backoff - start >= this.deadline) {
+				throw new DHTTimeoutException("deadline of " + this.deadline + " msec passed", failure);
+			}
+
+			try {
+				Thread.sleep(backoff);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Calls a method of the gateway once. Every request of this accessor goes through here.
+	 */
+	Object execute(String methodName, Object[] params) throws XmlRpcException {
+		if (!this.breaker.allowRequest()) {
+			DHTUnavailableException e =
+				new DHTUnavailableException(this.gateway + " is not used for its failures");
+
+			DHTMetrics m = this.metrics;
+			if (m != null) {
+				m.requestStarted(this.gateway, methodName);
+				m.requestFinished(this.gateway, methodName, 0L, e);
+			}
+			throw e;
+		}
+
+		boolean recorded = false;
+		try {
+			Object result = this.send(this.transport, this.gateway, methodName, params);
+			this.breaker.succeeded();
+			recorded = true;
+			return result;
+		}
+		catch (XmlRpcException e) {
+			if (isGatewayFailure(e)) {
+				this.breaker.failed();
+			}
+			else {
+				// the gateway is alive and answered with a fault
+				this.breaker.succeeded();
+			}
+			recorded = true;
+			throw e;
+		}
+		finally {
+			// any other exception counts as a failure, which also ends a trial
+			if (!recorded) this.breaker.failed();
+		}
+	}
+
+	/**
+	 * Sends a request through a transport, reporting it to the metrics if any.
+	 */
+	Object send(DHTTransport transport, String gateway, String methodName, Object[] params)
+			throws XmlRpcException {
+		DHTMetrics m = this.metrics;
+		if (m == null) return transport.execute(methodName, params);
+
+		DHTException failure = null;
+		m.requestStarted(gateway, methodName);
+		long start = System.nanoTime();
+		try {
+			return transport.execute(methodName, params);
+		}
+		catch (XmlRpcException e) {
+			failure = toDHTException(e);
+			throw e;
+		}
+		catch (RuntimeException e) {
+			failure = (e instanceof DHTException ? (DHTException)e : new DHTException(e.toString(), e));
+			throw e;
+		}
+		finally {
+			m.requestFinished(gateway, methodName, System.nanoTime() - start, failure);
+		}
+	}
+
+	/**
+	 * Converts an exception of XML-RPC into the DHTException telling why the call failed.
+	 */
+	static DHTException toDHTException(XmlRpcException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SocketTimeoutException) return new DHTTimeoutException(e.getMessage(), e);
+			if (t.getCause() == t) break;
+		}
+
+		if (isGatewayFailure(e)) {
+			return new DHTTransportException(e.getMessage(), e);
+		}
+
+		return new DHTFaultException(e.code, e.getMessage(), e);
+	}
+
+	/**
+	 * Returns whether the call failed because of the gateway, which could not be communicated with
+	 * or answered with an HTTP error such as 503, rather than with a fault.
+	 */
+	static boolean isGatewayFailure(XmlRpcException e) {
+		if (BatchCaller.isCommunicationFailure(e)) return true;
+
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof XmlRpcHttpTransportException) return true;
+			if (t.getCause() == t) break;
+		}
+		return false;
+	}
+
 	/**
 	 * Puts a key-value pair.
 	 */
@@ -75,18 +422,26 @@ public class DHTAccessor {
 
 	/**
 	 * Puts a key-value pair with a secret, which is required to remove the pair.
+	 * Returns the result of the gateway: 0 on success, 1 if the gateway is over capacity,
+	 * and 2 if the put should be tried again.
+	 *
+	 * @throws DHTException if the put failed
 	 */
 	public int put(byte[] key, byte[] value, int ttl /* sec */, byte[] secret) {
+		String methodName = (secret == null ? "put" : "put_removable");
+		Object[] params = putParams(key, this.encode(value), ttl, secret);
+
+		return (Integer)this.call(methodName, params);
+	}
+
+	private static Object[] putParams(byte[] key, byte[] value, int ttl, byte[] secret) {
 		Object[] params;
-		String methodName;
 
 		if (ttl <= 0) {
 			ttl = DEFAULT_TTL;
 		}
 
 		if (secret == null) {
-			methodName = "put";
-
 			params = new Object[4];
 			params[0] = Util.hashWithSHA1(key);
 			params[1] = value;
@@ -94,8 +449,6 @@ public class DHTAccessor {
 			params[3] = PUT_TOOL_NAME;
 		}
 		else {
-			methodName = "put_removable";
-
 			params = new Object[6];
 			params[0] = Util.hashWithSHA1(key);
 			params[1] = value;
@@ -105,105 +458,288 @@ public class DHTAccessor {
 			params[5] = PUT_TOOL_NAME;
 		}
 
-		int res = -1;
-		try {
-			res = (Integer)this.client.execute(methodName, params);
-		} catch (XmlRpcException e) {
-			e.printStackTrace();
+		return params;
+	}
+
+	/**
+	 * Gets a key-value pair.
+	 */
+	public Set<ByteArray> get(byte[] key) {
+		return this.get(key, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Gets at most the specified number of values of a key.
+	 * An empty set means the key has no values.
+	 *
+	 * @throws DHTPartialResultException if the get failed after a part of the values was got
+	 * @throws DHTException if the get failed
+	 */
+	public Set<ByteArray> get(byte[] key, final int maxValues) {
+		final byte[] hashedKey = Util.hashWithSHA1(key);
+
+		if (!this.coalescing) {
+			return collect(this.newGetIterator(hashedKey, maxValues));
 		}
 
-		return res;
+		return this.coalesce("get", hashedKey, maxValues, new Callable<Set<ByteArray>>() {
+			public Set<ByteArray> call() {
+				return Collections.unmodifiableSet(
+						collect(DHTAccessor.this.newGetIterator(hashedKey, maxValues)));
+			}
+		});
 	}
 
 	/**
-	 * Gets a key-value pair.
+	 * Gets a key-value pair in detail.
 	 */
-	public Set<byte[]> get(byte[] key) {
-		String methodName = "get";
+	public Set<DetailedGetResult> getDetails(byte[] key) {
+		return this.getDetails(key, Integer.MAX_VALUE);
+	}
 
-		byte[] pm = null;
-		try {
-			pm = "".getBytes("US-ASCII");
-		} catch (UnsupportedEncodingException e1) {
-			// NOTREACHED
+	/**
+	 * Gets at most the specified number of values of a key in detail.
+	 *
+	 * @throws DHTPartialResultException if the get failed after a part of the values was got
+	 * @throws DHTException if the get failed
+	 */
+	public Set<DetailedGetResult> getDetails(byte[] key, final int maxValues) {
+		final byte[] hashedKey = Util.hashWithSHA1(key);
+
+		if (!this.coalescing) {
+			return collect(this.newGetDetailsIterator(hashedKey, maxValues));
 		}
 
-		Object[] params = new Object[4];
-		params[0] = Util.hashWithSHA1(key);
-		params[1] = NUM_ITEMS_TO_GET;
-		params[2] = pm;
-		params[3] = GET_TOOL_NAME;
+		return this.coalesce("get_details", hashedKey, maxValues, new Callable<Set<DetailedGetResult>>() {
+			public Set<DetailedGetResult> call() {
+				return Collections.unmodifiableSet(
+						collect(DHTAccessor.this.newGetDetailsIterator(hashedKey, maxValues)));
+			}
+		});
+	}
 
-		Set<byte[]> results = new HashSet<byte[]>();
+	/**
+	 * Returns an iterator over the values of a key,
+	 * which fetches values from the gateway as they are consumed.
+	 */
+	public GetIterator<ByteArray> getIterator(byte[] key) {
+		return this.getIterator(key, Integer.MAX_VALUE);
+	}
 
-		while (true) {
-			Object[] rpcResults = null;
-			try {
-				rpcResults = (Object[])this.client.execute(methodName, params);
-			} catch (XmlRpcException e) {
-				e.printStackTrace();
-				break;
+	/**
+	 * Returns an iterator over at most the specified number of values of a key.
+	 */
+	public GetIterator<ByteArray> getIterator(byte[] key, int maxValues) {
+		return this.newGetIterator(Util.hashWithSHA1(key), maxValues);
+	}
+
+	/**
+	 * Returns an iterator over the values of a key in detail,
+	 * which fetches values from the gateway as they are consumed.
+	 */
+	public GetIterator<DetailedGetResult> getDetailsIterator(byte[] key) {
+		return this.getDetailsIterator(key, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns an iterator over at most the specified number of values of a key in detail.
+	 */
+	public GetIterator<DetailedGetResult> getDetailsIterator(byte[] key, int maxValues) {
+		return this.newGetDetailsIterator(Util.hashWithSHA1(key), maxValues);
+	}
+
+	private GetIterator<ByteArray> newGetIterator(byte[] hashedKey, int maxValues) {
+		return this.newGetIterator(this.newPageFetcher("get", hashedKey, maxValues));
+	}
+
+	private GetIterator<ByteArray> newGetIterator(PageFetcher fetcher) {
+		return new GetIterator<ByteArray>(fetcher) {
+			ByteArray convert(Object o) {
+				return ByteArray.wrap(ValueCodec.decode((byte[])o));
 			}
+		};
+	}
 
-			Object[] values = (Object[])rpcResults[0];
+	private GetIterator<DetailedGetResult> newGetDetailsIterator(byte[] hashedKey, int maxValues) {
+		return new GetIterator<DetailedGetResult>(this.newPageFetcher("get_details", hashedKey, maxValues)) {
+			DetailedGetResult convert(Object o) {
+				Object[] v = (Object[])o;
 
-			for (Object o: values) {
-				results.add((byte[])o);
+				return new DetailedGetResult(
+						ValueCodec.decode((byte[])v[0]), (Integer)v[1], (String)v[2], (byte[])v[3]);
 			}
+		};
+	}
+
+	private PageFetcher newPageFetcher(String methodName, byte[] hashedKey, int maxValues) {
+		return new PageFetcher(this, methodName, hashedKey, GET_TOOL_NAME,
+				this.pageSize, this.maxPageSize, this.prefetch, maxValues, this.metrics);
+	}
 
-			pm = (byte[])rpcResults[1];
-			if (pm.length <= 0) break;
+	private static <T> Set<T> collect(Iterator<T> it) {
+		Set<T> results = new HashSet<T>();
+
+		try {
+			while (it.hasNext()) {
+				results.add(it.next());
+			}
+		}
+		catch (DHTException e) {
+			if (results.isEmpty()) throw e;
+			throw new DHTPartialResultException(results, e);
 		}
 
 		return results;
 	}
 
 	/**
-	 * Gets a key-value pair in detail.
+	 * Sets whether concurrent gets of the same key share a request to the gateway.
+	 * Sets returned by a shared get cannot be modified.
 	 */
-	public Set<DetailedGetResult> getDetails(byte[] key) {
-		String methodName = "get_details";
+	public void setCoalescing(boolean coalescing) { this.coalescing = coalescing; }
 
-		byte[] pm = null;
-		try {
-			pm = "".getBytes("US-ASCII");
-		} catch (UnsupportedEncodingException e1) {
-			// NOTREACHED
-		}
+	public boolean getCoalescing() { return this.coalescing; }
 
-		Object[] params = new Object[4];
-		params[0] = Util.hashWithSHA1(key);
-		params[1] = NUM_ITEMS_TO_GET;
-		params[2] = pm;
-		params[3] = GET_TOOL_NAME;
+	/**
+	 * Returns the number of gets which were answered by a request of another get.
+	 */
+	public long getCoalescedCount() { return this.coalescedCount.get(); }
 
-		Set<DetailedGetResult> results = new HashSet<DetailedGetResult>();
+	// runs the task unless the same get is in flight, whose result is shared instead
+	private <T> Set<T> coalesce(String methodName, byte[] hashedKey, int maxValues,
+			Callable<Set<T>> task) {
+		FlightKey fk = new FlightKey(methodName, hashedKey, maxValues);
+		FutureTask<Set<T>> future = new FutureTask<Set<T>>(task);
 
-		while (true) {
-			Object[] rpcResults = null;
+		FutureTask<?> inFlight = this.flights.putIfAbsent(fk, future);
+		if (inFlight == null) {
 			try {
-				rpcResults = (Object[])this.client.execute(methodName, params);
-			} catch (XmlRpcException e) {
-				e.printStackTrace();
-				break;
+				future.run();
+			}
+			finally {
+				this.flights.remove(fk, future);
 			}
 
-			Object[] values = (Object[])rpcResults[0];
+			inFlight = future;
+		}
+		else {
+			this.coalescedCount.incrementAndGet();
+		}
 
-			for (Object o: values) {
-				Object[] v = (Object[])o;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					@SuppressWarnings("unchecked")
+					Set<T> result = (Set<T>)inFlight.get();
+					return result;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+		finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
 
-				DetailedGetResult getResult = new DetailedGetResult(
-						(byte[])v[0], (Integer)v[1], (String)v[2], (byte[])v[3]);
+	private static class FlightKey {
+		private final String methodName;
+		private final ByteArray hashedKey;
+		private final int maxValues;
 
-				results.add(getResult);
-			}
+		FlightKey(String methodName, byte[] hashedKey, int maxValues) {
+			this.methodName = methodName;
+			this.hashedKey = ByteArray.wrap(hashedKey);
+			this.maxValues = maxValues;
+		}
 
-			pm = (byte[])rpcResults[1];
-			if (pm.length <= 0) break;
+		public int hashCode() {
+			return (this.hashedKey.hashCode() * 31 + this.maxValues) * 31 + this.methodName.hashCode();
 		}
 
-		return results;
+		public boolean equals(Object o) {
+			if (!(o instanceof FlightKey)) return false;
+
+			FlightKey other = (FlightKey)o;
+			return this.maxValues == other.maxValues
+				&& this.methodName.equals(other.methodName)
+				&& this.hashedKey.equals(other.hashedKey);
+		}
+	}
+
+	/**
+	 * Sets the number of values requested for the first page of a get,
+	 * and the limit up to which it is doubled while pages come back full.
+	 */
+	public void setPageSize(int initial, int max) {
+		if (initial <= 0 || max < initial) {
+			throw new IllegalArgumentException("initial: " + initial + ", max: " + max);
+		}
+
+		this.pageSize = initial;
+		this.maxPageSize = max;
+	}
+
+	public int getPageSize() { return this.pageSize; }
+	public int getMaxPageSize() { return this.maxPageSize; }
+
+	/**
+	 * Sets whether the next page of a get is requested
+	 * while the current page is being processed.
+	 */
+	public void setPrefetch(boolean prefetch) { this.prefetch = prefetch; }
+
+	public boolean getPrefetch() { return this.prefetch; }
+
+	/**
+	 * Sets whether values are compressed when put.
+	 * Compressed values are decompressed when got regardless of this setting,
+	 * and values put without compression are got as they are.
+	 * A value is removed as it is and as this accessor would put it,
+	 * but not in a form compressed by another client or with other settings
+	 * unless {@link #setRemovingAllForms(boolean)} is set.
+	 */
+	public void setCompression(boolean compression) { this.compression = compression; }
+
+	/**
+	 * Compresses values when put with Deflate of the specified level (1 to 9),
+	 * if they are at least the threshold in bytes and get smaller.
+	 */
+	public void setCompression(int level, int threshold) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION || threshold < 0) {
+			throw new IllegalArgumentException("level: " + level + ", threshold: " + threshold);
+		}
+
+		this.compressionLevel = level;
+		this.compressionThreshold = threshold;
+		this.compression = true;
+	}
+
+	public boolean getCompression() { return this.compression; }
+	public int getCompressionLevel() { return this.compressionLevel; }
+	public int getCompressionThreshold() { return this.compressionThreshold; }
+
+	/**
+	 * Sets whether a remove looks for the value in every form it is stored in,
+	 * for keys whose values may have been compressed by other clients or with other settings.
+	 * A remove of a value long enough to be compressed then gets all the values of the key.
+	 * Default is false.
+	 */
+	public void setRemovingAllForms(boolean removingAllForms) { this.removingAllForms = removingAllForms; }
+
+	public boolean getRemovingAllForms() { return this.removingAllForms; }
+
+	private byte[] encode(byte[] value) {
+		if (!this.compression) return value;
+		return ValueCodec.encode(value, this.compressionLevel, this.compressionThreshold);
 	}
 
 	/**
@@ -215,10 +751,61 @@ public class DHTAccessor {
 
 	/**
 	 * Removes a key-value pair.
+	 * Returns the result of the gateway like {@link #put(byte[], byte[], int, byte[])}.
+	 * <p>
+	 * The value is removed as it is and as this accessor would put it.
+	 * Because the compressed bytes depend on the client and the settings which put it,
+	 * a value compressed otherwise is removed only if {@link #setRemovingAllForms(boolean)} is set,
+	 * in which case the forms are found by getting the values of the key.
+	 *
+	 * @throws DHTException if the remove failed
 	 */
 	public int remove(byte[] key, byte[] value, int ttl, byte[] secret) {
 		String methodName = "rm";
 
+		int result = 0;
+		for (byte[] form: this.storedForms(key, value)) {
+			int res = (Integer)this.call(methodName, removeParams(key, form, ttl, secret));
+			if (result == 0) result = res;
+		}
+
+		return result;
+	}
+
+	// the value as it is, as this accessor puts it, and the encoded forms of it stored under the key
+	// if removing all forms
+	private List<byte[]> storedForms(byte[] key, byte[] value) {
+		List<byte[]> forms = new ArrayList<byte[]>(2);
+		forms.add(value);
+
+		byte[] encoded = this.encode(value);
+		if (encoded != value) forms.add(encoded);
+
+		if (!this.removingAllForms || !ValueCodec.mayBeEncoded(value)) return forms;
+
+		GetIterator<byte[]> it = new GetIterator<byte[]>(
+				this.newPageFetcher("get", Util.hashWithSHA1(key), Integer.MAX_VALUE)) {
+			byte[] convert(Object o) {
+				return (byte[])o;
+			}
+		};
+		while (it.hasNext()) {
+			byte[] stored = it.next();
+
+			byte[] decoded = ValueCodec.decode(stored);
+			if (decoded == stored || !Arrays.equals(decoded, value)) continue;
+
+			boolean listed = false;
+			for (byte[] form: forms) {
+				if (Arrays.equals(form, stored)) listed = true;
+			}
+			if (!listed) forms.add(stored);
+		}
+
+		return forms;
+	}
+
+	private static Object[] removeParams(byte[] key, byte[] value, int ttl, byte[] secret) {
 		Object[] params = new Object[6];
 		params[0] = Util.hashWithSHA1(key);
 		params[1] = Util.hashWithSHA1(value);
@@ -227,13 +814,474 @@ public class DHTAccessor {
 		params[4] = ttl;
 		params[5] = REMOVE_TOOL_NAME;
 
-		int res = -1;
+		return params;
+	}
+
+	/**
+	 * Sets the number of calls packed into a system.multicall request
+	 * by putAll, getAll and removeAll.
+	 */
+	public void setBatchSize(int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size: " + size);
+		}
+
+		this.batchSize = size;
+	}
+
+	public int getBatchSize() { return this.batchSize; }
+
+	/**
+	 * Puts many key-value pairs, in system.multicall requests if the gateway supports it.
+	 * Requests are sent concurrently, as many at once as the asynchronous worker threads.
+	 * Returns the result of each put.
+	 *
+	 * @throws DHTPartialResultException with the results, in which a failed put is -1,
+	 *         if some of the puts failed
+	 * @throws DHTException if all of the puts failed
+	 */
+	public int[] putAll(byte[][] keys, byte[][] values, int ttl /* sec */, byte[] secret) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("keys: " + keys.length + ", values: " + values.length);
+		}
+
+		Object[][] paramsList = new Object[keys.length][];
+		for (int i = 0; i < keys.length; i++) {
+			paramsList[i] = putParams(keys[i], this.encode(values[i]), ttl, secret);
+		}
+
+		return this.callAll((secret == null ? "put" : "put_removable"), paramsList);
+	}
+
+	/**
+	 * Removes many key-value pairs, in system.multicall requests if the gateway supports it.
+	 * Returns the result of each remove.
+	 * Each value is removed in the forms {@link #remove(byte[], byte[], int, byte[])} removes.
+	 *
+	 * @throws DHTPartialResultException with the results, in which a failed remove is -1,
+	 *         if some of the removes failed
+	 * @throws DHTException if all of the removes failed
+	 */
+	public int[] removeAll(byte[][] keys, byte[][] values, int ttl, byte[] secret) {
+		if (keys.length != values.length) {
+			throw new IllegalArgumentException("keys: " + keys.length + ", values: " + values.length);
+		}
+
+		// the forms of the values stored, which take a get of each key if removing all forms
+		final Object[] forms = new Object[keys.length];
+		List<Callable<Void>> lookups = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < keys.length; i++) {
+			if (!this.removingAllForms) {
+				forms[i] = this.storedForms(keys[i], values[i]);
+				continue;
+			}
+
+			final int index = i;
+			final byte[] key = keys[i], value = values[i];
+
+			lookups.add(new Callable<Void>() {
+				public Void call() {
+					try {
+						forms[index] = DHTAccessor.this.storedForms(key, value);
+					}
+					catch (DHTException e) {
+						forms[index] = e;
+					}
+					return null;
+				}
+			});
+		}
+		BatchCaller.runAll(lookups, this.asyncThreads);
+
+		List<Object[]> paramsList = new ArrayList<Object[]>();
+		List<Integer> owners = new ArrayList<Integer>();	// the index of the key of each remove
+		for (int i = 0; i < keys.length; i++) {
+			if (!(forms[i] instanceof List)) continue;
+
+			for (Object form: (List<?>)forms[i]) {
+				paramsList.add(removeParams(keys[i], (byte[])form, ttl, secret));
+				owners.add(i);
+			}
+		}
+
+		Object[] results = this.batchCaller.call(this, "rm",
+				paramsList.toArray(new Object[paramsList.size()][]), this.batchSize, this.asyncThreads);
+
+		// the result of a key is the failure or the first result other than success of its removes
+		Object[] keyResults = new Object[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			if (!(forms[i] instanceof List)) keyResults[i] = forms[i];
+		}
+		for (int j = 0; j < results.length; j++) {
+			int i = owners.get(j);
+			Object r = keyResults[i];
+			if (r == null || (r instanceof Integer && (Integer)r == 0)) keyResults[i] = results[j];
+		}
+
+		return toCodes(keyResults);
+	}
+
+	private int[] callAll(String methodName, Object[][] paramsList) {
+		return toCodes(this.batchCaller.call(this, methodName, paramsList,
+				this.batchSize, this.asyncThreads));
+	}
+
+	// the results of the calls, or throws the failure of any of them
+	private static int[] toCodes(Object[] results) {
+		int[] codes = new int[results.length];
+		DHTException failure = null;
+		boolean succeeded = false;
+
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] instanceof Integer) {
+				codes[i] = (Integer)results[i];
+				succeeded = true;
+			}
+			else {
+				codes[i] = -1;
+				if (failure == null) failure = toFailure(results[i]);
+			}
+		}
+
+		if (failure != null) {
+			if (!succeeded) throw failure;
+			throw new DHTPartialResultException(codes, failure);
+		}
+
+		return codes;
+	}
+
+	// the failure of a call made by BatchCaller
+	private static DHTException toFailure(Object result) {
+		if (result instanceof DHTException) return (DHTException)result;
+		if (result instanceof XmlRpcException) return toDHTException((XmlRpcException)result);
+		return new DHTException("invalid result: " + result);
+	}
+
+	/**
+	 * Gets the values of many keys. The first page of every key is got
+	 * in system.multicall requests if the gateway supports it,
+	 * and the rest of the pages are got concurrently.
+	 * Returns the values of each key in the order of the keys.
+	 *
+	 * @throws DHTPartialResultException with the values got,
+	 *         if the values of some of the keys failed to be got
+	 * @throws DHTException if the values of all of the keys failed to be got
+	 */
+	public List<Set<ByteArray>> getAll(byte[][] keys) {
+		final byte[][] hashedKeys = new byte[keys.length][];
+		Object[][] paramsList = new Object[keys.length][];
+
+		for (int i = 0; i < keys.length; i++) {
+			hashedKeys[i] = Util.hashWithSHA1(keys[i]);
+
+			Object[] params = new Object[4];
+			params[0] = hashedKeys[i];
+			params[1] = this.pageSize;
+			params[2] = new byte[0];
+			params[3] = GET_TOOL_NAME;
+			paramsList[i] = params;
+		}
+
+		Object[] results = this.batchCaller.call(this, "get", paramsList,
+				this.batchSize, this.asyncThreads);
+
+		List<Set<ByteArray>> sets = new ArrayList<Set<ByteArray>>(keys.length);
+		List<Callable<Void>> rest = new ArrayList<Callable<Void>>();
+		final AtomicReference<DHTException> failure = new AtomicReference<DHTException>();
+		boolean succeeded = false;
+
+		for (int i = 0; i < keys.length; i++) {
+			final Set<ByteArray> set = new HashSet<ByteArray>();
+			sets.add(set);
+
+			if (!(results[i] instanceof Object[])) {
+				failure.compareAndSet(null, toFailure(results[i]));
+				continue;
+			}
+			succeeded = true;
+
+			Object[] rpcResults = (Object[])results[i];
+			Object[] values = (Object[])rpcResults[0];
+			for (Object o: values) {
+				set.add(ByteArray.wrap(ValueCodec.decode((byte[])o)));
+			}
+
+			byte[] pm = (byte[])rpcResults[1];
+			if (pm.length > 0) {
+				final PageFetcher fetcher = this.newPageFetcher("get", hashedKeys[i], Integer.MAX_VALUE);
+				fetcher.resume(pm, values.length);
+
+				rest.add(new Callable<Void>() {
+					public Void call() {
+						Iterator<ByteArray> it = DHTAccessor.this.newGetIterator(fetcher);
+						try {
+							while (it.hasNext()) {
+								set.add(it.next());
+							}
+						}
+						catch (DHTException e) {
+							failure.compareAndSet(null, e);
+						}
+						return null;
+					}
+				});
+			}
+			else if (this.metrics != null) {
+				this.metrics.pagesFetched("get", 1);
+			}
+		}
+
+		BatchCaller.runAll(rest, this.asyncThreads);
+
+		if (failure.get() != null) {
+			if (!succeeded) throw failure.get();
+			throw new DHTPartialResultException(sets, failure.get());
+		}
+
+		return sets;
+	}
+
+	/**
+	 * Sets the number of worker threads which process asynchronous requests.
+	 * A worker thread is taken by an asynchronous request until the gateway answers it,
+	 * so this is the number of asynchronous requests sent to the gateway at once.
+	 * The other requests wait in a queue, up to the maximum number of requests in flight.
+	 * The worker threads are started by the first asynchronous requests and kept until shutdown.
+	 */
+	public synchronized void setAsyncThreads(int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads: " + threads);
+		}
+
+		this.asyncThreads = threads;
+
+		if (this.executor != null) {
+			if (threads > this.executor.getMaximumPoolSize()) {
+				this.executor.setMaximumPoolSize(threads);
+				this.executor.setCorePoolSize(threads);
+			}
+			else {
+				this.executor.setCorePoolSize(threads);
+				this.executor.setMaximumPoolSize(threads);
+			}
+		}
+	}
+
+	public int getAsyncThreads() { return this.asyncThreads; }
+
+	/**
+	 * Sets the maximum number of asynchronous requests in flight.
+	 * An asynchronous call blocks the caller while the limit is reached.
+	 * It can be set only before the first asynchronous call or after {@link #shutdown()}.
+	 *
+	 * @throws IllegalStateException if asynchronous calls have been made
+	 */
+	public synchronized void setMaxInFlight(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("max: " + max);
+		}
+		if (this.executor != null) {
+			throw new IllegalStateException("asynchronous calls have been made");
+		}
+
+		this.maxInFlight = max;
+	}
+
+	/**
+	 * Stops the worker threads for asynchronous requests,
+	 * and closes the connections kept open by the transport.
+	 * Requests already submitted are completed.
+	 */
+	public synchronized void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdown();
+			this.executor = null;
+			this.inFlight = null;
+		}
+
+		this.transport.close();
+	}
+
+	/**
+	 * Puts a key-value pair asynchronously.
+	 */
+	public Future<Integer> putAsync(byte[] key, byte[] value, int ttl /* sec */) {
+		return this.putAsync(key, value, ttl, null, null);
+	}
+
+	/**
+	 * Puts a key-value pair with a secret asynchronously.
+	 */
+	public Future<Integer> putAsync(byte[] key, byte[] value, int ttl /* sec */, byte[] secret) {
+		return this.putAsync(key, value, ttl, secret, null);
+	}
+
+	/**
+	 * Puts a key-value pair with a secret asynchronously
+	 * and notifies the callback of the result.
+	 */
+	public Future<Integer> putAsync(final byte[] key, final byte[] value, final int ttl /* sec */,
+			final byte[] secret, DHTCallback<Integer> callback) {
+		return this.submit(new Callable<Integer>() {
+			public Integer call() {
+				return DHTAccessor.this.put(key, value, ttl, secret);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Gets a key-value pair asynchronously.
+	 */
+	public Future<Set<ByteArray>> getAsync(byte[] key) {
+		return this.getAsync(key, null);
+	}
+
+	/**
+	 * Gets a key-value pair asynchronously and notifies the callback of the result.
+	 */
+	public Future<Set<ByteArray>> getAsync(final byte[] key, DHTCallback<Set<ByteArray>> callback) {
+		return this.submit(new Callable<Set<ByteArray>>() {
+			public Set<ByteArray> call() {
+				return DHTAccessor.this.get(key);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Gets a key-value pair in detail asynchronously.
+	 */
+	public Future<Set<DetailedGetResult>> getDetailsAsync(byte[] key) {
+		return this.getDetailsAsync(key, null);
+	}
+
+	/**
+	 * Gets a key-value pair in detail asynchronously
+	 * and notifies the callback of the result.
+	 */
+	public Future<Set<DetailedGetResult>> getDetailsAsync(final byte[] key,
+			DHTCallback<Set<DetailedGetResult>> callback) {
+		return this.submit(new Callable<Set<DetailedGetResult>>() {
+			public Set<DetailedGetResult> call() {
+				return DHTAccessor.this.getDetails(key);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Removes a key-value pair asynchronously.
+	 */
+	public Future<Integer> removeAsync(byte[] key, byte[] value, byte[] secret) {
+		return this.removeAsync(key, value, DEFAULT_TTL, secret, null);
+	}
+
+	/**
+	 * Removes a key-value pair asynchronously.
+	 */
+	public Future<Integer> removeAsync(byte[] key, byte[] value, int ttl, byte[] secret) {
+		return this.removeAsync(key, value, ttl, secret, null);
+	}
+
+	/**
+	 * Removes a key-value pair asynchronously and notifies the callback of the result.
+	 */
+	public Future<Integer> removeAsync(final byte[] key, final byte[] value, final int ttl,
+			final byte[] secret, DHTCallback<Integer> callback) {
+		return this.submit(new Callable<Integer>() {
+			public Integer call() {
+				return DHTAccessor.this.remove(key, value, ttl, secret);
+			}
+		}, callback);
+	}
+
+	private <T> Future<T> submit(Callable<T> task, final DHTCallback<T> callback) {
+		ExecutorService ex;
+		final Semaphore sem;
+		synchronized (this) {
+			if (this.executor == null) {
+				this.executor = new ThreadPoolExecutor(this.asyncThreads, this.asyncThreads,
+						60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+						new WorkerThreadFactory());
+				this.inFlight = new Semaphore(this.maxInFlight);
+			}
+
+			ex = this.executor;
+			sem = this.inFlight;
+		}
+
+		sem.acquireUninterruptibly();
+
+		FutureTask<T> future = new FutureTask<T>(task) {
+			protected void done() {
+				sem.release();
+
+				if (callback == null) return;
+
+				T result;
+				try {
+					result = this.get();
+				}
+				catch (ExecutionException e) {
+					callback.failed(e.getCause());
+					return;
+				}
+				catch (CancellationException e) {
+					callback.failed(e);
+					return;
+				}
+				catch (InterruptedException e) {
+					// NOTREACHED
+					callback.failed(e);
+					return;
+				}
+
+				callback.completed(result);
+			}
+		};
+
 		try {
-			res = (Integer)this.client.execute(methodName, params);
-		} catch (XmlRpcException e) {
-			e.printStackTrace();
+			ex.execute(future);
 		}
+		catch (RejectedExecutionException e) {
+			sem.release();
+			throw e;
+		}
+
+		return future;
+	}
+
+	/**
+	 * Returns the executor of tasks which block on the network
+	 * on behalf of a request, such as prefetching a page.
+	 * While all of its threads are busy, a task runs on the thread submitting it
+	 * rather than waiting in a queue, because the requests may be waiting for the tasks.
+	 */
+	static synchronized ExecutorService getHelperExecutor() {
+		if (helperExecutor == null) {
+			helperExecutor = new ThreadPoolExecutor(0, MAX_HELPER_THREADS,
+					60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					new ThreadFactory() {
+						private int count = 0;
 
-		return res;
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "DHTAccessor helper " + (this.count++));
+							t.setDaemon(true);
+							return t;
+						}
+					},
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+
+		return helperExecutor;
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private int count = 0;
+
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "DHTAccessor worker " + (this.count++));
+			t.setDaemon(true);
+			return t;
+		}
 	}
 }
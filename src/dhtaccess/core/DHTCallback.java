@@ -0,0 +1,33 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+/**
+ * Receives the outcome of an asynchronous request issued to a {@link DHTAccessor}.
+ * Methods are called on a worker thread of the accessor and should return quickly.
+ */
+public interface DHTCallback<T> {
+	/**
+	 * Called when the request completed.
+	 */
+	void completed(T result);
+
+	/**
+	 * Called when the request failed or was cancelled.
+	 */
+	void failed(Throwable cause);
+}
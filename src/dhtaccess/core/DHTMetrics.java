@@ -0,0 +1,57 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+/**
+ * Receives what a {@link DHTAccessor} does, to be counted and timed.
+ * {@link DHTStatistics} keeps the figures in memory and exposes them over JMX,
+ * and another implementation can pass them to a monitoring system.
+ * <p>
+ * Methods are called on the threads making requests, so they should return quickly
+ * and be thread-safe.
+ */
+public interface DHTMetrics {
+	/**
+	 * Called before a request is sent to a gateway.
+	 *
+	 * @param methodName the method of the gateway, such as put or get_details
+	 */
+	void requestStarted(String gateway, String methodName);
+
+	/**
+	 * Called after a request completes or fails, or is not sent
+	 * because the gateway is left out for its failures.
+	 *
+	 * @param nanos how long the request took
+	 * @param failure why the request failed, or null if it succeeded
+	 */
+	void requestFinished(String gateway, String methodName, long nanos, DHTException failure);
+
+	/**
+	 * Called after a request with the numbers of bytes sent and received in it,
+	 * which count the bodies of XML-RPC requests and responses as they are on the wire,
+	 * compressed if they are, or the frames of {@link BinaryProtocol}.
+	 */
+	void bytesTransferred(String gateway, long sent, long received);
+
+	/**
+	 * Called when a get or get_details of a key has fetched all its pages, or stopped fetching.
+	 *
+	 * @param methodName get or get_details
+	 */
+	void pagesFetched(String methodName, int pages);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+/**
+ * Thrown when a request fails after a part of its result has been got,
+ * such as when a page of values fails in the middle of a get.
+ * The cause is the failure, and the part of the result is available from
+ * {@link #getPartialResult()}, whose type is that of the result of the request.
+ */
+public class DHTPartialResultException extends DHTException {
+	private static final long serialVersionUID = 1L;
+
+	private final transient Object partialResult;
+
+	public DHTPartialResultException(Object partialResult, DHTException cause) {
+		super("partial result: " + cause.getMessage(), cause);
+		this.partialResult = partialResult;
+	}
+
+	public Object getPartialResult() { return this.partialResult; }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link DHTMetrics} kept in memory: latency histograms for each method of each gateway,
+ * requests in flight, failures by cause, bytes sent and received, and pages fetched per get.
+ * Counters are striped so that threads making requests do not contend on them,
+ * and histograms are {@link LatencyHistogram}s, which keep values within 1%.
+ * <p>
+ * The figures can be read through the getters, or over JMX
+ * if created with a name or after {@link #register(String)}.
+ * An instance can be shared by accessors.
+ */
+public class DHTStatistics implements DHTMetrics, DHTStatisticsMBean {
+	public static final String DOMAIN = "dhtaccess";
+
+	private static final String[] CAUSES = { "timeout", "transport", "fault", "unavailable", "other" };
+	private static final int TIMEOUT = 0;
+	private static final int TRANSPORT = 1;
+	private static final int FAULT = 2;
+	private static final int UNAVAILABLE = 3;
+	private static final int OTHER = 4;
+
+	private static final double[] PERCENTILES = { 50.0, 90.0, 99.0 };
+
+	private final ConcurrentMap<String,GatewayStatistics> gateways =
+		new ConcurrentHashMap<String,GatewayStatistics>();
+	private final ConcurrentMap<String,LatencyHistogram> pages =
+		new ConcurrentHashMap<String,LatencyHistogram>();
+
+	private ObjectName name = null;
+
+	public DHTStatistics() {}
+
+	/**
+	 * Creates statistics registered to the platform MBean server with the name.
+	 *
+	 * @see #register(String)
+	 */
+	public DHTStatistics(String name) throws JMException {
+		this.register(name);
+	}
+
+	public void requestStarted(String gateway, String methodName) {
+		this.gateway(gateway).inFlight.increment();
+	}
+
+	public void requestFinished(String gateway, String methodName, long nanos, DHTException failure) {
+		GatewayStatistics g = this.gateway(gateway);
+		g.inFlight.decrement();
+		g.latency(methodName).record(nanos);
+
+		if (failure != null) g.failures[cause(failure)].increment();
+	}
+
+	public void bytesTransferred(String gateway, long sent, long received) {
+		GatewayStatistics g = this.gateway(gateway);
+		g.sent.add(sent);
+		g.received.add(received);
+	}
+
+	public void pagesFetched(String methodName, int pages) {
+		histogram(this.pages, methodName).record(pages);
+	}
+
+	private static int cause(DHTException e) {
+		if (e instanceof DHTTimeoutException) return TIMEOUT;
+		if (e instanceof DHTUnavailableException) return UNAVAILABLE;
+		if (e instanceof DHTTransportException) return TRANSPORT;
+		if (e instanceof DHTFaultException) return FAULT;
+		return OTHER;
+	}
+
+	private GatewayStatistics gateway(String gateway) {
+		GatewayStatistics g = this.gateways.get(gateway);
+		if (g == null) {
+			g = new GatewayStatistics();
+			GatewayStatistics old = this.gateways.putIfAbsent(gateway, g);
+			if (old != null) g = old;
+		}
+		return g;
+	}
+
+	private static LatencyHistogram histogram(ConcurrentMap<String,LatencyHistogram> map, String key) {
+		LatencyHistogram h = map.get(key);
+		if (h == null) {
+			h = new LatencyHistogram();
+			LatencyHistogram old = map.putIfAbsent(key, h);
+			if (old != null) h = old;
+		}
+		return h;
+	}
+
+	/**
+	 * Returns the distribution of latencies (in nsec) of requests of a method to a gateway.
+	 * A null gateway or method means all of them.
+	 */
+	public long[] getLatencyPercentiles(String gateway, String methodName, double[] percentiles) {
+		LatencyHistogram s = new LatencyHistogram();
+		for (Map.Entry<String,GatewayStatistics> g: this.gateways.entrySet()) {
+			if (gateway != null && !gateway.equals(g.getKey())) continue;
+
+			for (Map.Entry<String,LatencyHistogram> m: g.getValue().latencies.entrySet()) {
+				if (methodName != null && !methodName.equals(m.getKey())) continue;
+				s.add(m.getValue());
+			}
+		}
+
+		long[] result = new long[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) result[i] = s.getValueAtPercentile(percentiles[i]);
+		return result;
+	}
+
+	/**
+	 * Returns the number of failed requests to a gateway by cause, which is one of
+	 * timeout, transport, fault, unavailable and other. A null gateway means all of them.
+	 */
+	public long getFailureCount(String gateway, String cause) {
+		long sum = 0L;
+		for (int c = 0; c < CAUSES.length; c++) {
+			if (!CAUSES[c].equals(cause)) continue;
+
+			for (Map.Entry<String,GatewayStatistics> g: this.gateways.entrySet()) {
+				if (gateway == null || gateway.equals(g.getKey())) sum += g.getValue().failures[c].get();
+			}
+		}
+		return sum;
+	}
+
+	public long getRequestCount() {
+		long sum = 0L;
+		for (GatewayStatistics g: this.gateways.values()) {
+			for (LatencyHistogram h: g.latencies.values()) sum += h.getCount();
+		}
+		return sum;
+	}
+
+	public long getFailureCount() {
+		long sum = 0L;
+		for (GatewayStatistics g: this.gateways.values()) {
+			for (StripedCounter c: g.failures) sum += c.get();
+		}
+		return sum;
+	}
+
+	public long getInFlight() {
+		long sum = 0L;
+		for (GatewayStatistics g: this.gateways.values()) sum += g.inFlight.get();
+		return sum;
+	}
+
+	public long getBytesSent() {
+		long sum = 0L;
+		for (GatewayStatistics g: this.gateways.values()) sum += g.sent.get();
+		return sum;
+	}
+
+	public long getBytesReceived() {
+		long sum = 0L;
+		for (GatewayStatistics g: this.gateways.values()) sum += g.received.get();
+		return sum;
+	}
+
+	public String[] getLatencies() {
+		List<String> lines = new ArrayList<String>();
+
+		for (Map.Entry<String,GatewayStatistics> g: sorted(this.gateways).entrySet()) {
+			for (Map.Entry<String,LatencyHistogram> m: sorted(g.getValue().latencies).entrySet()) {
+				LatencyHistogram s = m.getValue();
+
+				StringBuilder sb = new StringBuilder();
+				sb.append(m.getKey()).append(' ').append(g.getKey());
+				sb.append(" count ").append(s.getCount());
+				sb.append(String.format(" mean %.3f", s.getMean() / 1.0e6));
+				for (double p: PERCENTILES) {
+					sb.append(String.format(" p%.0f %.3f", p, s.getValueAtPercentile(p) / 1.0e6));
+				}
+				sb.append(String.format(" max %.3f", s.getMax() / 1.0e6));
+				lines.add(sb.toString());
+			}
+		}
+
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	public String[] getGateways() {
+		List<String> lines = new ArrayList<String>();
+
+		for (Map.Entry<String,GatewayStatistics> e: sorted(this.gateways).entrySet()) {
+			GatewayStatistics g = e.getValue();
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(e.getKey());
+			sb.append(" in-flight ").append(g.inFlight.get());
+			sb.append(" sent ").append(g.sent.get());
+			sb.append(" received ").append(g.received.get());
+			for (int c = 0; c < CAUSES.length; c++) {
+				sb.append(' ').append(CAUSES[c]).append(' ').append(g.failures[c].get());
+			}
+			lines.add(sb.toString());
+		}
+
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	public String[] getPages() {
+		List<String> lines = new ArrayList<String>();
+
+		for (Map.Entry<String,LatencyHistogram> e: sorted(this.pages).entrySet()) {
+			LatencyHistogram s = e.getValue();
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(e.getKey());
+			sb.append(" count ").append(s.getCount());
+			sb.append(String.format(" mean %.2f", s.getMean()));
+			for (double p: PERCENTILES) {
+				sb.append(String.format(" p%.0f %d", p, s.getValueAtPercentile(p)));
+			}
+			sb.append(" max ").append(s.getMax());
+			lines.add(sb.toString());
+		}
+
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * Clears the figures. Requests in flight are still counted.
+	 */
+	public void reset() {
+		for (GatewayStatistics g: this.gateways.values()) {
+			for (LatencyHistogram h: g.latencies.values()) h.takeInterval();
+			for (StripedCounter c: g.failures) c.reset();
+			g.sent.reset();
+			g.received.reset();
+		}
+		for (LatencyHistogram h: this.pages.values()) h.takeInterval();
+	}
+
+	/**
+	 * Registers this to the platform MBean server as dhtaccess:type=DHTStatistics,name=<name>.
+	 */
+	public synchronized void register(String name) throws JMException {
+		this.unregister();
+
+		ObjectName on = new ObjectName(DOMAIN + ":type=DHTStatistics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+		this.name = on;
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (this.name == null) return;
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(this.name)) server.unregisterMBean(this.name);
+		this.name = null;
+	}
+
+	private static <V> Map<String,V> sorted(Map<String,V> map) {
+		return new TreeMap<String,V>(map);
+	}
+
+	private static class GatewayStatistics {
+		final ConcurrentMap<String,LatencyHistogram> latencies =
+			new ConcurrentHashMap<String,LatencyHistogram>();
+		final StripedCounter inFlight = new StripedCounter();
+		final StripedCounter[] failures = new StripedCounter[CAUSES.length];
+		final StripedCounter sent = new StripedCounter();
+		final StripedCounter received = new StripedCounter();
+
+		GatewayStatistics() {
+			for (int i = 0; i < this.failures.length; i++) this.failures[i] = new StripedCounter();
+		}
+
+		LatencyHistogram latency(String methodName) {
+			return histogram(this.latencies, methodName);
+		}
+	}
+}
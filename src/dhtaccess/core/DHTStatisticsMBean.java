@@ -0,0 +1,46 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+/**
+ * The management interface of {@link DHTStatistics}.
+ * Latencies are in msec.
+ */
+public interface DHTStatisticsMBean {
+	long getRequestCount();
+	long getFailureCount();
+	long getInFlight();
+	long getBytesSent();
+	long getBytesReceived();
+
+	/**
+	 * Returns a line for each method of each gateway, with the count and the distribution of latencies.
+	 */
+	String[] getLatencies();
+
+	/**
+	 * Returns a line for each gateway, with the number of requests in flight and failures by cause.
+	 */
+	String[] getGateways();
+
+	/**
+	 * Returns a line for each of get and get_details, with the distribution of pages per key.
+	 */
+	String[] getPages();
+
+	void reset();
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * A way of sending calls to a gateway, on which a {@link DHTAccessor} is built.
+ * A call which failed to communicate with the gateway throws an XmlRpcException
+ * caused by an IOException, or by a SocketTimeoutException if it timed out.
+ * A call answered with a fault throws an XmlRpcException with the fault code.
+ * <p>
+ * Implementations are thread-safe.
+ */
+interface DHTTransport {
+	/**
+	 * Calls a method of the gateway once.
+	 */
+	Object execute(String methodName, Object[] params) throws XmlRpcException;
+
+	/**
+	 * Releases the connections kept by this transport.
+	 * Calls still in progress complete, and a later call opens a connection again.
+	 */
+	void close();
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+/**
+ * Thrown when a request fails to communicate with the gateway,
+ * such as when the connection is refused or lost.
+ */
+public class DHTTransportException extends DHTException {
+	private static final long serialVersionUID = 1L;
+
+	public DHTTransportException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -16,11 +16,14 @@
 
 package dhtaccess.core;
 
+import java.util.Arrays;
+
 public class DetailedGetResult {
-	private byte[] value;
-	private int ttl;
-	private String hashType;
-	private byte[] hashedSecret;
+	private final byte[] value;
+	private final int ttl;
+	private final String hashType;
+	private final byte[] hashedSecret;
+	private int hash = 0;	// cached, 0 means not computed
 
 	public DetailedGetResult(byte[] value, int ttl, String hashType, byte[] hashedSecret) {
 		this.value = value;
@@ -33,4 +36,30 @@ public class DetailedGetResult {
 	public int getTTL() { return this.ttl; }
 	public String getHashType() { return this.hashType; }
 	public byte[] getHashedSecret() { return this.hashedSecret; }
+
+	public int hashCode() {
+		int h = this.hash;
+		if (h == 0) {
+			h = Arrays.hashCode(this.value);
+			h = 31 * h + this.ttl;
+			h = 31 * h + (this.hashType == null ? 0 : this.hashType.hashCode());
+			h = 31 * h + Arrays.hashCode(this.hashedSecret);
+			if (h == 0) h = 1;
+			this.hash = h;
+		}
+		return h;
+	}
+
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof DetailedGetResult)) return false;
+
+		DetailedGetResult other = (DetailedGetResult)o;
+		if (this.hashCode() != other.hashCode()) return false;
+
+		return this.ttl == other.ttl
+			&& Arrays.equals(this.value, other.value)
+			&& (this.hashType == null ? other.hashType == null : this.hashType.equals(other.hashType))
+			&& Arrays.equals(this.hashedSecret, other.hashedSecret);
+	}
 }
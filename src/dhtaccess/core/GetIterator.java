@@ -0,0 +1,88 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the values of a key, fetching a page of values from the gateway
+ * only when the values fetched so far have been consumed.
+ * A caller which stops before the end should call {@link #close()}.
+ * <p>
+ * {@link #hasNext()} and {@link #next()} throw {@link DHTException}
+ * if a page fails to be fetched, after which the iteration ends.
+ */
+public abstract class GetIterator<T> implements Iterator<T> {
+	private final PageFetcher fetcher;
+	private Object[] page = null;
+	private int index = 0;
+	private boolean finished = false;
+
+	GetIterator(PageFetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+
+	public boolean hasNext() {
+		while (this.page == null || this.index >= this.page.length) {
+			if (this.finished) return false;
+
+			try {
+				this.page = this.fetcher.nextPage();
+			}
+			catch (DHTException e) {
+				this.close();
+				throw e;
+			}
+
+			this.index = 0;
+
+			if (this.page == null) {
+				this.finished = true;
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public T next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		return this.convert(this.page[this.index++]);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops fetching values. A page being fetched in advance is discarded.
+	 */
+	public void close() {
+		this.fetcher.cancel();
+		this.page = null;
+		this.finished = true;
+	}
+
+	/**
+	 * Converts an element of a page returned by the gateway.
+	 */
+	abstract T convert(Object o);
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A pool of persistent (keep-alive) HTTP connections to gateways.
+ * Connections are kept per gateway host and port,
+ * and the number of connections open to a gateway is limited.
+ * A pool can be shared by several {@link DHTAccessor}s.
+ */
+public class HttpConnectionPool {
+	private static final int DEFAULT_MAX_CONNECTIONS = 16;	// per gateway
+	private static final long DEFAULT_KEEP_ALIVE_TIME = 15 * 1000L;	// msec
+
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private long keepAliveTime = DEFAULT_KEEP_ALIVE_TIME;
+
+	private final Map<String,Route> routes = new HashMap<String,Route>();
+	private boolean closed = false;
+
+	private final AtomicLong numOpened = new AtomicLong();
+	private final AtomicLong numReused = new AtomicLong();
+
+	public HttpConnectionPool() {}
+
+	public HttpConnectionPool(int maxConnections) {
+		this.setMaxConnections(maxConnections);
+	}
+
+	/**
+	 * Sets the maximum number of connections open to a gateway.
+	 * Takes effect on gateways which have not been connected yet.
+	 */
+	public void setMaxConnections(int max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("max: " + max);
+		}
+
+		this.maxConnections = max;
+	}
+
+	public int getMaxConnections() { return this.maxConnections; }
+
+	/**
+	 * Sets how long (in msec) an idle connection is kept.
+	 */
+	public void setKeepAliveTime(long msec) { this.keepAliveTime = msec; }
+
+	public long getKeepAliveTime() { return this.keepAliveTime; }
+
+	/**
+	 * Returns the number of connections opened so far.
+	 */
+	public long getNumOpenedConnections() { return this.numOpened.get(); }
+
+	/**
+	 * Returns the number of requests which reused a pooled connection.
+	 */
+	public long getNumReusedConnections() { return this.numReused.get(); }
+
+	/**
+	 * Closes all idle connections.
+	 * Connections in use are closed when they are released.
+	 */
+	public void close() {
+		synchronized (this.routes) {
+			this.closed = true;
+
+			for (Route r: this.routes.values()) {
+				r.closeIdle(0L);
+			}
+		}
+	}
+
+	/**
+	 * Takes an idle connection to the gateway or opens a new one.
+	 * Blocks while the maximum number of connections are in use.
+	 */
+	Connection acquire(URL url, int connectTimeout, int readTimeout) throws IOException {
+		Route route = this.getRoute(url);
+
+		try {
+			if (connectTimeout > 0) {
+				if (!route.permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+					throw new SocketTimeoutException("no connection available to " + route.key);
+				}
+			}
+			else {
+				route.permits.acquire();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException("interrupted");
+		}
+
+		try {
+			Connection conn = route.pollIdle(this.keepAliveTime);
+			if (conn != null) {
+				this.numReused.incrementAndGet();
+			}
+			else {
+				conn = route.open(connectTimeout);
+				this.numOpened.incrementAndGet();
+			}
+
+			conn.socket.setSoTimeout(readTimeout);
+
+			return conn;
+		}
+		catch (IOException e) {
+			route.permits.release();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			route.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool. A connection which is not reusable is closed.
+	 */
+	void release(Connection conn, boolean reusable) {
+		Route route = conn.route;
+
+		synchronized (this.routes) {
+			if (this.closed) reusable = false;
+		}
+
+		if (reusable) {
+			conn.lastUsed = System.currentTimeMillis();
+			conn.reused = true;
+			route.pushIdle(conn);
+		}
+		else {
+			conn.close();
+		}
+
+		route.permits.release();
+	}
+
+	private Route getRoute(URL url) {
+		boolean ssl = "https".equalsIgnoreCase(url.getProtocol());
+		int port = url.getPort();
+		if (port < 0) port = (ssl ? 443 : 80);
+
+		String key = url.getProtocol().toLowerCase() + "://" + url.getHost() + ":" + port;
+
+		synchronized (this.routes) {
+			Route r = this.routes.get(key);
+			if (r == null) {
+				r = new Route(key, url.getHost(), port, ssl, this.maxConnections);
+				this.routes.put(key, r);
+			}
+			return r;
+		}
+	}
+
+	private static class Route {
+		final String key;
+		final String host;
+		final int port;
+		final boolean ssl;
+		final Semaphore permits;
+		private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+		Route(String key, String host, int port, boolean ssl, int maxConnections) {
+			this.key = key;
+			this.host = host;
+			this.port = port;
+			this.ssl = ssl;
+			this.permits = new Semaphore(maxConnections, true);
+		}
+
+		Connection open(int connectTimeout) throws IOException {
+			Socket sock;
+			if (this.ssl) {
+				sock = SSLSocketFactory.getDefault().createSocket();
+			}
+			else {
+				sock = new Socket();
+			}
+
+			sock.setTcpNoDelay(true);
+			sock.setKeepAlive(true);
+
+			try {
+				sock.connect(new InetSocketAddress(this.host, this.port), connectTimeout);
+			}
+			catch (IOException e) {
+				try { sock.close(); } catch (IOException e1) { /* ignore */ }
+				throw e;
+			}
+
+			return new Connection(this, sock);
+		}
+
+		synchronized Connection pollIdle(long keepAliveTime) {
+			long now = System.currentTimeMillis();
+
+			while (!this.idle.isEmpty()) {
+				Connection c = this.idle.removeFirst();	// most recently used
+				if (now - c.lastUsed < keepAliveTime && !c.isClosedByPeer()) {
+					return c;
+				}
+				c.close();
+			}
+
+			return null;
+		}
+
+		synchronized void pushIdle(Connection conn) {
+			this.idle.addFirst(conn);
+		}
+
+		synchronized void closeIdle(long keepAliveTime) {
+			long now = System.currentTimeMillis();
+
+			Iterator<Connection> it = this.idle.iterator();
+			while (it.hasNext()) {
+				Connection c = it.next();
+				if (now - c.lastUsed >= keepAliveTime) {
+					c.close();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * An HTTP connection to a gateway.
+	 */
+	static class Connection {
+		final Route route;
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		long lastUsed;
+		boolean reused = false;
+
+		Connection(Route route, Socket socket) throws IOException {
+			this.route = route;
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		/**
+		 * Returns true if this connection was used for a previous request.
+		 */
+		boolean isReused() { return this.reused; }
+
+		String getHostHeader() {
+			int defaultPort = (this.route.ssl ? 443 : 80);
+			if (this.route.port == defaultPort) return this.route.host;
+			return this.route.host + ":" + this.route.port;
+		}
+
+		// an idle connection is readable only if the peer has closed it
+		private boolean isClosedByPeer() {
+			try {
+				return this.in.available() > 0 || this.socket.isInputShutdown();
+			}
+			catch (IOException e) {
+				return true;
+			}
+		}
+
+		void close() {
+			try {
+				this.socket.close();
+			}
+			catch (IOException e) { /* ignore */ }
+		}
+	}
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Puts and gets values larger than a gateway accepts, on top of a {@link DHTAccessor}.
+ * <p>
+ * A value is split into fragments of a fixed size, each of which is put
+ * under its SHA-1 hash as the key. The hashes are listed in a manifest put under the key of the value.
+ * If they do not fit in a manifest, they are listed in index fragments put in the same way,
+ * forming a tree whose root is the manifest.
+ * Fragments are put and got concurrently, and a value is streamed
+ * so that only a few fragments of it are held in memory at once.
+ * <p>
+ * Other values put under the key of a value are ignored.
+ * If there are several manifests under the key, the one with the longest remaining TTL is read.
+ */
+public class LargeValueAccessor {
+	private static final byte[] MAGIC = { 'D', 'H', 'T', 'L' };
+	private static final byte VERSION = 1;
+	private static final int HEADER_LENGTH = 18;	// magic, version, length, fragment size and depth
+	private static final int HASH_LENGTH = 20;
+
+	// the maximum size of a value in Bamboo, less the header a fragment may be given by ValueCodec
+	private static final int DEFAULT_FRAGMENT_SIZE = 1024 - ValueCodec.HEADER_LENGTH;
+	private static final int MIN_FRAGMENT_SIZE = HEADER_LENGTH + 2 * HASH_LENGTH;
+	private static final int DEFAULT_PARALLELISM = 16;
+
+	private final DHTAccessor accessor;
+
+	private volatile int fragmentSize = DEFAULT_FRAGMENT_SIZE;
+	private volatile int parallelism = DEFAULT_PARALLELISM;
+
+	public LargeValueAccessor(DHTAccessor accessor) {
+		this.accessor = accessor;
+	}
+
+	public DHTAccessor getAccessor() { return this.accessor; }
+
+	/**
+	 * Sets the size of a fragment, which is also the maximum size of a manifest.
+	 */
+	public void setFragmentSize(int size) {
+		if (size < MIN_FRAGMENT_SIZE) {
+			throw new IllegalArgumentException("size: " + size);
+		}
+
+		this.fragmentSize = size;
+	}
+
+	public int getFragmentSize() { return this.fragmentSize; }
+
+	/**
+	 * Sets the number of fragments put or got concurrently for a value.
+	 * The asynchronous requests of the accessor are limited by its number of worker threads as well.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism: " + parallelism);
+		}
+
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism() { return this.parallelism; }
+
+	/**
+	 * Puts a value, splitting it into fragments.
+	 *
+	 * @throws DHTException if a fragment or the manifest failed to be put
+	 */
+	public void put(byte[] key, byte[] value, int ttl /* sec */, byte[] secret) {
+		OutputStream out = this.openOutputStream(key, ttl, secret);
+		try {
+			out.write(value);
+			out.close();
+		}
+		catch (IOException e) {
+			// NOTREACHED
+			throw new DHTException("failed to put a value", e);
+		}
+	}
+
+	/**
+	 * Gets a value put with this class, or returns null if there is none.
+	 *
+	 * @throws DHTException if a fragment failed to be got or was corrupted
+	 */
+	public byte[] get(byte[] key) {
+		ValueInputStream in = this.openInputStream(key);
+		if (in == null) return null;
+
+		if (in.getLength() > Integer.MAX_VALUE) {
+			in.close();
+			throw new DHTException("value too large: " + in.getLength() + " bytes");
+		}
+
+		byte[] value = new byte[(int)in.getLength()];
+		int off = 0;
+		try {
+			int n;
+			while (off < value.length && (n = in.read(value, off, value.length - off)) >= 0) {
+				off += n;
+			}
+		}
+		catch (IOException e) {
+			// NOTREACHED
+			throw new DHTException("failed to get a value", e);
+		}
+		finally {
+			in.close();
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns a stream to which a value is written.
+	 * The value is put when the stream is closed,
+	 * and the methods of the stream throw a DHTException if a fragment fails to be put.
+	 */
+	public OutputStream openOutputStream(byte[] key, int ttl /* sec */, byte[] secret) {
+		return new ValueOutputStream(key, ttl, secret, this.fragmentSize, this.parallelism);
+	}
+
+	/**
+	 * Returns a stream from which a value is read, or null if there is no value.
+	 * The methods of the stream throw a DHTException if a fragment fails to be got.
+	 *
+	 * @throws DHTException if the manifest failed to be got
+	 */
+	public ValueInputStream openInputStream(byte[] key) {
+		Manifest manifest = null;
+		int ttl = -1;
+
+		for (DetailedGetResult r: this.accessor.getDetails(key)) {
+			Manifest m = Manifest.parse(r.getValue());
+			if (m != null && r.getTTL() > ttl) {
+				manifest = m;
+				ttl = r.getTTL();
+			}
+		}
+
+		if (manifest == null) return null;
+
+		return new ValueInputStream(manifest, this.parallelism);
+	}
+
+	private Future<Integer> putFragment(byte[] hash, byte[] fragment, int ttl, byte[] secret) {
+		return this.accessor.putAsync(hash, fragment, ttl, secret);
+	}
+
+	private Future<Set<ByteArray>> getFragment(byte[] hash) {
+		return this.accessor.getAsync(hash);
+	}
+
+	// the fragment whose hash matches among the values got
+	private static byte[] toFragment(byte[] hash, Future<Set<ByteArray>> f) {
+		for (ByteArray v: waitFor(f)) {
+			if (Arrays.equals(Util.hashWithSHA1(v.array()), hash)) {
+				return v.array();
+			}
+		}
+
+		throw new DHTException("fragment " + ByteArray.wrap(hash) + " not found");
+	}
+
+	private static <T> T waitFor(Future<T> f) {
+		boolean interrupted = false;
+
+		try {
+			while (true) {
+				try {
+					return f.get();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new DHTException("request for a fragment failed", cause);
+		}
+		finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The root of the tree of fragments of a value.
+	 */
+	private static class Manifest {
+		final long length;
+		final int fragmentSize;
+		final int depth;	// 0 if the hashes are of data fragments
+		final byte[] hashes;
+
+		Manifest(long length, int fragmentSize, int depth, byte[] hashes) {
+			this.length = length;
+			this.fragmentSize = fragmentSize;
+			this.depth = depth;
+			this.hashes = hashes;
+		}
+
+		byte[] toByteArray() {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + this.hashes.length);
+			buf.put(MAGIC).put(VERSION);
+			buf.putLong(this.length).putInt(this.fragmentSize).put((byte)this.depth);
+			buf.put(this.hashes);
+			return buf.array();
+		}
+
+		// returns null if the value is not a manifest
+		static Manifest parse(byte[] value) {
+			if (value.length < HEADER_LENGTH
+					|| (value.length - HEADER_LENGTH) % HASH_LENGTH != 0) return null;
+
+			ByteBuffer buf = ByteBuffer.wrap(value);
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (buf.get() != MAGIC[i]) return null;
+			}
+			if (buf.get() != VERSION) return null;
+
+			long length = buf.getLong();
+			int fragmentSize = buf.getInt();
+			int depth = buf.get();
+			if (length < 0L || fragmentSize < MIN_FRAGMENT_SIZE || depth < 0) return null;
+
+			byte[] hashes = new byte[buf.remaining()];
+			buf.get(hashes);
+
+			return new Manifest(length, fragmentSize, depth, hashes);
+		}
+	}
+
+	private class ValueOutputStream extends OutputStream {
+		private final byte[] key;
+		private final int ttl;
+		private final byte[] secret;
+		private final int window;
+		private final int fanout;
+		private final int rootCapacity;
+
+		private byte[] fragment;
+		private int count = 0;
+		private long length = 0L;
+
+		// hashes of the fragments not listed in an index fragment yet, for each depth
+		private final List<ByteArrayOutputStream> levels = new ArrayList<ByteArrayOutputStream>();
+
+		private final LinkedList<Future<Integer>> pending = new LinkedList<Future<Integer>>();
+		private boolean closed = false;
+		private RuntimeException failure = null;	// of a fragment, after which the manifest is not put
+
+		ValueOutputStream(byte[] key, int ttl, byte[] secret, int fragmentSize, int window) {
+			this.key = key;
+			this.ttl = ttl;
+			this.secret = secret;
+			this.window = window;
+			this.fanout = fragmentSize / HASH_LENGTH;
+			this.rootCapacity = (fragmentSize - HEADER_LENGTH) / HASH_LENGTH;
+
+			this.fragment = new byte[fragmentSize];
+		}
+
+		public void write(int b) throws IOException {
+			this.write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (this.closed) throw new IOException("stream closed");
+			if (this.failure != null) throw this.failure;
+
+			try {
+				while (len > 0) {
+					int n = Math.min(len, this.fragment.length - this.count);
+					System.arraycopy(b, off, this.fragment, this.count, n);
+					this.count += n;
+					this.length += n;
+					off += n;
+					len -= n;
+
+					if (this.count >= this.fragment.length) {
+						this.flushFragment();
+					}
+				}
+			}
+			catch (RuntimeException e) {
+				this.failure = e;
+				throw e;
+			}
+		}
+
+		/**
+		 * Puts the rest of the value and the manifest, waiting for all the fragments to be put.
+		 * If a fragment has failed to be put, the manifest is not put and the failure is thrown again,
+		 * so that the value is not got with a fragment missing.
+		 */
+		public void close() throws IOException {
+			if (this.closed) return;
+			this.closed = true;
+
+			try {
+				if (this.failure != null) throw this.failure;
+
+				if (this.count > 0) this.flushFragment();
+
+				// index fragments are put from the bottom until the hashes fit in the manifest
+				int depth = 0;
+				while (true) {
+					ByteArrayOutputStream level = this.level(depth);
+					if (depth == this.levels.size() - 1 && level.size() / HASH_LENGTH <= this.rootCapacity) {
+						break;
+					}
+
+					if (level.size() > 0) {
+						byte[] index = level.toByteArray();
+						level.reset();
+						this.add(depth + 1, this.emit(index));
+					}
+					depth++;
+				}
+
+				while (!this.pending.isEmpty()) {
+					this.check(this.pending.removeFirst());
+				}
+
+				Manifest m = new Manifest(this.length, this.fragment.length, depth,
+						this.level(depth).toByteArray());
+				this.check(LargeValueAccessor.this.accessor.put(this.key, m.toByteArray(), this.ttl, this.secret));
+			}
+			finally {
+				for (Future<Integer> f: this.pending) f.cancel(false);
+				this.pending.clear();
+			}
+		}
+
+		private void flushFragment() {
+			byte[] data = this.fragment;
+			if (this.count < data.length) {
+				data = new byte[this.count];
+				System.arraycopy(this.fragment, 0, data, 0, this.count);
+			}
+			this.add(0, this.emit(data));
+
+			this.fragment = new byte[this.fragment.length];
+			this.count = 0;
+		}
+
+		private ByteArrayOutputStream level(int depth) {
+			while (this.levels.size() <= depth) {
+				this.levels.add(new ByteArrayOutputStream());
+			}
+			return this.levels.get(depth);
+		}
+
+		// lists a hash, putting an index fragment if it is full
+		private void add(int depth, byte[] hash) {
+			ByteArrayOutputStream level = this.level(depth);
+			level.write(hash, 0, hash.length);
+
+			if (level.size() >= this.fanout * HASH_LENGTH) {
+				byte[] index = level.toByteArray();
+				level.reset();
+				this.add(depth + 1, this.emit(index));
+			}
+		}
+
+		// puts a fragment and returns its hash, waiting while too many fragments are in flight
+		private byte[] emit(byte[] fragment) {
+			while (this.pending.size() >= this.window
+					|| (!this.pending.isEmpty() && this.pending.getFirst().isDone())) {
+				this.check(this.pending.removeFirst());
+			}
+
+			byte[] hash = Util.hashWithSHA1(fragment);
+			this.pending.addLast(LargeValueAccessor.this.putFragment(hash, fragment, this.ttl, this.secret));
+			return hash;
+		}
+
+		private void check(Future<Integer> f) {
+			this.check(waitFor(f).intValue());
+		}
+
+		private void check(int res) {
+			if (res != 0) {
+				throw new DHTException("put failed with code " + res);
+			}
+		}
+	}
+
+	/**
+	 * Reads a value, getting several fragments ahead concurrently.
+	 */
+	public class ValueInputStream extends InputStream {
+		private final long length;
+		private final int window;
+
+		// the index fragments being walked, the deepest last
+		private final LinkedList<Index> path = new LinkedList<Index>();
+		private final LinkedList<Fetch> pending = new LinkedList<Fetch>();
+
+		private byte[] fragment = null;
+		private int pos = 0;
+		private long remaining;
+		private boolean closed = false;
+
+		ValueInputStream(Manifest manifest, int window) {
+			this.length = manifest.length;
+			this.remaining = manifest.length;
+			this.window = window;
+
+			this.path.add(new Index(manifest.hashes, manifest.depth));
+			this.fill();
+		}
+
+		/**
+		 * Returns the length of the value.
+		 */
+		public long getLength() { return this.length; }
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = this.read(b, 0, 1);
+			return (n <= 0 ? -1 : b[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.closed) throw new IOException("stream closed");
+			if (len <= 0) return 0;
+
+			if (this.fragment == null || this.pos >= this.fragment.length) {
+				if (this.pending.isEmpty()) return -1;
+
+				Fetch f = this.pending.removeFirst();
+				this.fragment = toFragment(f.hash, f.future);
+				this.pos = 0;
+				this.fill();
+
+				if (this.fragment.length > this.remaining) {
+					throw new DHTException("fragment longer than the value");
+				}
+				this.remaining -= this.fragment.length;
+				if (this.pending.isEmpty() && this.remaining > 0L) {
+					throw new DHTException("value shorter than its length " + this.length);
+				}
+			}
+
+			int n = Math.min(len, this.fragment.length - this.pos);
+			System.arraycopy(this.fragment, this.pos, b, off, n);
+			this.pos += n;
+			return n;
+		}
+
+		public int available() {
+			return (this.fragment == null ? 0 : this.fragment.length - this.pos);
+		}
+
+		/**
+		 * Discards the fragments being got.
+		 */
+		public void close() {
+			this.closed = true;
+
+			for (Fetch f: this.pending) f.future.cancel(false);
+			this.pending.clear();
+			this.path.clear();
+		}
+
+		// starts getting the next data fragments
+		private void fill() {
+			byte[] hash;
+			while (this.pending.size() < this.window && (hash = this.nextHash()) != null) {
+				this.pending.addLast(new Fetch(hash, LargeValueAccessor.this.getFragment(hash)));
+			}
+		}
+
+		// the hash of the next data fragment, walking down the index fragments
+		private byte[] nextHash() {
+			while (!this.path.isEmpty()) {
+				Index index = this.path.getLast();
+				if (index.pos >= index.hashes.length) {
+					this.path.removeLast();
+					continue;
+				}
+
+				byte[] hash = new byte[HASH_LENGTH];
+				System.arraycopy(index.hashes, index.pos, hash, 0, HASH_LENGTH);
+				index.pos += HASH_LENGTH;
+
+				if (index.depth == 0) return hash;
+
+				byte[] child = toFragment(hash, LargeValueAccessor.this.getFragment(hash));
+				if (child.length % HASH_LENGTH != 0) {
+					throw new DHTException("invalid index fragment " + ByteArray.wrap(hash));
+				}
+				this.path.addLast(new Index(child, index.depth - 1));
+			}
+
+			return null;
+		}
+	}
+
+	private static class Index {
+		final byte[] hashes;
+		final int depth;
+		int pos = 0;
+
+		Index(byte[] hashes, int depth) {
+			this.hashes = hashes;
+			this.depth = depth;
+		}
+	}
+
+	private static class Fetch {
+		final byte[] hash;
+		final Future<Set<ByteArray>> future;
+
+		Fetch(byte[] hash, Future<Set<ByteArray>> future) {
+			this.hash = hash;
+			this.future = future;
+		}
+	}
+}
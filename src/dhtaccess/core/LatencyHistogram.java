@@ -0,0 +1,195 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the manner of HdrHistogram.
+ * Values are counted in buckets whose width grows with the value,
+ * so that any value is kept with a relative error below 1%.
+ * Recording is lock-free and can be done by many threads at once.
+ */
+public class LatencyHistogram {
+	// each power of two is divided into this many sub-buckets
+	private static final int SUB_BUCKET_BITS = 8;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 2) * (SUB_BUCKETS / 2);
+
+	private static final double[] SUMMARY_PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+	/**
+	 * Records a value, such as a latency in nsec. A negative value is recorded as 0.
+	 */
+	public void record(long value) {
+		if (value < 0L) value = 0L;
+
+		this.counts.incrementAndGet(index(value));
+		this.totalCount.incrementAndGet();
+		this.sum.addAndGet(value);
+
+		long m;
+		while (value > (m = this.max.get()) && !this.max.compareAndSet(m, value));
+		while (value < (m = this.min.get()) && !this.min.compareAndSet(m, value));
+	}
+
+	/**
+	 * Adds the values recorded in another histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long c = other.counts.get(i);
+			if (c != 0L) this.counts.addAndGet(i, c);
+		}
+		this.totalCount.addAndGet(other.totalCount.get());
+		this.sum.addAndGet(other.sum.get());
+
+		long m, v = other.max.get();
+		while (v > (m = this.max.get()) && !this.max.compareAndSet(m, v));
+		v = other.min.get();
+		while (v < (m = this.min.get()) && !this.min.compareAndSet(m, v));
+	}
+
+	/**
+	 * Moves the values recorded so far into a new histogram and returns it.
+	 * Values recorded meanwhile go into either of them.
+	 */
+	public LatencyHistogram takeInterval() {
+		LatencyHistogram h = new LatencyHistogram();
+
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			if (this.counts.get(i) == 0L) continue;
+
+			long c = this.counts.getAndSet(i, 0L);
+			h.counts.set(i, c);
+			h.totalCount.addAndGet(c);
+			this.totalCount.addAndGet(-c);
+		}
+		h.sum.set(this.sum.getAndSet(0L));
+		h.max.set(this.max.getAndSet(0L));
+		h.min.set(this.min.getAndSet(Long.MAX_VALUE));
+
+		return h;
+	}
+
+	public long getCount() { return this.totalCount.get(); }
+
+	public long getMax() { return this.max.get(); }
+
+	public long getMin() {
+		long m = this.min.get();
+		return (m == Long.MAX_VALUE ? 0L : m);
+	}
+
+	public double getMean() {
+		long n = this.totalCount.get();
+		return (n > 0L ? (double)this.sum.get() / n : 0.0);
+	}
+
+	/**
+	 * Returns the value below which the specified percent of the values are,
+	 * which is the highest value of its bucket. 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = this.totalCount.get();
+		if (n <= 0L) return 0L;
+
+		long rank = (long)Math.ceil(percentile / 100.0 * n);
+		if (rank < 1L) rank = 1L;
+
+		long seen = 0L;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), this.max.get());
+			}
+		}
+
+		return this.max.get();
+	}
+
+	/**
+	 * Prints the count, mean, percentiles and maximum in a line,
+	 * with the values divided by the scale, such as 1e6 to print nsec in msec.
+	 */
+	public void printSummary(PrintStream out, String label, double scale) {
+		out.printf("%s count %d mean %.3f", label, this.getCount(), this.getMean() / scale);
+		for (double p: SUMMARY_PERCENTILES) {
+			out.printf(" p%s %.3f", formatPercentile(p), this.getValueAtPercentile(p) / scale);
+		}
+		out.printf(" max %.3f%n", this.getMax() / scale);
+	}
+
+	/**
+	 * Prints the percentile distribution in the text format of HdrHistogram,
+	 * with the values divided by the scale.
+	 */
+	public void printPercentileDistribution(PrintStream out, double scale) {
+		out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+
+		long n = this.totalCount.get();
+		long seen = 0L;
+		for (int i = 0; i < NUM_BUCKETS && seen < n; i++) {
+			long c = this.counts.get(i);
+			if (c == 0L) continue;
+
+			seen += c;
+			double p = (double)seen / n;
+			long v = Math.min(highestValue(i), this.max.get());
+
+			if (p < 1.0) {
+				out.printf("%12.3f %2.12f %10d %14.2f%n", v / scale, p, seen, 1.0 / (1.0 - p));
+			}
+			else {
+				out.printf("%12.3f %2.12f %10d%n", v / scale, p, seen);
+			}
+		}
+
+		out.printf("#[Mean    = %12.3f, Max     = %12.3f]%n", this.getMean() / scale, this.getMax() / scale);
+		out.printf("#[Total count    = %12d]%n", n);
+	}
+
+	private static String formatPercentile(double p) {
+		return (p == Math.floor(p) ? String.valueOf((long)p) : String.valueOf(p));
+	}
+
+	// values below SUB_BUCKETS have a bucket each,
+	// and each power of two above is divided into SUB_BUCKETS / 2 buckets
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) return (int)value;
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		int sub = (int)(value >>> magnitude);	// SUB_BUCKETS / 2 to SUB_BUCKETS - 1
+		return magnitude * (SUB_BUCKETS / 2) + sub;
+	}
+
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKETS) return index;
+
+		int magnitude = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+		int sub = index - magnitude * (SUB_BUCKETS / 2);
+		return (((long)sub + 1L) << magnitude) - 1L;
+	}
+}
@@ -0,0 +1,690 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * A {@link DHTAccessor} which sends requests to one of several gateways.
+ * <p>
+ * Each request goes to the better of two gateways chosen at random,
+ * which is the one with the lower average latency multiplied by
+ * the number of its requests in flight plus one.
+ * The average latency is an exponentially weighted moving average of the past requests.
+ * <p>
+ * A request which fails to communicate with a gateway, or is answered with an HTTP error,
+ * is sent to another one.
+ * A gateway which fails a number of times in a row is not used for a while,
+ * after which a request is sent to it as a probe.
+ * While every gateway is left out, requests fail with {@link DHTUnavailableException}.
+ * If the probe succeeds the gateway is used again,
+ * otherwise it is left out for twice as long as the last time.
+ * <p>
+ * Gets can be hedged: when a gateway has not answered a get within a percentile
+ * of the latencies of recent gets, the same request is sent to another gateway.
+ * Duplicate requests are limited to a ratio of the gets.
+ * <p>
+ * A placemark is valid only at the gateway which issued it,
+ * so the pages of a get after the first go to the gateway which answered the previous page.
+ * They are neither hedged nor sent to another gateway if it fails.
+ */
+public class MultiGatewayDHTAccessor extends DHTAccessor {
+	private static final double EWMA_WEIGHT = 0.2;
+	private static final int DEFAULT_FAILURES_TO_EJECT = 2;
+	private static final long DEFAULT_EJECTION_TIME = 5 * 1000L;	// msec
+	private static final long MAX_EJECTION_TIME = 60 * 1000L;	// msec
+	private static final double DEFAULT_HEDGE_PERCENTILE = 95.0;
+	private static final double DEFAULT_HEDGE_BUDGET = 0.05;
+	private static final int HEDGE_BURST = 10;
+	private static final int LATENCY_WINDOW = 1000;
+	private static final int MIN_LATENCY_SAMPLES = 20;
+	private static final int MAX_PLACEMARKS = 4096;
+	private static final String UNAVAILABLE_MESSAGE = "every gateway is left out for its failures";
+
+	private final Gateway[] gateways;
+	private final Random rnd = new Random();
+
+	private int failuresToEject = DEFAULT_FAILURES_TO_EJECT;
+	private long ejectionTime = DEFAULT_EJECTION_TIME;
+
+	private volatile boolean hedging = false;
+	private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+	private double hedgeBudget = DEFAULT_HEDGE_BUDGET;
+	private final LatencyWindow latencies = new LatencyWindow(LATENCY_WINDOW);
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong hedgeCount = new AtomicLong();
+	private final AtomicLong hedgeWinCount = new AtomicLong();
+	private final AtomicInteger runningLosers = new AtomicInteger();	// cancelled but still waiting
+
+	// the gateway which issued each recent placemark, guarded by itself
+	private final Map<ByteArray,Gateway> placemarks =
+		new LinkedHashMap<ByteArray,Gateway>(16, 0.75f, true /* access order */) {
+			protected boolean removeEldestEntry(Map.Entry<ByteArray,Gateway> eldest) {
+				return this.size() > MAX_PLACEMARKS;
+			}
+		};
+
+	public MultiGatewayDHTAccessor(String[] gateways) throws MalformedURLException {
+		super(gateways[0]);
+
+		this.gateways = new Gateway[gateways.length];
+		for (int i = 0; i < gateways.length; i++) {
+			this.gateways[i] = new Gateway(gateways[i]);
+		}
+		this.rebuildTransports();
+	}
+
+	/**
+	 * Returns the URLs of the gateways.
+	 */
+	public String[] getGateways() {
+		String[] urls = new String[this.gateways.length];
+		for (int i = 0; i < urls.length; i++) {
+			urls[i] = this.gateways[i].url;
+		}
+		return urls;
+	}
+
+	/**
+	 * Returns the average latency (in msec) of requests to the gateway,
+	 * or a negative value if no request has been answered by it.
+	 */
+	public double getAverageLatency(String gateway) {
+		Gateway g = this.lookup(gateway);
+		synchronized (g) {
+			return (g.samples > 0 ? g.ewma / 1000000.0 : -1.0);
+		}
+	}
+
+	/**
+	 * Returns the number of requests answered by the gateway.
+	 */
+	public long getRequestCount(String gateway) {
+		Gateway g = this.lookup(gateway);
+		synchronized (g) {
+			return g.samples;
+		}
+	}
+
+	/**
+	 * Returns whether requests are sent to the gateway,
+	 * which is false while it is left out for its failures.
+	 */
+	public boolean isAvailable(String gateway) {
+		Gateway g = this.lookup(gateway);
+		synchronized (g) {
+			return g.ejectedUntil == 0L;
+		}
+	}
+
+	/**
+	 * Sets the number of failures in a row after which a gateway is left out,
+	 * and how long (in msec) it is left out the first time.
+	 */
+	public void setEjection(int failures, long msec) {
+		if (failures <= 0 || msec <= 0L) {
+			throw new IllegalArgumentException("failures: " + failures + ", msec: " + msec);
+		}
+
+		this.failuresToEject = failures;
+		this.ejectionTime = msec;
+	}
+
+	/**
+	 * Sets whether a get sends a duplicate request to another gateway
+	 * when the first gateway has not answered within the hedge delay.
+	 * The first answer is taken and the other request is cancelled.
+	 * Only the first page of a get is hedged.
+	 */
+	public void setHedging(boolean hedging) { this.hedging = hedging; }
+
+	public boolean getHedging() { return this.hedging; }
+
+	/**
+	 * Sets the hedge delay as a percentile (0 to 100) of the latencies of recent gets.
+	 */
+	public void setHedgePercentile(double percentile) {
+		if (percentile <= 0.0 || percentile > 100.0) {
+			throw new IllegalArgumentException("percentile: " + percentile);
+		}
+
+		this.hedgePercentile = percentile;
+	}
+
+	/**
+	 * Sets the ratio of duplicate requests to gets at most, such as 0.05 for 5% more requests.
+	 * A cancelled request may keep waiting for its answer, holding a thread and a connection,
+	 * and is counted as one more duplicate until it ends.
+	 */
+	public void setHedgeBudget(double ratio) {
+		if (ratio < 0.0) {
+			throw new IllegalArgumentException("ratio: " + ratio);
+		}
+
+		this.hedgeBudget = ratio;
+	}
+
+	/**
+	 * Returns the number of duplicate requests sent.
+	 */
+	public long getHedgeCount() { return this.hedgeCount.get(); }
+
+	/**
+	 * Returns the number of gets answered first by a duplicate request.
+	 */
+	public long getHedgeWinCount() { return this.hedgeWinCount.get(); }
+
+	/**
+	 * Same as {@link #setEjection(int, long)}, because a gateway left out
+	 * works as the circuit breaker of the gateway.
+	 */
+	public void setCircuitBreaker(int failures, long msec) {
+		this.setEjection(failures, msec);
+	}
+
+	public void setDeadline(int msec) throws MalformedURLException {
+		super.setDeadline(msec);
+		this.rebuildTransports();
+	}
+
+	public void setTimeouts(int connectTimeout, int readTimeout) throws MalformedURLException {
+		super.setTimeouts(connectTimeout, readTimeout);
+		this.rebuildTransports();
+	}
+
+	public void setConnectionPool(HttpConnectionPool pool) throws MalformedURLException {
+		super.setConnectionPool(pool);
+		this.rebuildTransports();
+	}
+
+	public void setXmlRpcCodec(boolean xmlRpcCodec) throws MalformedURLException {
+		super.setXmlRpcCodec(xmlRpcCodec);
+		this.rebuildTransports();
+	}
+
+	public void setMetrics(DHTMetrics metrics) throws MalformedURLException {
+		super.setMetrics(metrics);
+		this.rebuildTransports();
+	}
+
+	public synchronized void shutdown() {
+		super.shutdown();
+
+		for (Gateway g: this.gateways) {
+			g.transport.close();
+		}
+	}
+
+	private void rebuildTransports() throws MalformedURLException {
+		for (Gateway g: this.gateways) {
+			DHTTransport old = g.transport;
+			g.transport = this.newTransport(g.url);
+			if (old != null) old.close();
+		}
+	}
+
+	private Gateway lookup(String gateway) {
+		for (Gateway g: this.gateways) {
+			if (g.url.equals(gateway)) return g;
+		}
+		throw new IllegalArgumentException("unknown gateway: " + gateway);
+	}
+
+	Object execute(String methodName, Object[] params) throws XmlRpcException {
+		if (isGet(methodName) && ((byte[])params[2]).length > 0) {
+			return this.executePinned(methodName, params);
+		}
+
+		if (this.hedging && this.gateways.length > 1 && isGet(methodName)) {
+			return this.executeHedged(methodName, params);
+		}
+
+		return this.executeWithFailover(methodName, params, new ArrayList<Gateway>(), null);
+	}
+
+	// sends a page after the first to the gateway which issued its placemark
+	private Object executePinned(String methodName, Object[] params) throws XmlRpcException {
+		Gateway g;
+		synchronized (this.placemarks) {
+			g = this.placemarks.get(new ByteArray((byte[])params[2]));
+		}
+
+		if (g == null) {
+			// the issuer has been forgotten, or the placemark was not got through this accessor
+			g = this.choose(new ArrayList<Gateway>(), true);
+			if (g == null) throw new DHTUnavailableException(UNAVAILABLE_MESSAGE);
+		}
+
+		return this.answered(g, methodName, params, this.call(g, methodName, params));
+	}
+
+	// tries the gateways not tried yet until one of them answers
+	private Object executeWithFailover(String methodName, Object[] params, List<Gateway> tried,
+			XmlRpcException failure) throws XmlRpcException {
+		while (true) {
+			Gateway g = this.choose(tried, true);
+			if (g == null) {
+				if (failure != null) throw failure;
+				throw new DHTUnavailableException(UNAVAILABLE_MESSAGE);
+			}
+
+			try {
+				return this.answered(g, methodName, params, this.call(g, methodName, params));
+			}
+			catch (XmlRpcException e) {
+				if (!isGatewayFailure(e)) throw e;
+
+				tried.add(g);
+				failure = e;
+			}
+		}
+	}
+
+	// sends a duplicate to another gateway if the first one is slow to answer
+	private Object executeHedged(final String methodName, final Object[] params) throws XmlRpcException {
+		CompletionService<Object> cs = new ExecutorCompletionService<Object>(DHTAccessor.getHelperExecutor());
+		List<Gateway> tried = new ArrayList<Gateway>();
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(2);
+		List<HedgedCall> calls = new ArrayList<HedgedCall>(2);
+
+		this.requestCount.incrementAndGet();
+		long delay = this.latencies.percentile(this.hedgePercentile);
+
+		Gateway primary = this.choose(tried, true);
+		if (primary == null) throw new DHTUnavailableException(UNAVAILABLE_MESSAGE);
+		tried.add(primary);
+		calls.add(new HedgedCall(primary, methodName, params));
+		futures.add(cs.submit(calls.get(0)));
+
+		boolean interrupted = false;
+		XmlRpcException failure = null;
+		try {
+			int pending = 1;
+			boolean hedged = false;
+			long deadline = System.nanoTime() + delay;
+
+			while (pending > 0) {
+				Future<Object> done;
+				try {
+					if (!hedged && delay >= 0L) {
+						done = cs.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						if (done == null) {
+							hedged = true;
+
+							// a gateway left out is not probed by a duplicate, which is to answer fast
+							Gateway secondary;
+							if (this.hedgeAllowed() && (secondary = this.choose(tried, false)) != null) {
+								tried.add(secondary);
+								calls.add(new HedgedCall(secondary, methodName, params));
+								futures.add(cs.submit(calls.get(calls.size() - 1)));
+								pending++;
+								this.hedgeCount.incrementAndGet();
+							}
+							continue;
+						}
+					}
+					else {
+						done = cs.take();
+					}
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+					continue;
+				}
+
+				pending--;
+				hedged = true;	// no hedge after an answer
+
+				try {
+					Object result = done.get();
+
+					if (done != futures.get(0)) this.hedgeWinCount.incrementAndGet();
+					this.cancel(futures, calls, done);
+
+					// the placemark of the loser, if it answers too, is not used
+					return this.answered(calls.get(futures.indexOf(done)).gateway, methodName, params, result);
+				}
+				catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof XmlRpcException
+							&& isGatewayFailure((XmlRpcException)cause)) {
+						if (failure == null) failure = (XmlRpcException)cause;
+						continue;
+					}
+
+					this.cancel(futures, calls, done);
+
+					if (cause instanceof XmlRpcException) throw (XmlRpcException)cause;
+					if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+					if (cause instanceof Error) throw (Error)cause;
+					throw new XmlRpcException("hedged request failed", cause);
+				}
+				catch (InterruptedException e) {
+					// NOTREACHED
+					interrupted = true;
+				}
+			}
+		}
+		finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+
+		// the gateways tried failed
+		return this.executeWithFailover(methodName, params, tried, failure);
+	}
+
+	// cancels the requests other than the one done
+	private void cancel(List<Future<Object>> futures, List<HedgedCall> calls, Future<Object> done) {
+		for (int i = 0; i < futures.size(); i++) {
+			Future<Object> f = futures.get(i);
+			if (f != done) calls.get(i).cancel(f);
+		}
+	}
+
+	private static boolean isGet(String methodName) {
+		return "get".equals(methodName) || "get_details".equals(methodName);
+	}
+
+	// a few hedges are allowed before enough requests are counted
+	private boolean hedgeAllowed() {
+		return this.hedgeCount.get() + this.runningLosers.get()
+			< HEDGE_BURST + this.hedgeBudget * this.requestCount.get();
+	}
+
+	// sends a request to the gateway and records how it went
+	private Object call(Gateway g, String methodName, Object[] params) throws XmlRpcException {
+		g.outstanding.incrementAndGet();
+		long start = System.nanoTime();
+		boolean recorded = false;
+		try {
+			Object result = this.send(g.transport, g.url, methodName, params);
+
+			long elapsed = System.nanoTime() - start;
+			this.succeeded(g, elapsed);
+			recorded = true;
+			// the hedge delay is of gets, not of puts or multicalls taking longer
+			if (this.hedging && isGet(methodName)) this.latencies.add(elapsed);
+
+			return result;
+		}
+		catch (XmlRpcException e) {
+			if (isGatewayFailure(e)) {
+				// a hedged request cancelled by the other one is not the fault of the gateway
+				if (!Thread.currentThread().isInterrupted()) {
+					this.failed(g);
+					recorded = true;
+				}
+			}
+			else {
+				// the gateway is alive and answered with a fault
+				this.succeeded(g, System.nanoTime() - start);
+				recorded = true;
+			}
+			throw e;
+		}
+		finally {
+			g.outstanding.decrementAndGet();
+			if (!recorded) this.released(g);
+		}
+	}
+
+	// remembers the gateway which issued the placemarks in the result taken
+	private Object answered(Gateway g, String methodName, Object[] params, Object result) {
+		if (isGet(methodName)) {
+			this.issued(result, g);
+		}
+		else if (BatchCaller.MULTICALL.equals(methodName)) {
+			this.issuedInMulticall(params, result, g);
+		}
+
+		return result;
+	}
+
+	private void issued(Object result, Gateway g) {
+		if (!(result instanceof Object[]) || ((Object[])result).length < 2) return;
+
+		Object pm = ((Object[])result)[1];
+		if (!(pm instanceof byte[]) || ((byte[])pm).length <= 0) return;
+
+		synchronized (this.placemarks) {
+			this.placemarks.put(new ByteArray((byte[])pm), g);
+		}
+	}
+
+	private void issuedInMulticall(Object[] params, Object response, Gateway g) {
+		if (!(params[0] instanceof Object[]) || !(response instanceof Object[])) return;
+
+		Object[] calls = (Object[])params[0];
+		Object[] responses = (Object[])response;
+		for (int i = 0; i < calls.length && i < responses.length; i++) {
+			if (!(calls[i] instanceof Map)
+					|| !isGet(String.valueOf(((Map<?,?>)calls[i]).get("methodName")))) continue;
+
+			Object r = responses[i];
+			if (r instanceof Object[] && ((Object[])r).length == 1) {
+				this.issued(((Object[])r)[0], g);
+			}
+		}
+	}
+
+	// picks the better of two gateways, or a gateway to be probed if allowed,
+	// or returns null if every gateway not tried yet is left out
+	private Gateway choose(List<Gateway> tried, boolean probe) {
+		long now = System.currentTimeMillis();
+		List<Gateway> candidates = new ArrayList<Gateway>(this.gateways.length);
+
+		for (Gateway g: this.gateways) {
+			if (tried.contains(g)) continue;
+
+			synchronized (g) {
+				if (g.ejectedUntil == 0L) {
+					candidates.add(g);
+				}
+				else if (probe && !g.probing && g.ejectedUntil <= now) {
+					// this request is the probe
+					g.probing = true;
+					return g;
+				}
+			}
+		}
+
+		int n = candidates.size();
+		if (n == 0) return null;
+		if (n == 1) return candidates.get(0);
+
+		int i, j;
+		synchronized (this.rnd) {
+			i = this.rnd.nextInt(n);
+			j = this.rnd.nextInt(n - 1);
+		}
+		if (j >= i) j++;
+
+		Gateway a = candidates.get(i), b = candidates.get(j);
+		return (a.load() <= b.load() ? a : b);
+	}
+
+	private void succeeded(Gateway g, long nanos) {
+		synchronized (g) {
+			if (g.samples == 0) {
+				g.ewma = nanos;
+			}
+			else {
+				g.ewma += EWMA_WEIGHT * (nanos - g.ewma);
+			}
+			g.samples++;
+
+			g.failures = 0;
+			g.ejectedUntil = 0L;
+			g.lastEjectionTime = 0L;
+			g.probing = false;
+		}
+	}
+
+	private void failed(Gateway g) {
+		synchronized (g) {
+			g.failures++;
+
+			if (g.probing || (g.ejectedUntil == 0L && g.failures >= this.failuresToEject)) {
+				long t = (g.lastEjectionTime == 0L ? this.ejectionTime
+						: Math.min(g.lastEjectionTime * 2, MAX_EJECTION_TIME));
+
+				g.lastEjectionTime = t;
+				g.ejectedUntil = System.currentTimeMillis() + t;
+				g.probing = false;
+			}
+		}
+	}
+
+	// a request which ended without telling whether the gateway works,
+	// so that another request can probe the gateway if this one was the probe
+	private void released(Gateway g) {
+		synchronized (g) {
+			g.probing = false;
+		}
+	}
+
+	/**
+	 * A request of a hedged get, which releases its gateway if it is cancelled before it starts.
+	 * Cancelling does not abort a blocking read, so a request cancelled while running
+	 * is counted in runningLosers until it ends.
+	 */
+	private class HedgedCall implements Callable<Object> {
+		private static final int NEW = 0;
+		private static final int RUNNING = 1;
+		private static final int DONE = 2;
+		private static final int CANCELLED = 3;
+
+		private final Gateway gateway;
+		private final String methodName;
+		private final Object[] params;
+		private final AtomicInteger state = new AtomicInteger(NEW);
+
+		HedgedCall(Gateway gateway, String methodName, Object[] params) {
+			this.gateway = gateway;
+			this.methodName = methodName;
+			this.params = params;
+		}
+
+		public Object call() throws XmlRpcException {
+			if (!this.state.compareAndSet(NEW, RUNNING)) {
+				throw new CancellationException();
+			}
+
+			try {
+				return MultiGatewayDHTAccessor.this.call(this.gateway, this.methodName, this.params);
+			}
+			finally {
+				if (this.state.getAndSet(DONE) == CANCELLED) {
+					MultiGatewayDHTAccessor.this.runningLosers.decrementAndGet();
+				}
+			}
+		}
+
+		void cancel(Future<Object> f) {
+			if (this.state.compareAndSet(NEW, CANCELLED)) {
+				MultiGatewayDHTAccessor.this.released(this.gateway);
+			}
+			else {
+				// counted before the state changes so that the count does not go below zero
+				MultiGatewayDHTAccessor.this.runningLosers.incrementAndGet();
+				if (!this.state.compareAndSet(RUNNING, CANCELLED)) {
+					MultiGatewayDHTAccessor.this.runningLosers.decrementAndGet();
+				}
+			}
+			f.cancel(true);
+		}
+	}
+
+	/**
+	 * Latencies of the most recent requests, whose percentile gives the hedge delay.
+	 * The percentile is computed again after a tenth of the samples are new.
+	 */
+	private static class LatencyWindow {
+		private final long[] samples;
+		private int count = 0;
+		private int next = 0;
+		private int sinceSorted = 0;
+		private long[] sorted = null;
+
+		LatencyWindow(int size) {
+			this.samples = new long[size];
+		}
+
+		synchronized void add(long nanos) {
+			this.samples[this.next] = nanos;
+			this.next = (this.next + 1) % this.samples.length;
+			if (this.count < this.samples.length) this.count++;
+			this.sinceSorted++;
+		}
+
+		/**
+		 * Returns the percentile in nsec, or -1 if there are too few samples.
+		 */
+		synchronized long percentile(double p) {
+			if (this.count < MIN_LATENCY_SAMPLES) return -1L;
+
+			if (this.sorted == null || this.sinceSorted > this.count / 10) {
+				this.sorted = new long[this.count];
+				System.arraycopy(this.samples, 0, this.sorted, 0, this.count);
+				Arrays.sort(this.sorted);
+				this.sinceSorted = 0;
+			}
+
+			int index = (int)Math.ceil(p / 100.0 * this.sorted.length) - 1;
+			return this.sorted[Math.max(0, Math.min(index, this.sorted.length - 1))];
+		}
+	}
+
+	private static class Gateway {
+		final String url;
+		volatile DHTTransport transport;
+		final AtomicInteger outstanding = new AtomicInteger();
+
+		// guarded by this
+		double ewma = 0.0;	// nsec
+		long samples = 0L;
+		int failures = 0;
+		long ejectedUntil = 0L;	// System.currentTimeMillis(), 0 means not left out
+		long lastEjectionTime = 0L;	// msec
+		boolean probing = false;
+
+		Gateway(String url) {
+			this.url = url;
+		}
+
+		synchronized double load() {
+			return this.ewma * (this.outstanding.get() + 1);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Walks the pages of values of a key with the placemark cursor of get or get_details.
+ * The number of values requested is doubled every time a page comes back full,
+ * and the next page is requested before the current page is handed to the caller.
+ * No more values than a given limit are requested.
+ * The number of pages fetched is reported to the metrics, if any, when fetching ends.
+ */
+class PageFetcher {
+	private static final byte[] EMPTY_PLACEMARK = new byte[0];
+
+	private final DHTAccessor accessor;
+	private final String methodName;
+	private final byte[] hashedKey;
+	private final String toolName;
+	private final int maxPageSize;
+	private final boolean prefetch;
+	private final DHTMetrics metrics;
+
+	private int pageSize;
+	private int remaining;
+	private byte[] placemark = EMPTY_PLACEMARK;
+	private boolean done = false;
+	private Future<Object[]> next = null;
+	private int pages = 0;
+
+	PageFetcher(DHTAccessor accessor, String methodName, byte[] hashedKey, String toolName,
+			int pageSize, int maxPageSize, boolean prefetch, int limit, DHTMetrics metrics) {
+		this.accessor = accessor;
+		this.methodName = methodName;
+		this.hashedKey = hashedKey;
+		this.toolName = toolName;
+		this.pageSize = pageSize;
+		this.maxPageSize = Math.max(pageSize, maxPageSize);
+		this.prefetch = prefetch;
+		this.remaining = limit;
+		this.metrics = metrics;
+
+		if (limit <= 0) this.done = true;
+	}
+
+	/**
+	 * Returns the values in the next page, or null if all pages have been fetched.
+	 *
+	 * @throws DHTException if the page failed to be fetched
+	 */
+	Object[] nextPage() {
+		if (this.done) return null;
+
+		Object[] rpcResults;
+		try {
+			if (this.next != null) {
+				Future<Object[]> f = this.next;
+				this.next = null;
+				rpcResults = waitFor(f);
+			}
+			else {
+				rpcResults = this.fetch(this.nextPageSize());
+			}
+		}
+		catch (RuntimeException e) {
+			this.done = true;
+			this.report();
+			throw e;
+		}
+
+		Object[] values = (Object[])rpcResults[0];
+		this.placemark = (byte[])rpcResults[1];
+		this.remaining -= values.length;
+		this.pages++;
+
+		if (this.placemark.length <= 0 || this.remaining <= 0) {
+			this.done = true;
+			this.report();
+		}
+		else {
+			if (values.length >= this.pageSize) {
+				this.pageSize = Math.min(this.pageSize * 2, this.maxPageSize);
+			}
+
+			if (this.prefetch) {
+				final int size = this.nextPageSize();
+				this.next = DHTAccessor.getHelperExecutor().submit(new Callable<Object[]>() {
+					public Object[] call() {
+						return PageFetcher.this.fetch(size);
+					}
+				});
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Continues from a page got by another request.
+	 */
+	void resume(byte[] placemark, int fetched) {
+		this.placemark = placemark;
+		this.remaining -= fetched;
+		this.pages++;
+
+		if (this.placemark.length <= 0 || this.remaining <= 0) {
+			this.done = true;
+			this.report();
+		}
+		else if (fetched >= this.pageSize) {
+			this.pageSize = Math.min(this.pageSize * 2, this.maxPageSize);
+		}
+	}
+
+	/**
+	 * Stops fetching. A page being prefetched is discarded.
+	 */
+	void cancel() {
+		if (!this.done) {
+			this.done = true;
+			this.report();
+		}
+
+		if (this.next != null) {
+			this.next.cancel(false);
+			this.next = null;
+		}
+	}
+
+	// a get failed before its first page is not counted
+	private void report() {
+		if (this.metrics != null && this.pages > 0) this.metrics.pagesFetched(this.methodName, this.pages);
+	}
+
+	private int nextPageSize() {
+		return Math.min(this.pageSize, this.remaining);
+	}
+
+	private Object[] fetch(int size) {
+		Object[] params = new Object[4];
+		params[0] = this.hashedKey;
+		params[1] = size;
+		params[2] = this.placemark;
+		params[3] = this.toolName;
+
+		return (Object[])this.accessor.call(this.methodName, params);
+	}
+
+	private static Object[] waitFor(Future<Object[]> f) {
+		boolean interrupted = false;
+
+		try {
+			while (true) {
+				try {
+					return f.get();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new DHTException("prefetch failed", cause);
+		}
+		finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+import org.apache.xmlrpc.client.XmlRpcHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcHttpTransportException;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactoryImpl;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.apache.xmlrpc.util.HttpUtil;
+import org.xml.sax.SAXException;
+
+/**
+ * A factory of XML-RPC transports which send requests in HTTP/1.1
+ * over persistent connections taken from an {@link HttpConnectionPool}.
+ */
+public class PooledHttpTransportFactory extends XmlRpcTransportFactoryImpl {
+	private final HttpConnectionPool pool;
+	private final boolean xmlRpcCodec;
+	private DHTMetrics metrics = null;
+
+	public PooledHttpTransportFactory(XmlRpcClient client, HttpConnectionPool pool) {
+		this(client, pool, false);
+	}
+
+	/**
+	 * @param xmlRpcCodec whether calls are encoded and decoded by the codec of this package
+	 *                       instead of the serializer and parser of Apache XML-RPC
+	 */
+	public PooledHttpTransportFactory(XmlRpcClient client, HttpConnectionPool pool, boolean xmlRpcCodec) {
+		super(client);
+		this.pool = pool;
+		this.xmlRpcCodec = xmlRpcCodec;
+	}
+
+	public HttpConnectionPool getConnectionPool() { return this.pool; }
+
+	/**
+	 * Sets where the bytes of requests and responses are reported, or null.
+	 */
+	void setMetrics(DHTMetrics metrics) { this.metrics = metrics; }
+
+	public XmlRpcTransport getTransport() {
+		return new PooledHttpTransport(this.getClient(), this.pool, this.xmlRpcCodec, this.metrics);
+	}
+
+	private static class PooledHttpTransport extends XmlRpcHttpTransport {
+		private static final String USER_AGENT = XmlRpcHttpTransport.USER_AGENT + " (Pooled HTTP Transport)";
+
+		private final HttpConnectionPool pool;
+		private final boolean xmlRpcCodec;
+		private final DHTMetrics metrics;
+
+		private XmlRpcHttpClientConfig config;
+		private final Map<String,String> headers = new LinkedHashMap<String,String>();
+		private ReqWriter reqWriter;
+
+		private HttpConnectionPool.Connection conn;
+		private ResponseInputStream response;
+		private boolean keepAlive;
+		private boolean responseStarted;	// a byte of the response has been read
+		private boolean responseGzipCompressed;
+
+		private long sent = 0L;
+		private CountingInputStream received = null;
+
+		PooledHttpTransport(XmlRpcClient client, HttpConnectionPool pool, boolean xmlRpcCodec,
+				DHTMetrics metrics) {
+			super(client, USER_AGENT);
+			this.pool = pool;
+			this.xmlRpcCodec = xmlRpcCodec;
+			this.metrics = metrics;
+		}
+
+		public Object sendRequest(XmlRpcRequest req) throws XmlRpcException {
+			this.config = (XmlRpcHttpClientConfig)req.getConfig();
+
+			try {
+				return super.sendRequest(req);
+			}
+			finally {
+				this.releaseConnection(false);
+
+				if (this.metrics != null) {
+					this.metrics.bytesTransferred(this.config.getServerURL().toString(),
+							this.sent, (this.received == null ? 0L : this.received.getCount()));
+				}
+			}
+		}
+
+		protected void setContentLength(int length) {
+			super.setContentLength(length);
+			this.sent = length;
+		}
+
+		protected void setRequestHeader(String header, String value) {
+			this.headers.put(header, value);
+		}
+
+		// the request is buffered to know its length and to be resent on a stale connection
+		protected boolean isUsingByteArrayOutput(XmlRpcHttpClientConfig config) {
+			return true;
+		}
+
+		protected ReqWriter newReqWriter(XmlRpcRequest req) throws XmlRpcException, IOException, SAXException {
+			if (!this.xmlRpcCodec || this.isCompressingRequest(this.config)) {
+				return super.newReqWriter(req);
+			}
+
+			final XmlRpcCodec.Buffer call = XmlRpcCodec.encodeCall(req);
+			this.setContentLength(call.getLength());
+
+			return new ReqWriter() {
+				public void write(OutputStream out) throws IOException {
+					call.writeTo(out);
+					out.close();
+				}
+			};
+		}
+
+		protected Object readResponse(XmlRpcStreamRequestConfig config, InputStream in) throws XmlRpcException {
+			if (!this.xmlRpcCodec) {
+				return super.readResponse(config, in);
+			}
+
+			return XmlRpcCodec.decodeResponse(in);
+		}
+
+		protected void writeRequest(ReqWriter writer) throws XmlRpcException, IOException, SAXException {
+			this.reqWriter = writer;
+
+			try {
+				this.send();
+			}
+			catch (IOException e) {
+				if (this.conn == null || !this.conn.isReused()) throw e;
+
+				// the gateway may have closed the idle connection
+				this.releaseConnection(false);
+				this.send();
+			}
+		}
+
+		private void send() throws XmlRpcException, IOException, SAXException {
+			URL url = this.config.getServerURL();
+
+			this.keepAlive = false;
+			this.response = null;
+			this.responseStarted = false;
+
+			this.conn = this.pool.acquire(url,
+					this.config.getConnectionTimeout(), this.config.getReplyTimeout());
+
+			String path = url.getFile();
+			if (path == null || path.length() <= 0) path = "/";
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("POST ").append(path).append(" HTTP/1.1\r\n");
+			sb.append("Host: ").append(this.conn.getHostHeader()).append("\r\n");
+			sb.append("Connection: keep-alive\r\n");
+			for (Map.Entry<String,String> e: this.headers.entrySet()) {
+				sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+			}
+			sb.append("\r\n");
+
+			OutputStream out = this.conn.out;
+			out.write(sb.toString().getBytes("US-ASCII"));
+
+			// the writer closes the stream it is given
+			this.reqWriter.write(new FilterOutputStream(out) {
+				public void write(byte[] b, int off, int len) throws IOException {
+					this.out.write(b, off, len);
+				}
+				public void close() throws IOException {
+					this.flush();
+				}
+			});
+			out.flush();
+		}
+
+		protected InputStream getInputStream() throws XmlRpcException {
+			String statusLine;
+			try {
+				try {
+					statusLine = this.readLine();
+				}
+				catch (IOException e) {
+					// a reset before any byte of the response is the same as a close,
+					// but a timeout is not
+					if (this.responseStarted || !this.conn.isReused()
+							|| e instanceof InterruptedIOException) throw e;
+					statusLine = null;
+				}
+
+				if (statusLine == null && this.conn.isReused()) {
+					// the gateway closed or reset the idle connection without answering
+					this.releaseConnection(false);
+					this.send();
+					statusLine = this.readLine();
+				}
+			}
+			catch (IOException e) {
+				throw new XmlRpcClientException("Failed to read server's response: " + e.getMessage(), e);
+			}
+			catch (SAXException e) {
+				throw new XmlRpcClientException("Failed to resend the request: " + e.getMessage(), e);
+			}
+
+			if (statusLine == null) {
+				throw new XmlRpcClientException("Server closed the connection without a response", null);
+			}
+
+			// status line
+			String[] tokens = statusLine.split(" ", 3);
+			int status;
+			try {
+				status = Integer.parseInt(tokens[1]);
+			}
+			catch (RuntimeException e) {
+				throw new XmlRpcClientException("Server returned invalid status line: " + statusLine, null);
+			}
+			String statusMessage = (tokens.length > 2 ? tokens[2] : "");
+
+			this.keepAlive = tokens[0].endsWith("/1.1");
+			this.responseGzipCompressed = false;
+
+			// headers
+			long contentLength = -1L;
+			boolean chunked = false;
+			try {
+				String line;
+				while ((line = this.readLine()) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					if (colon < 0) continue;
+
+					String name = line.substring(0, colon).trim().toLowerCase();
+					String value = line.substring(colon + 1).trim();
+
+					if (name.equals("content-length")) {
+						contentLength = Long.parseLong(value);
+					}
+					else if (name.equals("transfer-encoding")) {
+						chunked = value.toLowerCase().indexOf("chunked") >= 0;
+					}
+					else if (name.equals("connection")) {
+						if (value.equalsIgnoreCase("close")) this.keepAlive = false;
+						else if (value.equalsIgnoreCase("keep-alive")) this.keepAlive = true;
+					}
+					else if (name.equals("content-encoding")) {
+						this.responseGzipCompressed = HttpUtil.isUsingGzipEncoding(value);
+					}
+				}
+			}
+			catch (IOException e) {
+				throw new XmlRpcClientException("Failed to read server's response: " + e.getMessage(), e);
+			}
+			catch (NumberFormatException e) {
+				throw new XmlRpcClientException("Server returned invalid Content-Length", e);
+			}
+
+			if (!chunked && contentLength < 0L) {
+				this.keepAlive = false;	// the body ends at the end of the connection
+			}
+
+			if (status < 200 || status > 299) {
+				this.keepAlive = false;
+				throw new XmlRpcHttpTransportException(status, statusMessage);
+			}
+
+			this.response = new ResponseInputStream(this.conn.in, chunked, contentLength);
+
+			// the response is counted as it is received, before it is decompressed
+			if (this.metrics != null) {
+				return this.received = new CountingInputStream(this.response);
+			}
+			return this.response;
+		}
+
+		protected boolean isResponseGzipCompressed(XmlRpcStreamRequestConfig config) {
+			return this.responseGzipCompressed;
+		}
+
+		protected void close() throws XmlRpcClientException {
+			this.releaseConnection(true);
+		}
+
+		private void releaseConnection(boolean reusable) {
+			if (this.conn == null) return;
+
+			if (reusable) {
+				reusable = this.keepAlive
+						&& this.response != null && this.response.skipToEnd();
+			}
+
+			this.pool.release(this.conn, reusable);
+			this.conn = null;
+			this.response = null;
+		}
+
+		private String readLine() throws IOException {
+			InputStream in = this.conn.in;
+			StringBuilder sb = new StringBuilder();
+
+			int c = in.read();
+			if (c < 0) return null;
+			this.responseStarted = true;
+
+			while (c >= 0 && c != '\n') {
+				if (c != '\r') sb.append((char)c);
+				c = in.read();
+			}
+
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The body of a response, which ends at its length or the last chunk
+	 * without closing the underlying connection.
+	 */
+	private static class ResponseInputStream extends InputStream {
+		private final InputStream in;
+		private final boolean chunked;
+		private long remaining;	// in the body or the current chunk
+		private boolean eof = false;
+
+		ResponseInputStream(InputStream in, boolean chunked, long contentLength) {
+			this.in = in;
+			this.chunked = chunked;
+			this.remaining = (chunked ? 0L : contentLength);
+			if (!chunked && contentLength == 0L) this.eof = true;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = this.read(b, 0, 1);
+			return (n <= 0 ? -1 : (b[0] & 0xff));
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.eof) return -1;
+			if (len <= 0) return 0;
+
+			if (this.chunked && this.remaining <= 0L) {
+				if (!this.nextChunk()) return -1;
+			}
+
+			if (this.remaining >= 0L && len > this.remaining) {
+				len = (int)this.remaining;
+			}
+
+			int n = this.in.read(b, off, len);
+			if (n < 0) {
+				this.eof = true;
+				if (this.remaining > 0L) throw new IOException("premature end of response");
+				return -1;
+			}
+
+			if (this.remaining >= 0L) {
+				this.remaining -= n;
+				if (!this.chunked && this.remaining <= 0L) this.eof = true;
+			}
+
+			return n;
+		}
+
+		private boolean nextChunk() throws IOException {
+			String line = this.readLine();
+
+			if (line.length() == 0) {	// CRLF after the previous chunk
+				line = this.readLine();
+			}
+
+			int semicolon = line.indexOf(';');
+			if (semicolon >= 0) line = line.substring(0, semicolon);
+
+			try {
+				this.remaining = Long.parseLong(line.trim(), 16);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("invalid chunk size: " + line);
+			}
+
+			if (this.remaining <= 0L) {
+				// trailers
+				while (this.readLine().length() > 0);
+				this.eof = true;
+				return false;
+			}
+
+			return true;
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+
+			int c;
+			while ((c = this.in.read()) != '\n') {
+				if (c < 0) throw new IOException("premature end of response");
+				if (c != '\r') sb.append((char)c);
+			}
+
+			return sb.toString();
+		}
+
+		/**
+		 * Reads the rest of the body. Returns true if the end was reached.
+		 */
+		boolean skipToEnd() {
+			if (this.remaining < 0L) return false;	// ends at the end of the connection
+
+			byte[] buf = new byte[1024];
+			try {
+				while (this.read(buf, 0, buf.length) >= 0);
+			}
+			catch (IOException e) {
+				return false;
+			}
+
+			return true;
+		}
+
+		public void close() {
+			// keeps the connection open
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated by many threads without contending on a single variable.
+ * Each thread adds to one of several cells, each in its own cache line,
+ * and the value is the sum of the cells.
+ */
+final class StripedCounter {
+	private static final int STRIPES;
+	private static final int PADDING = 8;	// longs in a cache line
+
+	static {
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors() * 2 && n < 64) n <<= 1;
+		STRIPES = n;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * Returns the stripe of the current thread, from 0 to STRIPES - 1.
+	 */
+	private static int stripe() {
+		return (int)(Thread.currentThread().getId() & (STRIPES - 1));
+	}
+
+	void add(long x) {
+		this.cells.addAndGet(stripe() * PADDING, x);
+	}
+
+	void increment() {
+		this.add(1L);
+	}
+
+	void decrement() {
+		this.add(-1L);
+	}
+
+	/**
+	 * Returns the sum, which is not a snapshot if the counter is being updated.
+	 */
+	long get() {
+		long sum = 0L;
+		for (int i = 0; i < STRIPES; i++) sum += this.cells.get(i * PADDING);
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < STRIPES; i++) this.cells.set(i * PADDING, 0L);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
+import org.apache.xmlrpc.client.XmlRpcSunHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcSunHttpTransportFactory;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
+import org.xml.sax.SAXException;
+
+/**
+ * A factory of the default XML-RPC transports, based on HttpURLConnection,
+ * which encode and decode calls with {@link XmlRpcCodec} if asked to,
+ * and report the bytes of requests and responses to {@link DHTMetrics}.
+ */
+class SunHttpTransportFactory extends XmlRpcSunHttpTransportFactory {
+	private final boolean xmlRpcCodec;
+	private final DHTMetrics metrics;
+
+	/**
+	 * @param xmlRpcCodec whether XmlRpcCodec is used instead of the serializer and parser of Apache XML-RPC
+	 * @param metrics where bytes are reported, or null
+	 */
+	SunHttpTransportFactory(XmlRpcClient client, boolean xmlRpcCodec, DHTMetrics metrics) {
+		super(client);
+		this.xmlRpcCodec = xmlRpcCodec;
+		this.metrics = metrics;
+	}
+
+	public XmlRpcTransport getTransport() {
+		return new SunHttpTransport(this.getClient(), this.xmlRpcCodec, this.metrics);
+	}
+
+	private static class SunHttpTransport extends XmlRpcSunHttpTransport {
+		private final boolean xmlRpcCodec;
+		private final DHTMetrics metrics;
+
+		private long sent = 0L;
+		private CountingInputStream received = null;
+
+		SunHttpTransport(XmlRpcClient client, boolean xmlRpcCodec, DHTMetrics metrics) {
+			super(client);
+			this.xmlRpcCodec = xmlRpcCodec;
+			this.metrics = metrics;
+		}
+
+		public Object sendRequest(XmlRpcRequest req) throws XmlRpcException {
+			try {
+				return super.sendRequest(req);
+			}
+			finally {
+				if (this.metrics != null) {
+					this.metrics.bytesTransferred(
+							((XmlRpcHttpClientConfig)req.getConfig()).getServerURL().toString(),
+							this.sent, (this.received == null ? 0L : this.received.getCount()));
+				}
+			}
+		}
+
+		protected void setContentLength(int length) {
+			super.setContentLength(length);
+			this.sent = length;
+		}
+
+		protected ReqWriter newReqWriter(XmlRpcRequest req) throws XmlRpcException, IOException, SAXException {
+			if (!this.xmlRpcCodec || this.isCompressingRequest((XmlRpcStreamRequestConfig)req.getConfig())) {
+				return super.newReqWriter(req);
+			}
+
+			final XmlRpcCodec.Buffer call = XmlRpcCodec.encodeCall(req);
+			this.setContentLength(call.getLength());
+
+			return new ReqWriter() {
+				public void write(OutputStream out) throws IOException {
+					call.writeTo(out);
+					out.close();
+				}
+			};
+		}
+
+		// the response is counted as it is received, before it is decompressed
+		protected InputStream getInputStream() throws XmlRpcException {
+			InputStream in = super.getInputStream();
+			if (this.metrics != null) {
+				in = this.received = new CountingInputStream(in);
+			}
+			return in;
+		}
+
+		protected Object readResponse(XmlRpcStreamRequestConfig config, InputStream in) throws XmlRpcException {
+			if (!this.xmlRpcCodec) {
+				return super.readResponse(config, in);
+			}
+
+			return XmlRpcCodec.decodeResponse(in);
+		}
+	}
+}
@@ -16,24 +16,50 @@
 
 package dhtaccess.core;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class Util {
 	private static String messageDigestAlgName = "SHA1";
-	private static MessageDigest md;
 
-	static {
-		try {
-			md = MessageDigest.getInstance(messageDigestAlgName);
+	// a MessageDigest is not thread-safe and is kept per thread
+	private static ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(messageDigestAlgName);
+			}
+			catch (NoSuchAlgorithmException e) {
+				// NOTREACHED
+				throw new Error(e);
+			}
 		}
-		catch (NoSuchAlgorithmException e) {
-			// NOTREACHED
-		}
-	}
+	};
 
 	public static byte[] hashWithSHA1(byte[] key) {
-		md.reset();
-		return md.digest(key);
+		MessageDigest digest = md.get();
+		digest.reset();
+		return digest.digest(key);
+	}
+
+	/**
+	 * Hashes a slice of a byte array without copying it.
+	 */
+	public static byte[] hashWithSHA1(byte[] buf, int offset, int length) {
+		MessageDigest digest = md.get();
+		digest.reset();
+		digest.update(buf, offset, length);
+		return digest.digest();
+	}
+
+	/**
+	 * Hashes the remaining bytes of a buffer without copying them.
+	 * The position of the buffer is advanced to its limit.
+	 */
+	public static byte[] hashWithSHA1(ByteBuffer buf) {
+		MessageDigest digest = md.get();
+		digest.reset();
+		digest.update(buf);
+		return digest.digest();
 	}
 }
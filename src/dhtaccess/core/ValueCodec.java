@@ -0,0 +1,164 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values put and decompresses values got.
+ * <p>
+ * An encoded value starts with a header of 8 bytes: a magic number of 3 bytes,
+ * the codec and the length of the original value in 4 bytes,
+ * followed by the value in the zlib format, whose checksum is verified when the value is got.
+ * A value without the header, put by a client which does not compress, is got as it is.
+ * A value which happens to start with the magic number is put with the header of no codec,
+ * so that it is not mistaken for a compressed one.
+ */
+final class ValueCodec {
+	private static final byte[] MAGIC = { 0, 'D', 'Z' };
+	static final int HEADER_LENGTH = 8;
+	private static final long MAX_RATIO = 1032L;	// the maximum compression ratio of Deflate
+
+	private static final byte STORED = 0;
+	private static final byte DEFLATE = 1;
+
+	// a Deflater and an Inflater hold native memory and are kept per thread
+	private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private ValueCodec() {}
+
+	/**
+	 * Compresses a value with Deflate of the specified level if it is at least the threshold in size
+	 * and gets smaller. Otherwise returns the value as it is.
+	 */
+	static byte[] encode(byte[] value, int level, int threshold) {
+		if (value.length >= threshold && value.length > HEADER_LENGTH) {
+			Deflater d = deflater.get();
+			d.reset();
+			d.setLevel(level);
+			d.setInput(value);
+			d.finish();
+
+			// no use in an output as long as the value
+			byte[] buf = new byte[value.length - 1];
+			int len = HEADER_LENGTH;
+			while (!d.finished() && len < buf.length) {
+				len += d.deflate(buf, len, buf.length - len);
+			}
+
+			if (d.finished()) {
+				writeHeader(buf, DEFLATE, value.length);
+
+				byte[] encoded = new byte[len];
+				System.arraycopy(buf, 0, encoded, 0, len);
+				return encoded;
+			}
+		}
+
+		if (!hasMagic(value)) return value;
+
+		byte[] encoded = new byte[HEADER_LENGTH + value.length];
+		writeHeader(encoded, STORED, value.length);
+		System.arraycopy(value, 0, encoded, HEADER_LENGTH, value.length);
+		return encoded;
+	}
+
+	/**
+	 * Returns the original value of an encoded value,
+	 * or the value as it is if it has not been encoded.
+	 */
+	static byte[] decode(byte[] value) {
+		if (value.length < HEADER_LENGTH || !hasMagic(value)) return value;
+
+		int length = ((value[4] & 0xff) << 24) | ((value[5] & 0xff) << 16)
+			| ((value[6] & 0xff) << 8) | (value[7] & 0xff);
+		if (length < 0 || length > (value.length - HEADER_LENGTH) * MAX_RATIO) return value;
+
+		switch (value[3]) {
+		case STORED:
+			if (length != value.length - HEADER_LENGTH) return value;
+
+			byte[] stored = new byte[length];
+			System.arraycopy(value, HEADER_LENGTH, stored, 0, length);
+			return stored;
+
+		case DEFLATE:
+			Inflater inf = inflater.get();
+			inf.reset();
+			inf.setInput(value, HEADER_LENGTH, value.length - HEADER_LENGTH);
+
+			byte[] decoded = new byte[length];
+			try {
+				int len = 0;
+				int n;
+				while (len < length && (n = inf.inflate(decoded, len, length - len)) > 0) {
+					len += n;
+				}
+				if (len == length && !inf.finished() && inf.inflate(new byte[1]) > 0) {
+					return value;
+				}
+
+				// a value put by another client which happens to start with the magic number
+				if (len != length || !inf.finished() || inf.getRemaining() > 0) return value;
+			}
+			catch (DataFormatException e) {
+				return value;
+			}
+
+			return decoded;
+
+		default:
+			return value;
+		}
+	}
+
+	/**
+	 * Returns whether a value may be put in an encoded form with some settings.
+	 */
+	static boolean mayBeEncoded(byte[] value) {
+		return value.length > HEADER_LENGTH || hasMagic(value);
+	}
+
+	private static boolean hasMagic(byte[] value) {
+		if (value.length < MAGIC.length) return false;
+
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (value[i] != MAGIC[i]) return false;
+		}
+		return true;
+	}
+
+	private static void writeHeader(byte[] buf, byte codec, int length) {
+		System.arraycopy(MAGIC, 0, buf, 0, MAGIC.length);
+		buf[3] = codec;
+		buf[4] = (byte)(length >>> 24);
+		buf[5] = (byte)(length >>> 16);
+		buf[6] = (byte)(length >>> 8);
+		buf[7] = (byte)length;
+	}
+}
@@ -0,0 +1,732 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+
+/**
+ * An XML-RPC codec used in place of the SAX-based serializer and parser of Apache XML-RPC.
+ * A call is written into a buffer kept by the thread,
+ * and a response is read into another one and scanned in place.
+ * A base64 value is decoded straight from the response into an array of its exact length.
+ * <p>
+ * Values are of the classes Apache XML-RPC gives:
+ * Integer (i4, int), Long (i8), Boolean, Double, String, byte[] (base64),
+ * Object[] (array), HashMap (struct) and null (nil).
+ * dateTime.iso8601 is not supported, which no gateway sends.
+ */
+final class XmlRpcCodec {
+	private static final int INITIAL_CAPACITY = 8 * 1024;
+	// a buffer grown larger than this is not kept for the next call
+	private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+	private static final String ENCODING = "UTF-8";
+
+	private static final byte[] BASE64_CHARS;
+	private static final byte[] BASE64_VALUES = new byte[256];
+	private static final byte INVALID = -1;
+	private static final byte SPACE = -2;
+
+	static {
+		try {
+			BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(ENCODING);
+		}
+		catch (UnsupportedEncodingException e) {
+			// NOTREACHED
+			throw new Error(e);
+		}
+
+		for (int i = 0; i < BASE64_VALUES.length; i++) BASE64_VALUES[i] = INVALID;
+		for (int i = 0; i < BASE64_CHARS.length; i++) BASE64_VALUES[BASE64_CHARS[i]] = (byte)i;
+		BASE64_VALUES[' '] = BASE64_VALUES['\t'] = BASE64_VALUES['\r'] = BASE64_VALUES['\n'] = SPACE;
+	}
+
+	private static final ThreadLocal<Buffer> callBuffer = new ThreadLocal<Buffer>();
+	private static final ThreadLocal<Buffer> responseBuffer = new ThreadLocal<Buffer>();
+
+	private XmlRpcCodec() {}
+
+	/**
+	 * Encodes a call. The returned buffer is valid until the next call is encoded by the thread.
+	 */
+	static Buffer encodeCall(XmlRpcRequest req) throws XmlRpcException {
+		Object[] params = new Object[req.getParameterCount()];
+		for (int i = 0; i < params.length; i++) params[i] = req.getParameter(i);
+
+		return encodeCall(req.getMethodName(), params);
+	}
+
+	/**
+	 * Encodes a call. The returned buffer is valid until the next call is encoded by the thread.
+	 */
+	static Buffer encodeCall(String methodName, Object[] params) throws XmlRpcException {
+		Buffer b = buffer(callBuffer);
+
+		b.ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodCall><methodName>");
+		b.text(methodName);
+		b.ascii("</methodName><params>");
+		for (Object p: params) {
+			b.ascii("<param>");
+			writeValue(b, p);
+			b.ascii("</param>");
+		}
+		b.ascii("</params></methodCall>");
+
+		return b;
+	}
+
+	/**
+	 * Reads and decodes a response.
+	 * A fault is thrown as an XmlRpcException with its code,
+	 * and a failure to read the response as an XmlRpcException caused by the IOException.
+	 */
+	static Object decodeResponse(InputStream in) throws XmlRpcException {
+		Buffer b = buffer(responseBuffer);
+		try {
+			b.readFrom(in);
+		}
+		catch (IOException e) {
+			throw new XmlRpcClientException("Failed to read server's response: " + e.getMessage(), e);
+		}
+
+		return new Parser(b.bytes, b.length).response();
+	}
+
+	private static Buffer buffer(ThreadLocal<Buffer> pool) {
+		Buffer b = pool.get();
+		if (b == null || b.bytes.length > MAX_POOLED_CAPACITY) {
+			b = new Buffer();
+			pool.set(b);
+		}
+
+		b.length = 0;
+		return b;
+	}
+
+	private static void writeValue(Buffer b, Object o) throws XmlRpcException {
+		b.ascii("<value>");
+
+		if (o instanceof byte[]) {
+			b.ascii("<base64>");
+			b.base64((byte[])o);
+			b.ascii("</base64>");
+		}
+		else if (o instanceof String) {
+			b.ascii("<string>");
+			b.text((String)o);
+			b.ascii("</string>");
+		}
+		else if (o instanceof Integer) {
+			b.ascii("<i4>");
+			b.ascii(o.toString());
+			b.ascii("</i4>");
+		}
+		else if (o instanceof Object[]) {
+			b.ascii("<array><data>");
+			for (Object e: (Object[])o) writeValue(b, e);
+			b.ascii("</data></array>");
+		}
+		else if (o instanceof List) {
+			b.ascii("<array><data>");
+			for (Object e: (List<?>)o) writeValue(b, e);
+			b.ascii("</data></array>");
+		}
+		else if (o instanceof Map) {
+			b.ascii("<struct>");
+			for (Map.Entry<?,?> e: ((Map<?,?>)o).entrySet()) {
+				b.ascii("<member><name>");
+				b.text(String.valueOf(e.getKey()));
+				b.ascii("</name>");
+				writeValue(b, e.getValue());
+				b.ascii("</member>");
+			}
+			b.ascii("</struct>");
+		}
+		else if (o instanceof Boolean) {
+			b.ascii(((Boolean)o).booleanValue() ? "<boolean>1</boolean>" : "<boolean>0</boolean>");
+		}
+		else if (o instanceof Long) {
+			b.ascii("<i8>");
+			b.ascii(o.toString());
+			b.ascii("</i8>");
+		}
+		else if (o instanceof Double) {
+			b.ascii("<double>");
+			b.ascii(o.toString());
+			b.ascii("</double>");
+		}
+		else {
+			throw new XmlRpcClientException("Unsupported Java type: "
+					+ (o == null ? "null" : o.getClass().getName()), null);
+		}
+
+		b.ascii("</value>");
+	}
+
+	/**
+	 * A growable byte array holding an encoded call or a response.
+	 */
+	static final class Buffer {
+		private byte[] bytes = new byte[INITIAL_CAPACITY];
+		private int length = 0;
+
+		int getLength() { return this.length; }
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(this.bytes, 0, this.length);
+		}
+
+		private void ensure(int n) {
+			if (this.length + n <= this.bytes.length) return;
+
+			byte[] b = new byte[Math.max(this.bytes.length * 2, this.length + n)];
+			System.arraycopy(this.bytes, 0, b, 0, this.length);
+			this.bytes = b;
+		}
+
+		private void readFrom(InputStream in) throws IOException {
+			int n;
+			do {
+				this.ensure(1);
+				n = in.read(this.bytes, this.length, this.bytes.length - this.length);
+				if (n > 0) this.length += n;
+			} while (n >= 0);
+		}
+
+		// a string of ASCII characters needing no escape
+		private void ascii(String s) {
+			int n = s.length();
+			this.ensure(n);
+			for (int i = 0; i < n; i++) this.bytes[this.length++] = (byte)s.charAt(i);
+		}
+
+		// character data in UTF-8, escaped
+		private void text(String s) {
+			int n = s.length();
+			this.ensure(n);
+
+			for (int i = 0; i < n; i++) {
+				char c = s.charAt(i);
+
+				if (c == '<') this.ascii("&lt;");
+				else if (c == '>') this.ascii("&gt;");
+				else if (c == '&') this.ascii("&amp;");
+				else if (c == '\r') this.ascii("&#13;");
+				else i = this.utf8(s, i);
+			}
+		}
+
+		// a string in UTF-8 without escapes
+		private void utf8(String s) {
+			for (int i = 0; i < s.length(); i++) i = this.utf8(s, i);
+		}
+
+		// appends the character at the index, and returns the index of its last char
+		private int utf8(String s, int i) {
+			char c = s.charAt(i);
+
+			if (c < 0x80) {
+				this.ensure(1);
+				this.bytes[this.length++] = (byte)c;
+			}
+			else if (c < 0x800) {
+				this.ensure(2);
+				this.bytes[this.length++] = (byte)(0xc0 | (c >> 6));
+				this.bytes[this.length++] = (byte)(0x80 | (c & 0x3f));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				this.ensure(4);
+				this.bytes[this.length++] = (byte)(0xf0 | (cp >> 18));
+				this.bytes[this.length++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				this.bytes[this.length++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				this.bytes[this.length++] = (byte)(0x80 | (cp & 0x3f));
+			}
+			else {
+				this.ensure(3);
+				this.bytes[this.length++] = (byte)(0xe0 | (c >> 12));
+				this.bytes[this.length++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				this.bytes[this.length++] = (byte)(0x80 | (c & 0x3f));
+			}
+
+			return i;
+		}
+
+		private void base64(byte[] data) {
+			this.ensure((data.length + 2) / 3 * 4);
+
+			byte[] b = this.bytes;
+			int p = this.length;
+			int i = 0;
+			for (; i + 3 <= data.length; i += 3) {
+				int v = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+				b[p++] = BASE64_CHARS[v >>> 18];
+				b[p++] = BASE64_CHARS[(v >>> 12) & 0x3f];
+				b[p++] = BASE64_CHARS[(v >>> 6) & 0x3f];
+				b[p++] = BASE64_CHARS[v & 0x3f];
+			}
+
+			int rest = data.length - i;
+			if (rest > 0) {
+				int v = (data[i] & 0xff) << 16;
+				if (rest > 1) v |= (data[i + 1] & 0xff) << 8;
+
+				b[p++] = BASE64_CHARS[v >>> 18];
+				b[p++] = BASE64_CHARS[(v >>> 12) & 0x3f];
+				b[p++] = (rest > 1 ? BASE64_CHARS[(v >>> 6) & 0x3f] : (byte)'=');
+				b[p++] = '=';
+			}
+
+			this.length = p;
+		}
+	}
+
+	/**
+	 * Scans a response in a byte array. Attributes, comments and processing instructions are skipped,
+	 * and CDATA sections are not supported.
+	 */
+	private static final class Parser {
+		private final byte[] b;
+		private final int end;
+		private int pos = 0;
+
+		// the name of the last start tag, without the prefix of a namespace
+		private int nameStart, nameEnd;
+		private boolean emptyTag;
+
+		Parser(byte[] b, int length) {
+			this.b = b;
+			this.end = length;
+		}
+
+		Object response() throws XmlRpcException {
+			this.start("methodResponse");
+			this.startTag();
+
+			Object result;
+			if (this.is("params")) {
+				this.start("param");
+				this.start("value");
+				result = this.value();
+				this.end("param");
+				this.end("params");
+				this.end("methodResponse");
+				return result;
+			}
+			if (!this.is("fault")) {
+				throw this.error("unexpected element " + this.name());
+			}
+
+			this.start("value");
+			Object fault = this.value();
+			this.end("fault");
+			this.end("methodResponse");
+
+			if (!(fault instanceof Map)) {
+				throw this.error("fault is not a struct");
+			}
+			Object code = ((Map<?,?>)fault).get("faultCode");
+			Object message = ((Map<?,?>)fault).get("faultString");
+			throw new XmlRpcException((code instanceof Integer ? (Integer)code : 0),
+					(message == null ? null : message.toString()));
+		}
+
+		// reads the content of a value element, whose start tag was read, and its end tag
+		private Object value() throws XmlRpcException {
+			if (this.emptyTag) return "";
+
+			int textStart = this.pos;
+			int textEnd = this.skipText();
+			if (this.atEndTag()) {
+				this.end("value");
+				return this.string(textStart, textEnd);
+			}
+
+			this.startTag();
+			boolean empty = this.emptyTag;
+			Object v;
+
+			if (this.is("base64")) {
+				if (empty) return this.endValue(new byte[0]);
+				int start = this.pos;
+				v = this.base64(start, this.skipText());
+				this.end("base64");
+			}
+			else if (this.is("string")) {
+				if (empty) return this.endValue("");
+				int start = this.pos;
+				v = this.string(start, this.skipText());
+				this.end("string");
+			}
+			else if (this.is("i4") || this.is("int")) {
+				int start = this.pos;
+				long l = this.integer(start, this.skipText());
+				if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+					throw this.error("int out of range");
+				}
+				v = Integer.valueOf((int)l);
+				this.end(this.name());
+			}
+			else if (this.is("array")) {
+				List<Object> list = new ArrayList<Object>();
+				if (empty) return this.endValue(list.toArray());
+
+				this.start("data");
+				if (!this.emptyTag) {
+					while (!this.atEndTag()) {
+						this.start("value");
+						list.add(this.value());
+					}
+					this.end("data");
+				}
+				this.end("array");
+				v = list.toArray();
+			}
+			else if (this.is("struct")) {
+				Map<String,Object> map = new HashMap<String,Object>();
+				if (empty) return this.endValue(map);
+
+				while (!this.atEndTag()) {
+					this.start("member");
+					this.start("name");
+					String name = "";
+					if (!this.emptyTag) {
+						int start = this.pos;
+						name = this.string(start, this.skipText());
+						this.end("name");
+					}
+					this.start("value");
+					map.put(name, this.value());
+					this.end("member");
+				}
+				this.end("struct");
+				v = map;
+			}
+			else if (this.is("nil")) {
+				if (!empty) this.end("nil");
+				v = null;
+			}
+			else if (this.is("boolean")) {
+				int start = this.pos;
+				long l = this.integer(start, this.skipText());
+				if (l != 0L && l != 1L) throw this.error("invalid boolean");
+				v = Boolean.valueOf(l == 1L);
+				this.end("boolean");
+			}
+			else if (this.is("i8")) {
+				int start = this.pos;
+				v = Long.valueOf(this.integer(start, this.skipText()));
+				this.end("i8");
+			}
+			else if (this.is("double")) {
+				int start = this.pos;
+				String s = this.string(start, this.skipText()).trim();
+				try {
+					v = Double.valueOf(s);
+				}
+				catch (NumberFormatException e) {
+					throw this.error("invalid double: " + s);
+				}
+				this.end("double");
+			}
+			else {
+				throw this.error("unsupported type " + this.name());
+			}
+
+			return this.endValue(v);
+		}
+
+		private Object endValue(Object v) throws XmlRpcException {
+			this.end("value");
+			return v;
+		}
+
+		private void start(String name) throws XmlRpcException {
+			this.startTag();
+			if (!this.is(name)) {
+				throw this.error("expected " + name + " but " + this.name());
+			}
+		}
+
+		private void startTag() throws XmlRpcException {
+			this.skipMisc();
+			if (this.pos + 1 >= this.end || this.b[this.pos] != '<' || this.b[this.pos + 1] == '/') {
+				throw this.error("expected a start tag");
+			}
+
+			int p = this.pos + 1;
+			int s = p;
+			while (p < this.end && !isSpace(this.b[p]) && this.b[p] != '>' && this.b[p] != '/') p++;
+			this.nameEnd = p;
+
+			// the prefix of a namespace, such as "ex:" of the extensions of Apache XML-RPC
+			this.nameStart = s;
+			for (int i = s; i < p; i++) {
+				if (this.b[i] == ':') this.nameStart = i + 1;
+			}
+
+			while (p < this.end && this.b[p] != '>') p++;
+			if (p >= this.end) throw this.error("unterminated tag");
+
+			this.emptyTag = (this.b[p - 1] == '/');
+			this.pos = p + 1;
+		}
+
+		private void end(String name) throws XmlRpcException {
+			this.skipMisc();
+			int p = this.pos + 2;
+			if (!this.atEndTag()) {
+				throw this.error("expected the end of " + name);
+			}
+
+			// the prefix of a namespace
+			int s = p;
+			while (p < this.end && this.b[p] != '>' && !isSpace(this.b[p])) {
+				if (this.b[p] == ':') s = p + 1;
+				p++;
+			}
+			if (!this.equals(s, p, name)) {
+				throw this.error("expected the end of " + name);
+			}
+
+			while (p < this.end && this.b[p] != '>') p++;
+			if (p >= this.end) throw this.error("unterminated tag");
+			this.pos = p + 1;
+		}
+
+		private boolean atEndTag() throws XmlRpcException {
+			this.skipMisc();
+			if (this.pos + 1 >= this.end) throw this.error("unexpected end");
+			return this.b[this.pos] == '<' && this.b[this.pos + 1] == '/';
+		}
+
+		// skips white spaces, comments, processing instructions and declarations
+		private void skipMisc() throws XmlRpcException {
+			while (true) {
+				while (this.pos < this.end && isSpace(this.b[this.pos])) this.pos++;
+
+				if (this.pos + 1 >= this.end || this.b[this.pos] != '<') return;
+
+				byte c = this.b[this.pos + 1];
+				if (c == '?') {
+					this.pos = this.indexOf("?>", this.pos + 2) + 2;
+				}
+				else if (c == '!') {
+					if (this.equals(this.pos, this.pos + 4, "<!--")) {
+						this.pos = this.indexOf("-->", this.pos + 4) + 3;
+					}
+					else {
+						this.pos = this.indexOf(">", this.pos + 2) + 1;
+					}
+				}
+				else {
+					return;
+				}
+			}
+		}
+
+		// returns the end of character data, which is before the next tag
+		private int skipText() throws XmlRpcException {
+			int p = this.pos;
+			while (p < this.end && this.b[p] != '<') p++;
+			if (p >= this.end) throw this.error("unexpected end");
+
+			this.pos = p;
+			return p;
+		}
+
+		private int indexOf(String s, int from) throws XmlRpcException {
+			for (int p = from; p + s.length() <= this.end; p++) {
+				if (this.equals(p, p + s.length(), s)) return p;
+			}
+			throw this.error("unexpected end");
+		}
+
+		private boolean is(String name) {
+			return this.equals(this.nameStart, this.nameEnd, name);
+		}
+
+		private String name() {
+			return this.string(this.nameStart, this.nameEnd);
+		}
+
+		private boolean equals(int start, int end, String s) {
+			if (end - start != s.length() || end > this.end) return false;
+			for (int i = 0; i < s.length(); i++) {
+				if (this.b[start + i] != s.charAt(i)) return false;
+			}
+			return true;
+		}
+
+		private long integer(int start, int end) throws XmlRpcException {
+			while (start < end && isSpace(this.b[start])) start++;
+			while (end > start && isSpace(this.b[end - 1])) end--;
+
+			boolean negative = false;
+			if (start < end && (this.b[start] == '-' || this.b[start] == '+')) {
+				negative = (this.b[start] == '-');
+				start++;
+			}
+			if (start >= end || end - start > 19) {
+				throw this.error("invalid integer");
+			}
+
+			long l = 0L;
+			for (int p = start; p < end; p++) {
+				int d = this.b[p] - '0';
+				if (d < 0 || d > 9) throw this.error("invalid integer");
+				l = l * 10 + d;
+				if (l < 0L) throw this.error("integer out of range");
+			}
+
+			return (negative ? -l : l);
+		}
+
+		private byte[] base64(int start, int end) throws XmlRpcException {
+			// counts the characters to know the length of the data
+			int chars = 0, padding = 0;
+			for (int p = start; p < end; p++) {
+				byte c = this.b[p];
+				if (c == '=') {
+					padding++;
+				}
+				else if (BASE64_VALUES[c & 0xff] >= 0) {
+					if (padding > 0) throw this.error("invalid base64");
+					chars++;
+				}
+				else if (BASE64_VALUES[c & 0xff] != SPACE) {
+					throw this.error("invalid base64");
+				}
+			}
+			if (chars % 4 == 1 || padding > 2) throw this.error("invalid base64");
+
+			byte[] data = new byte[chars * 3 / 4];
+			int i = 0, bits = 0, n = 0;
+			for (int p = start; p < end && i < data.length; p++) {
+				byte v = BASE64_VALUES[this.b[p] & 0xff];
+				if (v < 0) continue;
+
+				bits = (bits << 6) | v;
+				if (++n == 4) {
+					data[i++] = (byte)(bits >> 16);
+					data[i++] = (byte)(bits >> 8);
+					data[i++] = (byte)bits;
+					bits = 0;
+					n = 0;
+				}
+			}
+			if (n == 3) {
+				data[i++] = (byte)(bits >> 10);
+				data[i++] = (byte)(bits >> 2);
+			}
+			else if (n == 2) {
+				data[i++] = (byte)(bits >> 4);
+			}
+
+			return data;
+		}
+
+		// character data, in which entities are replaced and line ends are normalized
+		private String string(int start, int end) {
+			boolean plain = true;
+			for (int p = start; p < end; p++) {
+				byte c = this.b[p];
+				if (c < 0 || c == '&' || c == '\r') {
+					plain = false;
+					break;
+				}
+			}
+
+			if (plain) {
+				char[] chars = new char[end - start];
+				for (int i = 0; i < chars.length; i++) chars[i] = (char)this.b[start + i];
+				return new String(chars);
+			}
+
+			Buffer decoded = new Buffer();
+			for (int p = start; p < end; p++) {
+				byte c = this.b[p];
+
+				if (c == '\r') {
+					if (p + 1 < end && this.b[p + 1] == '\n') p++;
+					c = '\n';
+				}
+				else if (c == '&') {
+					int semicolon = p + 1;
+					while (semicolon < end && this.b[semicolon] != ';') semicolon++;
+
+					String entity = this.string(p + 1, semicolon);
+					p = semicolon;
+					if (entity.equals("lt")) c = '<';
+					else if (entity.equals("gt")) c = '>';
+					else if (entity.equals("amp")) c = '&';
+					else if (entity.equals("quot")) c = '"';
+					else if (entity.equals("apos")) c = '\'';
+					else if (entity.startsWith("#")) {
+						try {
+							int cp = (entity.startsWith("#x")
+									? Integer.parseInt(entity.substring(2), 16)
+									: Integer.parseInt(entity.substring(1)));
+							decoded.utf8(new String(Character.toChars(cp)));
+						}
+						catch (IllegalArgumentException e) {
+							// kept as it is
+							decoded.utf8("&" + entity + ";");
+						}
+						continue;
+					}
+					else {
+						decoded.utf8("&" + entity + ";");
+						continue;
+					}
+				}
+
+				decoded.ensure(1);
+				decoded.bytes[decoded.length++] = c;
+			}
+
+			try {
+				return new String(decoded.bytes, 0, decoded.length, ENCODING);
+			}
+			catch (UnsupportedEncodingException e) {
+				// NOTREACHED
+				throw new Error(e);
+			}
+		}
+
+		private XmlRpcException error(String message) {
+			return new XmlRpcClientException("Failed to parse server's response: "
+					+ message + " at " + this.pos, null);
+		}
+
+		private static boolean isSpace(byte c) {
+			return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+		}
+	}
+}
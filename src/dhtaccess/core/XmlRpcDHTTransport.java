@@ -0,0 +1,39 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.core;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+
+/**
+ * The transport which sends calls in XML-RPC over HTTP, the protocol of Bamboo.
+ */
+class XmlRpcDHTTransport implements DHTTransport {
+	private final XmlRpcClient client;
+
+	XmlRpcDHTTransport(XmlRpcClient client) {
+		this.client = client;
+	}
+
+	public Object execute(String methodName, Object[] params) throws XmlRpcException {
+		return this.client.execute(methodName, params);
+	}
+
+	public void close() {
+		// connections are kept by the HttpConnectionPool, if any, which is shared
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2006-2008 Kazuyuki Shudo.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dhtaccess.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import dhtaccess.core.DHTException;
+
+/**
+ * Runs the records read from a file or the standard input,
+ * or given on the command line, several of them concurrently.
+ * <p>
+ * A record is a line with its fields separated by tabs,
+ * or, if length-delimited, fields each preceded by its length in a 4-byte big-endian integer.
+ * The output of each record is printed at once,
+ * in the order of the input or, if unordered, as soon as the record has been run.
+ */
+abstract class BatchRunner {
+	static final int DEFAULT_PARALLELISM = 8;
+
+	private static final String ENCODE = "UTF-8";
+	private static final int MAX_FIELD_LENGTH = 64 * 1024 * 1024;
+
+	private final int numFields;
+	private final boolean lengthDelimited;
+	private final int parallelism;
+	private final boolean ordered;
+
+	BatchRunner(int numFields, boolean lengthDelimited, int parallelism, boolean ordered) {
+		this.numFields = numFields;
+		this.lengthDelimited = lengthDelimited;
+		this.parallelism = Math.max(1, parallelism);
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Runs a record and writes what is to be printed for it.
+	 * Called concurrently by several threads.
+	 */
+	abstract void run(byte[][] fields, Output output);
+
+	/**
+	 * Runs all the records in the file, or in the standard input if the file is "-".
+	 * Returns false if any of the records was invalid or failed.
+	 */
+	boolean runAll(String file, PrintStream out, PrintStream err) throws IOException {
+		InputStream in = (file.equals("-") ? System.in : new FileInputStream(file));
+		try {
+			InputStream bin = new BufferedInputStream(in);
+			return this.runAll((this.lengthDelimited
+					? new LengthDelimitedReader(bin) : new LineReader(bin)), out, err);
+		}
+		finally {
+			if (in != System.in) in.close();
+		}
+	}
+
+	/**
+	 * Runs the records given.
+	 * Returns false if any of the records was invalid or failed.
+	 */
+	boolean runAll(final byte[][][] records, PrintStream out, PrintStream err) {
+		try {
+			return this.runAll(new RecordReader() {
+				private int index = 0;
+
+				public byte[][] read(PrintStream err) {
+					return (this.index < records.length ? records[this.index++] : null);
+				}
+			}, out, err);
+		}
+		catch (IOException e) {
+			// NOTREACHED
+			throw new RuntimeException(e);
+		}
+	}
+
+	private boolean runAll(RecordReader reader, PrintStream out, PrintStream err) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "dhtaccess-batch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		CompletionService<Output> completion = new ExecutorCompletionService<Output>(executor);
+
+		// records read but not printed yet, bounded so that a slow record does not let the others pile up
+		LinkedList<Future<Output>> pending = new LinkedList<Future<Output>>();
+		int window = (this.ordered ? this.parallelism * 4 : this.parallelism);
+		int inFlight = 0;
+
+		boolean succeeded = true;
+		try {
+			byte[][] fields;
+			while ((fields = reader.read(err)) != null) {
+				if (fields.length < this.numFields) {
+					succeeded = false;
+					continue;
+				}
+
+				Callable<Output> task = this.newTask(fields);
+
+				if (this.ordered) {
+					while (pending.size() >= window
+							|| (!pending.isEmpty() && pending.getFirst().isDone())) {
+						succeeded &= print(pending.removeFirst(), out, err);
+					}
+					pending.addLast(executor.submit(task));
+				}
+				else {
+					while (inFlight >= window) {
+						succeeded &= print(take(completion), out, err);
+						inFlight--;
+					}
+					completion.submit(task);
+					inFlight++;
+				}
+			}
+
+			while (!pending.isEmpty()) {
+				succeeded &= print(pending.removeFirst(), out, err);
+			}
+			for (; inFlight > 0; inFlight--) {
+				succeeded &= print(take(completion), out, err);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		return succeeded;
+	}
+
+	private Callable<Output> newTask(final byte[][] fields) {
+		return new Callable<Output>() {
+			public Output call() {
+				Output output = new Output();
+				try {
+					BatchRunner.this.run(fields, output);
+				}
+				catch (DHTException e) {
+					output.fail("Failed: " + e);
+				}
+				return output;
+			}
+		};
+	}
+
+	private static Future<Output> take(CompletionService<Output> completion) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return completion.take();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean print(Future<Output> f, PrintStream out, PrintStream err) {
+		Output output;
+		boolean interrupted = false;
+		while (true) {
+			try {
+				output = f.get();
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Error) throw (Error)cause;
+				output = new Output();
+				output.fail("Failed: " + cause);
+				break;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+
+		return output.printTo(out, err);
+	}
+
+	static String toString(byte[] bytes) {
+		try {
+			return new String(bytes, ENCODE);
+		}
+		catch (UnsupportedEncodingException e) {
+			// NOTREACHED
+			return null;
+		}
+	}
+
+	/**
+	 * What is printed for a record.
+	 */
+	static final class Output {
+		private final StringBuilder out = new StringBuilder();
+		private final StringBuilder err = new StringBuilder();
+		private boolean failed = false;
+
+		void println(String line) {
+			this.out.append(line).append('\n');
+		}
+
+		/**
+		 * Prints a message to the standard error and marks the record failed.
+		 */
+		void fail(String message) {
+			this.err.append(message).append('\n');
+			this.failed = true;
+		}
+
+		/**
+		 * Prints what has been written, and returns false if the record failed.
+		 */
+		boolean printTo(PrintStream out, PrintStream err) {
+			out.print(this.out);
+			err.print(this.err);
+			return !this.failed;
+		}
+	}
+
+	private interface RecordReader {
+		/**
+		 * Returns the fields of the next record, or null at the end of the input.
+		 */
+		byte[][] read(PrintStream err) throws IOException;
+	}
+
+	private class LineReader implements RecordReader {
+		private final BufferedReader in;
+		private int lineNumber = 0;
+
+		LineReader(InputStream in) throws IOException {
+			this.in = new BufferedReader(new InputStreamReader(in, ENCODE));
+		}
+
+		public byte[][] read(PrintStream err) throws IOException {
+			String line;
+			do {
+				line = this.in.readLine();
+				if (line == null) return null;
+				this.lineNumber++;
+			} while (line.length() <= 0);
+
+			String[] strs = line.split("\t", BatchRunner.this.numFields);
+			if (strs.length < BatchRunner.this.numFields) {
+				err.println("Invalid record at line " + this.lineNumber + ": " + line);
+			}
+
+			byte[][] fields = new byte[strs.length][];
+			for (int i = 0; i < strs.length; i++) {
+				fields[i] = strs[i].getBytes(ENCODE);
+			}
+			return fields;
+		}
+	}
+
+	private class LengthDelimitedReader implements RecordReader {
+		private final DataInputStream in;
+
+		LengthDelimitedReader(InputStream in) {
+			this.in = new DataInputStream(in);
+		}
+
+		public byte[][] read(PrintStream err) throws IOException {
+			byte[][] fields = new byte[BatchRunner.this.numFields][];
+
+			for (int i = 0; i < fields.length; i++) {
+				int len;
+				try {
+					len = this.in.readInt();
+				}
+				catch (EOFException e) {
+					if (i == 0) return null;
+					throw new IOException("input ends in the middle of a record");
+				}
+
+				if (len < 0 || len > MAX_FIELD_LENGTH) {
+					throw new IOException("invalid length of a field: " + len);
+				}
+
+				fields[i] = new byte[len];
+				this.in.readFully(fields[i]);
+			}
+
+			return fields;
+		}
+	}
+}
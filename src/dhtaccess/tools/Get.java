@@ -16,6 +16,7 @@
 
 package dhtaccess.tools;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
@@ -28,21 +29,38 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
+import dhtaccess.core.ByteArray;
 import dhtaccess.core.DHTAccessor;
+import dhtaccess.core.DHTException;
+import dhtaccess.core.DHTPartialResultException;
 import dhtaccess.core.DetailedGetResult;
+import dhtaccess.core.HttpConnectionPool;
+import dhtaccess.core.MultiGatewayDHTAccessor;
 
 public class Get {
 	private static final String COMMAND = "get";
 	private static final String ENCODE = "UTF-8";
 	private static final String DEFAULT_GATEWAY = "http://opendht.nyuld.net:5851/";
 
+	// keys given as arguments are got at once unless there are more than this
+	private static final int MAX_KEY_PARALLELISM = 64;
+
 	private static void usage(String command) {
 		System.out.println("usage: " + command
-				+ " [-h] [-g <gateway>] [-d] <key> [<key> ...]");
+				+ " [-h] [-g <gateway>[,<gateway> ...]] [-d] [-p <parallelism>] [-u] [-k] <key> [<key> ...]");
+		System.out.println("       " + command
+				+ " [-h] [-g <gateway>[,<gateway> ...]] [-d] [-l] [-p <parallelism>] [-u] [-k] -f <file>|-");
+		System.out.println("  each record in <file> is <key> in a line");
 	}
 
 	public static void main(String[] args) {
 		boolean details = false;
+		boolean failed = false;
+		String file = null;
+		boolean lengthDelimited = false;
+		int parallelism = -1;
+		boolean ordered = true;
+		boolean keepAlive = false;
 
 		// parse properties
 		Properties prop = System.getProperties();
@@ -54,8 +72,13 @@ public class Get {
 		// parse options
 		Options options = new Options();
 		options.addOption("h", "help", false, "print help");
-		options.addOption("g", "gateway", true, "gateway URI, list at http://opendht.org/servers.txt");
+		options.addOption("g", "gateway", true, "gateway URIs separated by commas, list at http://opendht.org/servers.txt");
 		options.addOption("d", "details", false, "print secret hash and TTL");
+		options.addOption("f", "file", true, "file to read keys from, - for the standard input");
+		options.addOption("l", "length-delimited", false, "each key in the file is preceded by its length in 4 bytes");
+		options.addOption("p", "parallelism", true, "number of keys got concurrently");
+		options.addOption("u", "unordered", false, "prints values as soon as they are got, not in the order of the keys");
+		options.addOption("k", "keep-alive", false, "reuses persistent connections to gateways");
 
 		CommandLineParser parser = new PosixParser();
 		CommandLine cmd = null;
@@ -79,11 +102,28 @@ public class Get {
 		if (cmd.hasOption('d')) {
 			details = true;
 		}
+		optVal = cmd.getOptionValue('f');
+		if (optVal != null) {
+			file = optVal;
+		}
+		if (cmd.hasOption('l')) {
+			lengthDelimited = true;
+		}
+		optVal = cmd.getOptionValue('p');
+		if (optVal != null) {
+			parallelism = Integer.parseInt(optVal);
+		}
+		if (cmd.hasOption('u')) {
+			ordered = false;
+		}
+		if (cmd.hasOption('k')) {
+			keepAlive = true;
+		}
 
 		args = cmd.getArgs();
 
 		// parse arguments
-		if (args.length < 1) {
+		if (file == null && args.length < 1) {
 			usage(COMMAND);
 			System.exit(1);
 		}
@@ -91,55 +131,129 @@ public class Get {
 		// prepare for RPC
 		DHTAccessor accessor = null;
 		try {
-			accessor = new DHTAccessor(gateway);
+			String[] gateways = gateway.split(",");
+			if (gateways.length > 1) {
+				accessor = new MultiGatewayDHTAccessor(gateways);
+			}
+			else {
+				accessor = new DHTAccessor(gateway);
+			}
+			if (keepAlive) {
+				accessor.setConnectionPool(new HttpConnectionPool());
+			}
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 
+		if (file != null) {
+			boolean succeeded = false;
+			try {
+				BatchRunner runner = newRunner(accessor, lengthDelimited,
+						(parallelism > 0 ? parallelism : BatchRunner.DEFAULT_PARALLELISM), ordered, details);
+				succeeded = runner.runAll(file, System.out, System.err);
+			}
+			catch (IOException e) {
+				System.err.println("Failed to read " + file + ": " + e);
+			}
+			System.exit(succeeded ? 0 : 1);
+		}
+
+		byte[][][] keys = new byte[args.length][][];
 		for (int index = 0; index < args.length; index++) {
-			byte[] key = null;
 			try {
-				key = args[index].getBytes(ENCODE);
+				keys[index] = new byte[][] { args[index].getBytes(ENCODE) };
 			} catch (UnsupportedEncodingException e1) {
 				// NOTREACHED
 			}
+		}
 
-			// RPC
-			if (args.length > 1) {
-				System.out.println(args[index] + ":");
-			}
+		// RPC
+		if (keys.length == 1) {
+			BatchRunner.Output output = new BatchRunner.Output();
+			get(accessor, keys[0][0], details, output);
+			failed = !output.printTo(System.out, System.err);
+		}
+		else {
+			// all the keys are got concurrently, each of them printed with its values at once
+			BatchRunner runner = newRunner(accessor, false,
+					(parallelism > 0 ? parallelism : Math.min(keys.length, MAX_KEY_PARALLELISM)), ordered, details);
+			failed = !runner.runAll(keys, System.out, System.err);
+		}
 
-			if (details) {
-				Set<DetailedGetResult> results = accessor.getDetails(key);
+		if (failed) {
+			System.exit(1);
+		}
+	}
 
-				for (DetailedGetResult r: results) {
-					String valString = null;
-					try {
-						valString = new String((byte[])r.getValue(), ENCODE);
-					} catch (UnsupportedEncodingException e) {
-						// NOTREACHED
-					}
+	private static BatchRunner newRunner(final DHTAccessor accessor,
+			boolean lengthDelimited, int parallelism, boolean ordered, final boolean details) {
+		return new BatchRunner(1, lengthDelimited, parallelism, ordered) {
+			void run(byte[][] fields, Output output) {
+				output.println(toString(fields[0]) + ":");
+				get(accessor, fields[0], details, output);
+			}
+		};
+	}
 
-					BigInteger hashedSecure = new BigInteger(1, (byte[])r.getHashedSecret());
+	private static void get(DHTAccessor accessor, byte[] key, boolean details, BatchRunner.Output output) {
+		if (details) {
+			Set<DetailedGetResult> results;
+			try {
+				results = accessor.getDetails(key);
+			}
+			catch (DHTPartialResultException e) {
+				output.fail("Some values could not be got: " + e.getCause());
 
-					System.out.println(valString
-							+ " " + r.getTTL() + " " + r.getHashType()
-							+ " 0x" + ("0000000" + hashedSecure.toString(16)).substring(0, 8));
+				@SuppressWarnings("unchecked")
+				Set<DetailedGetResult> partial = (Set<DetailedGetResult>)e.getPartialResult();
+				results = partial;
+			}
+			catch (DHTException e) {
+				output.fail("Failed: " + e);
+				return;
+			}
+
+			for (DetailedGetResult r: results) {
+				String valString = null;
+				try {
+					valString = new String((byte[])r.getValue(), ENCODE);
+				} catch (UnsupportedEncodingException e) {
+					// NOTREACHED
 				}
+
+				BigInteger hashedSecure = new BigInteger(1, (byte[])r.getHashedSecret());
+
+				output.println(valString
+						+ " " + r.getTTL() + " " + r.getHashType()
+						+ " 0x" + ("0000000" + hashedSecure.toString(16)).substring(0, 8));
 			}
-			else {
-				Set<byte[]> results = accessor.get(key);
-
-				for (byte[] valBytes: results) {
-					try {
-						System.out.println(new String((byte[])valBytes, ENCODE));
-					}
-					catch (UnsupportedEncodingException e) {
-						// NOTREACHED
-					}
+		}
+		else {
+			Set<ByteArray> results;
+			try {
+				results = accessor.get(key);
+			}
+			catch (DHTPartialResultException e) {
+				output.fail("Some values could not be got: " + e.getCause());
+
+				@SuppressWarnings("unchecked")
+				Set<ByteArray> partial = (Set<ByteArray>)e.getPartialResult();
+				results = partial;
+			}
+			catch (DHTException e) {
+				output.fail("Failed: " + e);
+				return;
+			}
+
+			for (ByteArray val: results) {
+				try {
+					output.println(val.toString(ENCODE));
+				}
+				catch (UnsupportedEncodingException e) {
+					// NOTREACHED
 				}
 			}
-		}	// for (int index = 0...
+		}
 	}
 }
@@ -16,6 +16,7 @@
 
 package dhtaccess.tools;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.Properties;
@@ -27,6 +28,10 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
 import dhtaccess.core.DHTAccessor;
+import dhtaccess.core.DHTException;
+import dhtaccess.core.DHTPartialResultException;
+import dhtaccess.core.HttpConnectionPool;
+import dhtaccess.core.MultiGatewayDHTAccessor;
 
 public class Put {
 	private static final String COMMAND = "put";
@@ -35,12 +40,20 @@ public class Put {
 
 	private static void usage(String command) {
 		System.out.println("usage: " + command
-				+ " [-h] [-g <gateway>] [-s <secret>] [-t <ttl (sec)>] <key> <value> [<key> <value> ...]");
+				+ " [-h] [-g <gateway>[,<gateway> ...]] [-s <secret>] [-t <ttl (sec)>] <key> <value> [<key> <value> ...]");
+		System.out.println("       " + command
+				+ " [-h] [-g <gateway>[,<gateway> ...]] [-s <secret>] [-t <ttl (sec)>] [-l] [-p <parallelism>] [-u] [-k] -f <file>|-");
+		System.out.println("  each record in <file> is <key> TAB <value> in a line");
 	}
 
 	public static void main(String[] args) {
 		byte[] secret = null;
 		int ttl = 3600;
+		String file = null;
+		boolean lengthDelimited = false;
+		int parallelism = BatchRunner.DEFAULT_PARALLELISM;
+		boolean ordered = true;
+		boolean keepAlive = false;
 
 		// parse properties
 		Properties prop = System.getProperties();
@@ -52,9 +65,14 @@ public class Put {
 		// parse options
 		Options options = new Options();
 		options.addOption("h", "help", false, "print help");
-		options.addOption("g", "gateway", true, "gateway URI, list at http://opendht.org/servers.txt");
+		options.addOption("g", "gateway", true, "gateway URIs separated by commas, list at http://opendht.org/servers.txt");
 		options.addOption("s", "secret", true, "can be used to remove the value later");
 		options.addOption("t", "ttl", true, "how long (in seconds) to store the value");
+		options.addOption("f", "file", true, "file to read key-value pairs from, - for the standard input");
+		options.addOption("l", "length-delimited", false, "each key and value in the file is preceded by its length in 4 bytes");
+		options.addOption("p", "parallelism", true, "number of pairs in the file put concurrently");
+		options.addOption("u", "unordered", false, "prints results as soon as they are known, not in the order of the file");
+		options.addOption("k", "keep-alive", false, "reuses persistent connections to gateways");
 
 		CommandLineParser parser = new PosixParser();
 		CommandLine cmd = null;
@@ -87,52 +105,131 @@ public class Put {
 		if (optVal != null) {
 			ttl = Integer.parseInt(optVal);
 		}
+		optVal = cmd.getOptionValue('f');
+		if (optVal != null) {
+			file = optVal;
+		}
+		if (cmd.hasOption('l')) {
+			lengthDelimited = true;
+		}
+		optVal = cmd.getOptionValue('p');
+		if (optVal != null) {
+			parallelism = Integer.parseInt(optVal);
+		}
+		if (cmd.hasOption('u')) {
+			ordered = false;
+		}
+		if (cmd.hasOption('k')) {
+			keepAlive = true;
+		}
 
 		args = cmd.getArgs();
 
 		// parse arguments
-		if (args.length < 2) {
+		if (file == null && args.length < 2) {
 			usage(COMMAND);
 			System.exit(1);
 		}
 
-		for (int index = 0; index + 1 < args.length; index += 2) {
-			byte[] key = null, value = null;
+		int numPairs = args.length / 2;
+		byte[][] keys = new byte[numPairs][], values = new byte[numPairs][];
+		for (int i = 0; i < numPairs; i++) {
 			try {
-				key = args[index].getBytes(ENCODE);
-				value = args[index + 1].getBytes(ENCODE);
+				keys[i] = args[2 * i].getBytes(ENCODE);
+				values[i] = args[2 * i + 1].getBytes(ENCODE);
 			} catch (UnsupportedEncodingException e1) {
 				// NOTREACHED
 			}
+		}
 
-			// prepare for RPC
-			DHTAccessor accessor = null;
-			try {
+		// prepare for RPC
+		DHTAccessor accessor = null;
+		try {
+			String[] gateways = gateway.split(",");
+			if (gateways.length > 1) {
+				accessor = new MultiGatewayDHTAccessor(gateways);
+			}
+			else {
 				accessor = new DHTAccessor(gateway);
 			}
-			catch (MalformedURLException e) {
-				e.printStackTrace();
-				System.exit(1);
+			if (keepAlive) {
+				accessor.setConnectionPool(new HttpConnectionPool());
+			}
+		}
+		catch (MalformedURLException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		if (file != null) {
+			boolean succeeded = false;
+			try {
+				succeeded = runBatch(accessor, file, lengthDelimited, parallelism, ordered, ttl, secret);
+			}
+			catch (IOException e) {
+				System.err.println("Failed to read " + file + ": " + e);
+			}
+			System.exit(succeeded ? 0 : 1);
+		}
+
+		// RPC
+		int[] res;
+		boolean succeeded = true;
+		try {
+			if (numPairs == 1) {
+				res = new int[] { accessor.put(keys[0], values[0], ttl, secret) };
 			}
+			else {
+				res = accessor.putAll(keys, values, ttl, secret);
+			}
+		}
+		catch (DHTPartialResultException e) {
+			System.err.println("Some puts failed: " + e.getCause());
+			res = (int[])e.getPartialResult();
+			succeeded = false;
+		}
+		catch (DHTException e) {
+			System.err.println("Failed: " + e);
+			System.exit(1);
+			return;	// NOTREACHED
+		}
+
+		for (int i = 0; i < numPairs; i++) {
+			System.out.println(resultString(res[i]) + ": " + args[2 * i] + ", " + args[2 * i + 1]);
+			if (res[i] != 0) succeeded = false;
+		}
+
+		if (!succeeded) System.exit(1);
+	}
 
-			// RPC
-			int res = accessor.put(key, value, ttl, secret);
-
-			String resultString;
-			switch (res) {
-			case 0:
-				resultString = "Success";
-				break;
-			case 1:
-				resultString = "Capacity";
-				break;
-			case 2:
-				resultString = "Again";
-				break;
-			default:
-				resultString = "???";
+	private static boolean runBatch(final DHTAccessor accessor, String file,
+			boolean lengthDelimited, int parallelism, boolean ordered,
+			final int ttl, final byte[] secret) throws IOException {
+		BatchRunner runner = new BatchRunner(2, lengthDelimited, parallelism, ordered) {
+			void run(byte[][] fields, Output output) {
+				int res = accessor.put(fields[0], fields[1], ttl, secret);
+
+				String line = resultString(res) + ": " + toString(fields[0]) + ", " + toString(fields[1]);
+				if (res == 0) output.println(line);
+				else output.fail(line);
 			}
-			System.out.println(resultString + ": " + args[index] + ", " + args[index + 1]);
+		};
+
+		return runner.runAll(file, System.out, System.err);
+	}
+
+	private static String resultString(int res) {
+		switch (res) {
+		case 0:
+			return "Success";
+		case 1:
+			return "Capacity";
+		case 2:
+			return "Again";
+		case -1:
+			return "Failed";
+		default:
+			return "???";
 		}
 	}
 }
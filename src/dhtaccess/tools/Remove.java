@@ -16,6 +16,7 @@
 
 package dhtaccess.tools;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.Properties;
@@ -27,6 +28,9 @@ import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
 import dhtaccess.core.DHTAccessor;
+import dhtaccess.core.DHTException;
+import dhtaccess.core.HttpConnectionPool;
+import dhtaccess.core.MultiGatewayDHTAccessor;
 
 public class Remove {
 	private static final String COMMAND = "rm";
@@ -35,11 +39,19 @@ public class Remove {
 
 	private static void usage(String command) {
 		System.out.println("usage: " + command
-				+ " [-h] [-g <gateway>] [-t <ttl (sec)>] <key> <value> <secret>");
+				+ " [-h] [-g <gateway>[,<gateway> ...]] [-t <ttl (sec)>] <key> <value> <secret>");
+		System.out.println("       " + command
+				+ " [-h] [-g <gateway>[,<gateway> ...]] [-t <ttl (sec)>] [-l] [-p <parallelism>] [-u] [-k] -f <file>|-");
+		System.out.println("  each record in <file> is <key> TAB <value> TAB <secret> in a line");
 	}
 
 	public static void main(String[] args) {
 		int ttl = 3600;
+		String file = null;
+		boolean lengthDelimited = false;
+		int parallelism = BatchRunner.DEFAULT_PARALLELISM;
+		boolean ordered = true;
+		boolean keepAlive = false;
 
 		// parse properties
 		Properties prop = System.getProperties();
@@ -51,8 +63,13 @@ public class Remove {
 		// parse options
 		Options options = new Options();
 		options.addOption("h", "help", false, "print help");
-		options.addOption("g", "gateway", true, "gateway URI, list at http://opendht.org/servers.txt");
+		options.addOption("g", "gateway", true, "gateway URIs separated by commas, list at http://opendht.org/servers.txt");
 		options.addOption("t", "ttl", true, "how long (in seconds) to store the value");
+		options.addOption("f", "file", true, "file to read key-value-secret triples from, - for the standard input");
+		options.addOption("l", "length-delimited", false, "each key, value and secret in the file is preceded by its length in 4 bytes");
+		options.addOption("p", "parallelism", true, "number of values in the file removed concurrently");
+		options.addOption("u", "unordered", false, "prints results as soon as they are known, not in the order of the file");
+		options.addOption("k", "keep-alive", false, "reuses persistent connections to gateways");
 
 		CommandLineParser parser = new PosixParser();
 		CommandLine cmd = null;
@@ -78,15 +95,61 @@ public class Remove {
 		if (optVal != null) {
 			ttl = Integer.parseInt(optVal);
 		}
+		optVal = cmd.getOptionValue('f');
+		if (optVal != null) {
+			file = optVal;
+		}
+		if (cmd.hasOption('l')) {
+			lengthDelimited = true;
+		}
+		optVal = cmd.getOptionValue('p');
+		if (optVal != null) {
+			parallelism = Integer.parseInt(optVal);
+		}
+		if (cmd.hasOption('u')) {
+			ordered = false;
+		}
+		if (cmd.hasOption('k')) {
+			keepAlive = true;
+		}
 
 		args = cmd.getArgs();
 
 		// parse arguments
-		if (args.length < 3) {
+		if (file == null && args.length < 3) {
 			usage(COMMAND);
 			System.exit(1);
 		}
 
+		// prepare for RPC
+		DHTAccessor accessor = null;
+		try {
+			String[] gateways = gateway.split(",");
+			if (gateways.length > 1) {
+				accessor = new MultiGatewayDHTAccessor(gateways);
+			}
+			else {
+				accessor = new DHTAccessor(gateway);
+			}
+			if (keepAlive) {
+				accessor.setConnectionPool(new HttpConnectionPool());
+			}
+		} catch (MalformedURLException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		if (file != null) {
+			boolean succeeded = false;
+			try {
+				succeeded = runBatch(accessor, file, lengthDelimited, parallelism, ordered, ttl);
+			}
+			catch (IOException e) {
+				System.err.println("Failed to read " + file + ": " + e);
+			}
+			System.exit(succeeded ? 0 : 1);
+		}
+
 		byte[] key = null, value = null, secret = null;
 		try {
 			key = args[0].getBytes(ENCODE);
@@ -96,32 +159,46 @@ public class Remove {
 			// NOTREACHED
 		}
 
-		// prepare for RPC
-		DHTAccessor accessor = null;
+		// RPC
+		int res = -1;
 		try {
-			accessor = new DHTAccessor(gateway);
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
+			res = accessor.remove(key, value, ttl, secret);
+		}
+		catch (DHTException e) {
+			System.err.println("Failed: " + e);
 			System.exit(1);
 		}
 
-		// RPC
-		int res = accessor.remove(key, value, ttl, secret);
+		System.out.println(resultString(res));
+		if (res != 0) System.exit(1);
+	}
+
+	private static boolean runBatch(final DHTAccessor accessor, String file,
+			boolean lengthDelimited, int parallelism, boolean ordered,
+			final int ttl) throws IOException {
+		BatchRunner runner = new BatchRunner(3, lengthDelimited, parallelism, ordered) {
+			void run(byte[][] fields, Output output) {
+				int res = accessor.remove(fields[0], fields[1], ttl, fields[2]);
+
+				String line = resultString(res) + ": " + toString(fields[0]) + ", " + toString(fields[1]);
+				if (res == 0) output.println(line);
+				else output.fail(line);
+			}
+		};
+
+		return runner.runAll(file, System.out, System.err);
+	}
 
-		String resultString;
+	private static String resultString(int res) {
 		switch (res) {
 		case 0:
-			resultString = "Success";
-			break;
+			return "Success";
 		case 1:
-			resultString = "Capacity";
-			break;
+			return "Capacity";
 		case 2:
-			resultString = "Again";
-			break;
+			return "Again";
 		default:
-			resultString = "???";
+			return "???";
 		}
-		System.out.println(resultString);
 	}
 }